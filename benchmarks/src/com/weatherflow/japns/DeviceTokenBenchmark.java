@@ -0,0 +1,58 @@
+package com.weatherflow.japns;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Decoding device tokens from hex, with and without the spaces Xcode prints, and encoding them back.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceTokenBenchmark {
+	private String spaced;
+	private String compact;
+	private DeviceToken token;
+	private byte[] bytes;
+
+	@Setup
+	public void setUp() {
+		spaced = "a1b2c3d4 e5f60718 293a4b5c 6d7e8f90 0123abcd 4567ef01 89abcdef fedcba98";
+		compact = spaced.replace(" ", "");
+		token = DeviceToken.parse(spaced);
+		bytes = token.toByteArray();
+	}
+
+	@Benchmark
+	public DeviceToken parseSpaced() {
+		return DeviceToken.parse(spaced);
+	}
+
+	@Benchmark
+	public DeviceToken parseCompact() {
+		return DeviceToken.parse(compact);
+	}
+
+	@Benchmark
+	public DeviceToken valueOfBytes() {
+		return DeviceToken.valueOf(bytes);
+	}
+
+	@Benchmark
+	public String toHex() {
+		return token.toString();
+	}
+}
@@ -0,0 +1,54 @@
+package com.weatherflow.japns;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Decoding feedback service records from an in-memory stream.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedbackBenchmark {
+	// Timestamp, token length and token
+	private static final int RECORD_LENGTH = 4 + 2 + DeviceToken.LENGTH;
+
+	@Param({ "1", "1000", "100000" })
+	private int records;
+
+	private byte[] feedback;
+
+	@Setup
+	public void setUp() {
+		ByteBuffer buffer = ByteBuffer.allocate(records * RECORD_LENGTH);
+		int timestamp = (int) (System.currentTimeMillis() / 1000);
+		for (int i = 0; i < records; i++) {
+			buffer.putInt(timestamp - i);
+			buffer.putShort((short) DeviceToken.LENGTH);
+			DeviceToken.parse(String.format("%064x", i)).writeTo(buffer);
+		}
+		feedback = buffer.array();
+	}
+
+	@Benchmark
+	public FailedDevice[] read() throws IOException {
+		return FeedbackService.read(new ByteArrayInputStream(feedback));
+	}
+}
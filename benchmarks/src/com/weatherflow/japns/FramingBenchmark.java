@@ -0,0 +1,85 @@
+package com.weatherflow.japns;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Framing a batch the way sendNotifications does: every notification is encoded into a pooled buffer, and the
+ * buffer is handed to the Blackhole instead of a socket whenever it fills up.  The broadcast variant frames
+ * notifications that share one serialized payload, as NotificationService.broadcast does.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+	@Param({ "1", "100", "10000" })
+	private int batchSize;
+
+	private List<Notification> notifications;
+	private List<Notification> broadcast;
+
+	@Setup
+	public void setUp() {
+		notifications = new ArrayList<Notification>(batchSize);
+		broadcast = new ArrayList<Notification>(batchSize);
+		byte[] shared = new PayloadBuilder(NotificationBenchmark.ALERT).addSound("default").toByteArray();
+		for (int i = 0; i < batchSize; i++) {
+			DeviceToken token = DeviceToken.parse(String.format("%064x", i));
+
+			Notification notification = new Notification(token, new Aps(NotificationBenchmark.ALERT + " " + i, i, "default"));
+			notification.setNotificationId(i);
+			notifications.add(notification);
+
+			notification = new Notification(token, shared);
+			notification.setNotificationId(i);
+			broadcast.add(notification);
+		}
+	}
+
+	@Benchmark
+	public int frame(Blackhole blackhole) throws InvalidNotificationException {
+		return frame(notifications, blackhole);
+	}
+
+	@Benchmark
+	public int frameBroadcast(Blackhole blackhole) throws InvalidNotificationException {
+		return frame(broadcast, blackhole);
+	}
+
+	private static int frame(List<Notification> notifications, Blackhole blackhole) throws InvalidNotificationException {
+		ByteBuffer output = NotificationService.BUFFERS.acquire();
+		try {
+			for (Notification notification : notifications) {
+				try {
+					notification.encodeTo(output);
+				} catch (BufferOverflowException e) {
+					blackhole.consume(output.array());
+					output.clear();
+					notification.encodeTo(output);
+				}
+			}
+			return output.position();
+		} finally {
+			NotificationService.BUFFERS.release(output);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.weatherflow.japns;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Runs the benchmarks with the GC profiler, which adds the allocation rate and bytes allocated per operation
+ * (gc.alloc.rate.norm) to every result, and writes the results to jmh-gc.json so they can be compared between
+ * releases.</p>
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar com.weatherflow.japns.GcProfile [benchmark regex]
+ * </pre>
+ * 
+ * <p>The same can be done for a single run with java -jar target/benchmarks.jar -prof gc.</p>
+ */
+public class GcProfile {
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : "com\\.weatherflow\\.japns\\..*Benchmark")
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("jmh-gc.json")
+				.build();
+		new Runner(options).run();
+	}
+}
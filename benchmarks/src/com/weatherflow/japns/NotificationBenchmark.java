@@ -0,0 +1,68 @@
+package com.weatherflow.japns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Encoding a single notification, with a map-based payload and with a PayloadBuilder.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationBenchmark {
+	static final String TOKEN = "00000000 11111111 22222222 33333333 44444444 55555555 66666666 77777777";
+	static final String ALERT = "Wind 18 kts gusting 26 kts from the NW at Crissy Field";
+
+	private Notification mapNotification;
+	private Notification builderNotification;
+	private final ByteBuffer buffer = ByteBuffer.allocate(NotificationService.CAPACITY);
+
+	@Setup
+	public void setUp() {
+		mapNotification = new Notification(TOKEN, new Aps(ALERT, 1, "default"));
+		mapNotification.put("spot", 1234);
+		mapNotification.setNotificationId(1);
+
+		builderNotification = new Notification(TOKEN, new PayloadBuilder(ALERT).addBadge(1).addSound("default")
+				.addCustom("spot", 1234));
+		builderNotification.setNotificationId(1);
+	}
+
+	@Benchmark
+	public byte[] toByteArrayPayload() throws InvalidNotificationException {
+		return mapNotification.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] toByteArrayPayloadBuilder() throws InvalidNotificationException {
+		return builderNotification.toByteArray();
+	}
+
+	@Benchmark
+	public int encodeToPayload() throws InvalidNotificationException {
+		buffer.clear();
+		mapNotification.encodeTo(buffer);
+		return buffer.position();
+	}
+
+	@Benchmark
+	public int encodeToPayloadBuilder() throws InvalidNotificationException {
+		buffer.clear();
+		builderNotification.encodeTo(buffer);
+		return buffer.position();
+	}
+}
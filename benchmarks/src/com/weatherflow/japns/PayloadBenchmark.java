@@ -0,0 +1,74 @@
+package com.weatherflow.japns;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Serializing a localized payload to UTF-8 JSON: the Payload, Aps and Alert maps through json-simple as the
+ * library used to, the same maps through JsonWriter, and a PayloadBuilder.  The builder is changed before every
+ * serialization so its cached bytes are not measured.  The fitted payload truncates a long forecast to the binary
+ * interface limit.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+	private Payload payload;
+	private PayloadBuilder builder;
+	private PayloadBuilder fitted;
+	private int badge = 0;
+
+	@Setup
+	public void setUp() {
+		Alert alert = new Alert(NotificationBenchmark.ALERT);
+		alert.addLocKey("WIND_ALERT");
+		alert.addLocArgs(new String[] { "18", "26", "Crissy Field" });
+		payload = new Payload(new Aps(alert, 1, "default"));
+		payload.put("spot", 1234);
+
+		builder = new PayloadBuilder(NotificationBenchmark.ALERT).addLocKey("WIND_ALERT")
+				.addLocArgs("18", "26", "Crissy Field").addBadge(1).addSound("default").addCustom("spot", 1234);
+
+		StringBuilder forecast = new StringBuilder();
+		while (forecast.length() < 1000) {
+			forecast.append(NotificationBenchmark.ALERT).append(", \u00e9l\u00e8vement de la houle. ");
+		}
+		fitted = new PayloadBuilder(forecast.toString()).addBadge(1).addSound("default")
+				.setFitSize(Notification.MAX_NOTIFICATION_SIZE);
+	}
+
+	@Benchmark
+	public byte[] jsonSimple() throws UnsupportedEncodingException {
+		return JSONValue.toJSONString(payload).getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public byte[] jsonWriter() {
+		return new JsonWriter().value(payload).toByteArray();
+	}
+
+	@Benchmark
+	public byte[] payloadBuilder() {
+		return builder.addBadge(badge++ & 0xff).encoded();
+	}
+
+	@Benchmark
+	public byte[] payloadBuilderFitted() {
+		return fitted.addBadge(badge++ & 0xff).encoded();
+	}
+}
@@ -0,0 +1,186 @@
+package com.weatherflow.japns;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Sizes the writes of a pipelined connection and paces its notifications, backing off when the APN service rejects
+ * notifications, drops the connection or stops reading.  Every notification written after a rejected one has to be
+ * resent over a new connection, so while rejections are frequent smaller writes at a lower rate send more
+ * notifications that stay sent.  The write size and rate are cut in half on each of those signals and grow back by a
+ * fixed step on every write that completes without one, between a floor and a ceiling (additive increase,
+ * multiplicative decrease).</p>
+ * <br>
+ * <p>A write is a sign of congestion when it takes much longer per byte than the fastest writes seen, which means the
+ * socket buffer is full because the APN service is reading slower than notifications are sent.  The rate is enforced
+ * with a token bucket holding a tenth of a second of notifications.</p>
+ * <br>
+ * <p>Not thread safe, the owner must synchronize.</p>
+ */
+final class AdaptivePacer {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.AdaptivePacer");
+
+	// Steps from the floor to the ceiling
+	private static final int STEPS = 32;
+	// Signals closer together than this are taken as one, so a burst of them does not collapse the rate
+	private static final long DECREASE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+	// A write slower per byte than this many times the fastest writes is congestion
+	private static final int SLOW_WRITE_FACTOR = 4;
+	// Writes shorter than this are never congestion, however slow per byte
+	private static final long SLOW_WRITE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	// Seconds of notifications the token bucket holds
+	private static final double BURST_SECONDS = 0.1;
+
+	private final int minBatchSize;
+	private final int maxBatchSize;
+	private final int minRate;
+	private final int maxRate;
+
+	private int batchSize;
+	private double rate;
+	private double tokens;
+	private long refilled = System.nanoTime();
+	private long lastDecrease = 0;
+	// Fastest write seen in nanoseconds per byte, slowly forgotten so a change of network is picked up
+	private double fastestWrite = Double.MAX_VALUE;
+
+	/**
+	 * Constructs an AdaptivePacer that starts at its ceilings
+	 * @param minBatchSize Smallest write in bytes
+	 * @param maxBatchSize Largest write in bytes, at most NotificationService.CAPACITY
+	 * @param minRate Lowest rate in notifications per second
+	 * @param maxRate Highest rate in notifications per second, or 0 to only adapt the write size
+	 */
+	AdaptivePacer(int minBatchSize, int maxBatchSize, int minRate, int maxRate) {
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = maxBatchSize;
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.batchSize = maxBatchSize;
+		this.rate = maxRate;
+		this.tokens = burst();
+	}
+
+	/**
+	 * @return A new pacer with the same floors and ceilings, starting at the ceilings
+	 */
+	AdaptivePacer copy() {
+		return new AdaptivePacer(minBatchSize, maxBatchSize, minRate, maxRate);
+	}
+
+	/**
+	 * @return Number of bytes written at once
+	 */
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return Notifications per second, or 0 if the rate is not limited
+	 */
+	double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Gets the number of notifications that may be written now
+	 * @param wanted Number of notifications waiting
+	 * @return Up to wanted, 0 if none may be written yet
+	 */
+	int permits(int wanted) {
+		if (maxRate == 0) {
+			return wanted;
+		}
+		refill();
+		return (int) Math.min(wanted, Math.max(tokens, 0));
+	}
+
+	/**
+	 * @return Milliseconds until a notification may be written, at least 1
+	 */
+	long delay() {
+		if (maxRate == 0) {
+			return 1;
+		}
+		refill();
+		return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / rate));
+	}
+
+	/**
+	 * Takes notifications that were written out of the bucket.  Notifications that skipped the pacing, such as urgent
+	 * ones, are taken as well so they slow the paced ones down.
+	 * @param notifications Number of notifications written
+	 */
+	void consumed(int notifications) {
+		if (maxRate != 0) {
+			refill();
+			tokens -= notifications;
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst(), tokens + rate * (now - refilled) / 1e9);
+		refilled = now;
+	}
+
+	private double burst() {
+		return Math.max(1, rate * BURST_SECONDS);
+	}
+
+	/**
+	 * Records a completed write and grows the write size and rate, unless the write was slow enough to show
+	 * congestion.
+	 * @param bytes Number of bytes written
+	 * @param nanos Time the write took
+	 */
+	void written(int bytes, long nanos) {
+		if (bytes == 0) {
+			return;
+		}
+		double perByte = (double) nanos / bytes;
+		if (nanos > SLOW_WRITE_NANOS && perByte > SLOW_WRITE_FACTOR * fastestWrite) {
+			decrease("Slow write of " + bytes + " bytes in " + TimeUnit.NANOSECONDS.toMicros(nanos) + "us");
+			return;
+		}
+		fastestWrite = Math.min(fastestWrite * 1.01, perByte);
+
+		batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, (maxBatchSize - minBatchSize) / STEPS));
+		if (maxRate != 0) {
+			rate = Math.min(maxRate, rate + Math.max(1, (maxRate - minRate) / STEPS));
+		}
+	}
+
+	/**
+	 * Records an error-response
+	 * @param status Status of the error-response
+	 */
+	void rejected(int status) {
+		decrease("Error-response " + status);
+	}
+
+	/**
+	 * Records a connection that ended without an error-response
+	 */
+	void disconnected() {
+		decrease("Connection lost");
+	}
+
+	private void decrease(String reason) {
+		long now = System.nanoTime();
+		if (lastDecrease != 0 && now - lastDecrease < DECREASE_INTERVAL) {
+			return;
+		}
+		lastDecrease = now;
+		batchSize = Math.max(minBatchSize, batchSize / 2);
+		if (maxRate != 0) {
+			refill();
+			rate = Math.max(minRate, rate / 2);
+			tokens = Math.min(tokens, burst());
+		}
+		if (log.isDebugEnabled()) {
+			log.debug(reason + ", writing " + batchSize + " bytes at a time at " + (long) rate + " notifications per second");
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.weatherflow.japns;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A pool of equally sized heap buffers that notification frames are encoded into.  Reusing the buffers keeps the
+ * send path from allocating a new batch buffer for every call.  Buffers are backed by an array so they can be written to
+ * a socket stream without copying.</p>
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Constructs a BufferPool
+	 * @param bufferSize Capacity of each buffer
+	 * @param maxPooled Maximum number of idle buffers kept for reuse
+	 */
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating one if the pool is empty
+	 * @return A big-endian buffer ready to be written to
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(bufferSize);
+			buffer.order(ByteOrder.BIG_ENDIAN);
+		} else {
+			pooled.decrementAndGet();
+			buffer.clear();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool.  The buffer must not be used after it has been released.
+	 * @param buffer Buffer taken from acquire
+	 */
+	void release(ByteBuffer buffer) {
+		if (buffer.capacity() != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maxPooled) {
+			buffers.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+}
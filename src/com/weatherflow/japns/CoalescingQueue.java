@@ -0,0 +1,232 @@
+package com.weatherflow.japns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Collects notifications queued one at a time and sends them in batches.  A batch is sent when it reaches the batch
+ * size or when the oldest queued notification has waited for the linger time, whichever comes first.</p>
+ *
+ * <p>The queue is a bounded array that producers claim slots in with a compare-and-set, so any number of threads can
+ * queue notifications without taking a lock.  A single flusher thread takes them out.  Producers block while the queue
+ * is full.</p>
+ */
+class CoalescingQueue implements Runnable {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.CoalescingQueue");
+
+	// How long a producer backs off when the queue is full
+	private static final long FULL_BACKOFF = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final NotificationService service;
+	private final int batchSize;
+	private final long lingerNanos;
+
+	private final int mask;
+	private final AtomicReferenceArray<Notification> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong enqueuePosition = new AtomicLong();
+	private volatile long dequeuePosition = 0;
+	private volatile long sentPosition = 0;
+
+	private final Thread flusher;
+	// Number of queued notifications the parked flusher is waiting for, 0 when it is not parked
+	private volatile int waitingFor = 0;
+	// Position up to which a flush asked for the queue to be sent without lingering
+	private volatile long flushPosition = 0;
+	private volatile boolean running = true;
+
+	/**
+	 * Constructs a CoalescingQueue and starts the flusher thread
+	 * @param service Service the batches are sent with
+	 * @param capacity Maximum number of queued notifications, rounded up to a power of two
+	 * @param batchSize Number of notifications that are sent without waiting for the linger time
+	 * @param lingerMillis Maximum time a notification waits for a batch to fill
+	 */
+	CoalescingQueue(NotificationService service, int capacity, int batchSize, long lingerMillis) {
+		int size = Integer.highestOneBit(Math.max(capacity, batchSize) - 1) << 1;
+		this.service = service;
+		this.batchSize = batchSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<Notification>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+
+		flusher = new Thread(this, "japns-queue-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Queues a notification, blocking while the queue is full
+	 * @param notification Notification to send
+	 */
+	void put(Notification notification) {
+		if (!running) {
+			throw new IllegalStateException("Queue is closed");
+		}
+		while (!offer(notification)) {
+			LockSupport.parkNanos(FULL_BACKOFF);
+		}
+	}
+
+	/**
+	 * Queues a notification if there is room
+	 * @param notification Notification to send
+	 * @return False if the queue is full
+	 */
+	boolean offer(Notification notification) {
+		long position;
+		int index;
+		while (true) {
+			position = enqueuePosition.get();
+			index = (int) position & mask;
+			long available = sequences.get(index) - position;
+			if (available < 0) {
+				return false; // Slot has not been taken out by the flusher yet
+			}
+			if (available == 0 && enqueuePosition.compareAndSet(position, position + 1)) {
+				break;
+			}
+		}
+
+		slots.set(index, notification);
+		sequences.set(index, position + 1);
+
+		int wanted = waitingFor;
+		if (wanted > 0 && position + 1 - dequeuePosition >= wanted) {
+			LockSupport.unpark(flusher);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends everything queued before the call and waits until it has been written
+	 */
+	void flush() {
+		long target = enqueuePosition.get();
+		synchronized (this) {
+			if (target > flushPosition) {
+				flushPosition = target;
+			}
+		}
+		LockSupport.unpark(flusher);
+
+		synchronized (this) {
+			try {
+				while (sentPosition < target && flusher.isAlive()) {
+					wait(100);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Sends everything queued and stops the flusher thread
+	 */
+	void close() {
+		flush();
+		running = false;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int size() {
+		return (int) (enqueuePosition.get() - dequeuePosition);
+	}
+
+	/**
+	 * @return True until the flusher has taken out everything queued before the last flush
+	 */
+	private boolean flushRequested() {
+		return flushPosition > dequeuePosition;
+	}
+
+	public void run() {
+		List<Notification> batch = new ArrayList<Notification>(batchSize);
+
+		while (running || size() > 0) {
+			if (size() == 0) {
+				park(1, 0);
+				continue;
+			}
+
+			// Linger until the batch is full, unless a flush was asked for
+			long deadline = System.nanoTime() + lingerNanos;
+			long remaining;
+			while (!flushRequested() && running && size() < batchSize && (remaining = deadline - System.nanoTime()) > 0) {
+				park(batchSize, remaining);
+			}
+
+			do {
+				take(batch);
+				send(batch);
+				batch.clear();
+			} while ((flushRequested() || !running) && size() > 0);
+		}
+	}
+
+	/**
+	 * Parks the flusher until the queue holds the wanted number of notifications.
+	 */
+	private void park(int wanted, long nanos) {
+		waitingFor = wanted;
+		if (size() < wanted && !flushRequested() && running) {
+			if (nanos > 0) {
+				LockSupport.parkNanos(this, nanos);
+			} else {
+				LockSupport.park(this);
+			}
+		}
+		waitingFor = 0;
+	}
+
+	private void take(List<Notification> batch) {
+		long position = dequeuePosition;
+		while (batch.size() < batchSize) {
+			int index = (int) position & mask;
+			if (sequences.get(index) != position + 1) {
+				break; // Empty, or a producer has claimed the slot but not filled it yet
+			}
+			batch.add(slots.get(index));
+			slots.set(index, null);
+			sequences.set(index, position + mask + 1);
+			position++;
+		}
+		dequeuePosition = position;
+	}
+
+	private void send(List<Notification> batch) {
+		if (batch.size() > 0) {
+			try {
+				service.sendNotifications(batch);
+			} catch (InvalidNotificationException e) {
+				// The rest of the batch has been sent
+				log.error("Dropped invalid queued notification: " + e.getMessage());
+			} catch (RuntimeException e) {
+				log.error("Could not send " + batch.size() + " queued notifications", e);
+			}
+		}
+
+		synchronized (this) {
+			sentPosition = dequeuePosition;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.weatherflow.japns;
+
+/**
+ * <p>When a connection to the APN gateway is retired before it is used again, and whether a standby connection is kept
+ * handshaked in the background to take its place.  A connection that sat idle may have been dropped by a firewall or
+ * the APN service without the socket noticing, and the first write to it is then lost.  Retiring it first, and
+ * swapping in a standby, keeps the TLS handshake off the send path.</p>
+ */
+final class ConnectionHealth {
+	/**
+	 * Connections are only replaced once they are found closed, and no standby is kept
+	 */
+	static final ConnectionHealth DEFAULT = new ConnectionHealth(0, 0, false);
+
+	private final long idleTimeout;
+	private final long maxAge;
+	private final boolean standby;
+
+	/**
+	 * Constructs a ConnectionHealth
+	 * @param idleTimeout Milliseconds a connection may go without a write, 0 for no limit
+	 * @param maxAge Milliseconds a connection is used for after its handshake, 0 for no limit
+	 * @param standby True to keep a standby connection
+	 */
+	ConnectionHealth(long idleTimeout, long maxAge, boolean standby) {
+		this.idleTimeout = idleTimeout;
+		this.maxAge = maxAge;
+		this.standby = standby;
+	}
+
+	/**
+	 * @return True if a standby connection is kept
+	 */
+	boolean isStandby() {
+		return standby;
+	}
+
+	/**
+	 * Checks whether a connection should be retired
+	 * @param opened Time the connection was handshaked, in milliseconds
+	 * @param lastUsed Time the connection was last written to, in milliseconds
+	 * @param now Current time in milliseconds
+	 * @return Why the connection should be retired, or null if it can still be used
+	 */
+	String expired(long opened, long lastUsed, long now) {
+		if (maxAge > 0 && now - opened >= maxAge) {
+			return "is older than " + maxAge + "ms";
+		}
+		if (idleTimeout > 0 && now - Math.max(opened, lastUsed) >= idleTimeout) {
+			return "was idle for more than " + idleTimeout + "ms";
+		}
+		return null;
+	}
+}
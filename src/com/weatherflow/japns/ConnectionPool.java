@@ -0,0 +1,199 @@
+package com.weatherflow.japns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A fixed set of pipelined connections to the APN service that share one SSLContext.  Notifications are assigned to a
+ * connection by hashing the device token, so notifications for a device are always sent in order over the same
+ * connection while the load is spread over every connection.  Each connection recovers from error-responses on its
+ * own, a rejected token only stalls the connection it was sent on.</p>
+ */
+class ConnectionPool {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.ConnectionPool");
+
+	private final PipelinedConnection[] connections;
+	private final ExecutorService executor;
+	private final ExecutorService urgentExecutor;
+	private final ExecutorService closeExecutor;
+	// False when the executors are shared with other pools and outlive this one
+	private final boolean ownExecutors;
+
+	/**
+	 * Constructs a ConnectionPool
+	 * @param connector Connector whose SSLContext, host and ConnectionHealth are used for every connection
+	 * @param transport Transport driving the connections, or null to use a blocking socket and reader thread each
+	 * @param size Number of connections
+	 * @param maxPayloadSize Largest payload accepted, in bytes
+	 * @param metrics Metrics the notifications are recorded in
+	 * @param listener Listener notified of rejected notifications
+	 * @param pacing Pacer each connection gets a copy of, or null to send as fast as the connections take notifications
+	 * @param executors Executors for bulk sends, urgent sends and closing connections shared with other pools, or null 
+	 * for threads of its own
+	 */
+	ConnectionPool(Connector connector, NioTransport transport, int size, int maxPayloadSize, NotificationMetrics metrics, 
+			ErrorListener listener, AdaptivePacer pacing, ExecutorService[] executors) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		}
+
+		GatewayLink.Factory factory;
+		if (transport != null) {
+			factory = NioGatewayLink.factory(transport, connector);
+		} else {
+			factory = SocketLink.factory(connector);
+		}
+
+		ConnectionHealth health = connector.getHealth();
+		connections = new PipelinedConnection[size];
+		for (int i = 0; i < size; i++) {
+			connections[i] = new PipelinedConnection(factory, maxPayloadSize, metrics, listener, pacing != null ? pacing.copy() : null,
+					health);
+		}
+
+		ownExecutors = executors == null;
+		if (size == 1) {
+			executor = null;
+			urgentExecutor = null;
+			closeExecutor = null;
+		} else if (executors != null) {
+			// Closes wait for late error-responses, so they must not hold up the sends of other pools
+			executor = executors[0];
+			urgentExecutor = executors[1];
+			closeExecutor = executors[2];
+		} else {
+			executor = Executors.newFixedThreadPool(size, NioTransport.daemonThreads("japns-pool-"));
+			urgentExecutor = Executors.newFixedThreadPool(size, NioTransport.daemonThreads("japns-pool-urgent-"));
+			closeExecutor = executor;
+		}
+	}
+
+	/**
+	 * @return Number of connections in the pool
+	 */
+	int size() {
+		return connections.length;
+	}
+
+	/**
+	 * Selects the connection a device token is sent over
+	 * @param token Device token, null for an invalid token
+	 * @return Index of the connection
+	 */
+	int shard(DeviceToken token) {
+		if (token == null) {
+			return 0;
+		}
+		int h = token.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % connections.length;
+	}
+
+	/**
+	 * Splits the notifications by device token and writes each share over its own connection in parallel.  Urgent 
+	 * notifications are handed to threads of their own, so they do not wait for threads busy with bulk sends.
+	 * @param notifications Notifications to send
+	 * @param urgent True to write the notifications ahead of bulk sends in progress
+	 * @throws InvalidNotificationException If a notification cannot be encoded.  Notifications on other connections may
+	 * have been sent.
+	 */
+	void send(List<Notification> notifications, final boolean urgent) throws InvalidNotificationException {
+		if (connections.length == 1) {
+			connections[0].send(notifications, urgent);
+			return;
+		}
+
+		List<List<Notification>> shards = new ArrayList<List<Notification>>(connections.length);
+		for (int i = 0; i < connections.length; i++) {
+			shards.add(new ArrayList<Notification>());
+		}
+		for (Notification notification : notifications) {
+			shards.get(shard(notification.getDeviceToken())).add(notification);
+		}
+
+		List<Future<Void>> results = new ArrayList<Future<Void>>(connections.length);
+		for (int i = 0; i < connections.length; i++) {
+			final PipelinedConnection connection = connections[i];
+			final List<Notification> shard = shards.get(i);
+			if (shard.size() == 0) {
+				continue;
+			}
+			if (shard.size() == notifications.size()) {
+				connection.send(shard, urgent); // Everything hashed to one connection, no need to hand off
+				return;
+			}
+
+			results.add((urgent ? urgentExecutor : executor).submit(new Callable<Void>() {
+				public Void call() throws InvalidNotificationException {
+					connection.send(shard, urgent);
+					return null;
+				}
+			}));
+		}
+
+		await(results);
+	}
+
+	/**
+	 * Closes every connection, waiting for late error-responses on all of them at the same time.
+	 */
+	void close() {
+		if (executor == null) {
+			connections[0].close();
+			return;
+		}
+
+		List<Future<Void>> results = new ArrayList<Future<Void>>(connections.length);
+		for (final PipelinedConnection connection : connections) {
+			results.add(closeExecutor.submit(new Callable<Void>() {
+				public Void call() {
+					connection.close();
+					return null;
+				}
+			}));
+		}
+
+		try {
+			await(results);
+		} catch (InvalidNotificationException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (ownExecutors) {
+				executor.shutdown();
+				urgentExecutor.shutdown();
+			}
+		}
+	}
+
+	private void await(List<Future<Void>> results) throws InvalidNotificationException {
+		Throwable failure = null;
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				log.debug("Connection failed to send notifications", e.getCause());
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+
+		if (failure instanceof InvalidNotificationException) {
+			throw (InvalidNotificationException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure != null) {
+			throw new RuntimeException(failure);
+		}
+	}
+}
@@ -1,18 +1,11 @@
 package com.weatherflow.japns;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
-
-import javax.net.ssl.KeyManagerFactory;
+import java.net.SocketTimeoutException;
+
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -34,56 +27,120 @@ public class Connector {
 	public static final String DEV_APNS_HOST = "gateway.sandbox.push.apple.com:2195";
 	public static final String DEV_FEEDBACK_HOST = "feedback.sandbox.push.apple.com:2196";
 
+	public static final String HTTP2_HOST = "api.push.apple.com:443";
+	public static final String DEV_HTTP2_HOST = "api.sandbox.push.apple.com:443";
+
+	// How long a read waits when checking whether the APN service closed the connection
+	private static final int PROBE_TIMEOUT = 1;
+	// Connections a read timed out on more recently than this are not checked
+	private static final long PROBE_INTERVAL = 1000;
+	// How long to wait for the rest of an error-response found while checking
+	private static final int ERROR_RESPONSE_TIMEOUT = 100;
+	// How long after a standby connection could not be opened before trying again
+	private static final long STANDBY_RETRY = 5000;
+
 	private SSLSocket apnsSocket;
+	private long opened;
+	private long lastUsed;
+	// Last time the connection was known to be open, and an error-response found while checking it
+	private long lastAlive;
+	private ErrorResponse pendingError = null;
+
+	private ConnectionHealth health = ConnectionHealth.DEFAULT;
+	// Guarded by this, the standby is opened on a thread of its own
+	private SSLSocket standby = null;
+	private long standbyOpened;
+	private boolean warming = false;
+	private long warmFailed = 0;
+	private int generation = 0;
 
 	private String host;
 	
-	private char[] keyPasswd;
-	private FileInputStream keyFile;
 	private SSLContext sslContext;
+	private final ConnectorMetrics metrics;
 
 	/**
-	 * Constructs a Connector object for connecting to APN services
+	 * Constructs a Connector object for connecting to APN services.  Connectors for the same key file and password share
+	 * one SSLContext, so the key file is only loaded once and TLS sessions are resumed across them.
 	 * @param keyFilename Name of p12 file 
 	 * @param keyPasswd Password of p12 file
 	 * @param host Host:port of APN service
 	 * @throws FileNotFoundException If keyFilename cannot be found
 	 */
 	protected Connector(String keyFilename, String keyPasswd, String host) throws FileNotFoundException {
-		this.keyPasswd = keyPasswd.toCharArray();
-		this.keyFile = new FileInputStream(keyFilename);
+		this(SSLContextCache.get(keyFilename, keyPasswd), host, new ConnectorMetrics());
+	}
+	
+	/**
+	 * Constructs a Connector object that shares an initialized SSLContext with other connectors
+	 * @param sslContext SSLContext initialized with the p12 key/cert
+	 * @param host Host:port of APN service
+	 */
+	protected Connector(SSLContext sslContext, String host) {
+		this(sslContext, host, new ConnectorMetrics());
+	}
+	
+	/**
+	 * Constructs a Connector object that shares an initialized SSLContext and its metrics with other connectors
+	 * @param sslContext SSLContext initialized with the p12 key/cert
+	 * @param host Host:port of APN service
+	 * @param metrics Metrics the connections are recorded in
+	 */
+	Connector(SSLContext sslContext, String host, ConnectorMetrics metrics) {
+		this.sslContext = sslContext;
 		this.host = host;
-
-		// Attempt to load the key/cert file
-		try {
-			log.debug("Getting keystore instance PKCS12");
-			KeyStore ks = KeyStore.getInstance("PKCS12");
-			log.debug("Loading keyfile");
-			ks.load(this.keyFile, this.keyPasswd);
-	
-			log.debug("Getting instance of KeyManagerFactory SunX509");
-			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-			keyManagerFactory.init(ks, this.keyPasswd);
-	
-			// Create the ssl connection using the provided key/cert
-			log.debug("Loading SSLContext");
-			sslContext = SSLContext.getInstance("TLS");
-			log.debug("Initalizing SSLContext");
-			sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
-		} catch (KeyStoreException e) {
-			throw new RuntimeException(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		} catch (CertificateException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (UnrecoverableKeyException e) {
-			throw new RuntimeException(e);
-		} catch (KeyManagementException e) {
-			throw new RuntimeException(e);
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Sets the cipher suites every connection prefers, ahead of the other suites the JRE enables by default.  Suites the
+	 * JRE does not support are left out.
+	 * @param cipherSuites Suites in order of preference, or null for AES-GCM suites, which are fastest on CPUs with AES 
+	 * instructions
+	 */
+	public static void setCipherSuites(String[] cipherSuites) {
+		SSLContextCache.setCipherSuites(cipherSuites);
+	}
+	
+	/**
+	 * @return the SSLContext used to open connections
+	 */
+	protected SSLContext getSSLContext() {
+		return sslContext;
+	}
+	
+	/**
+	 * @return Metrics of the connections opened by this connector
+	 */
+	protected ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return Host:port of APN service
+	 */
+	protected String getHost() {
+		return host;
+	}
+	
+	/**
+	 * @return When connections are retired and whether a standby is kept
+	 */
+	synchronized ConnectionHealth getHealth() {
+		return health;
+	}
+	
+	/**
+	 * Sets when the connection is retired and whether a standby is kept.  A standby that is no longer wanted is closed.
+	 * @param health When connections are retired and whether a standby is kept
+	 */
+	void setHealth(ConnectionHealth health) {
+		synchronized (this) {
+			this.health = health;
+		}
+		if (!health.isStandby()) {
+			closeStandby();
 		}
-		
 	}
 	
 	/**
@@ -107,41 +164,247 @@ public class Connector {
 	}
 	
 	/**
-	 * Connects to APN service.  Uses existing connection if available.
+	 * Connects to APN service.  Uses existing connection if available, unless the APN service closed it or it was idle
+	 * or in use for too long.  A new connection is taken from the standby when there is one.  An error-response the APN
+	 * service sent on the old connection is kept for takeError.
 	 * @return OutputStream to APN service
 	 */
 	protected SSLSocket connect() {
 		log.debug("Connecting to APNS");
+		ConnectionHealth health = getHealth();
+		long now = System.currentTimeMillis();
 		
-		if (this.apnsSocket == null || this.apnsSocket.isConnected() == false) {
-			log.debug("Opening new socket");
-			try  {
-				SSLSocketFactory factory = sslContext.getSocketFactory();
-	
-				String[] hostPort = this.host.split(":");
-				log.debug("Connecting to " + this.host);
-				apnsSocket = (SSLSocket) factory.createSocket(hostPort[0], Integer.parseInt(hostPort[1]));
-				apnsSocket.setTcpNoDelay(false);
-				
-				String[] suites = this.apnsSocket.getSupportedCipherSuites();
-				apnsSocket.setEnabledCipherSuites(suites);
-				
-
-				//	Connect to service
-				log.debug("Starting handshake");
-				apnsSocket.startHandshake();
-				
-			} catch (IOException e) {
-				log.error("Exception while trying to connect to APNS: make sure you're running Java <=1.6");
-				e.printStackTrace();
-				throw new RuntimeException(e);
+		if (this.apnsSocket != null) {
+			String reason = health.expired(opened, lastUsed, now);
+			if (reason == null && now - lastAlive >= PROBE_INTERVAL && isClosedByPeer(apnsSocket, true)) {
+				reason = "was closed by the APN service";
+			}
+			if (reason != null) {
+				log.info("Reconnecting, connection " + reason);
+				close();
+			} else {
+				log.debug("Using existing connection");
+			}
+		}
+		
+		if (this.apnsSocket == null) {
+			apnsSocket = takeStandby(health, now);
+			if (apnsSocket == null) {
+				log.debug("Opening new socket");
+				apnsSocket = open();
+				opened = System.currentTimeMillis();
+				lastAlive = opened;
+			} else {
+				log.debug("Using standby connection");
+			}
+			if (health.isStandby()) {
+				warm();
 			}
-		} else {
-			log.debug("Using existing connection");
 		}
 		
+		lastUsed = now;
 		return this.apnsSocket;
 	}
+	
+	/**
+	 * Opens a socket and finishes the handshake
+	 */
+	private SSLSocket open() {
+		long start = System.nanoTime();
+		try  {
+			SSLSocketFactory factory = sslContext.getSocketFactory();
+
+			String[] hostPort = this.host.split(":");
+			log.debug("Connecting to " + this.host);
+			SSLSocket socket = (SSLSocket) factory.createSocket(hostPort[0], Integer.parseInt(hostPort[1]));
+			socket.setTcpNoDelay(false);
+			
+			socket.setEnabledCipherSuites(SSLContextCache.cipherSuites(socket.getSupportedCipherSuites(), socket.getEnabledCipherSuites()));
+			
+
+			//	Connect to service
+			log.debug("Starting handshake");
+			socket.startHandshake();
+			metrics.connected(System.nanoTime() - start);
+			return socket;
+		} catch (IOException e) {
+			metrics.failed();
+			log.error("Exception while trying to connect to APNS: make sure you're running Java <=1.6");
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Checks whether the APN service closed the connection.  isConnected stays true once a socket has connected, so
+	 * the only way to find out is a read: one that times out means the connection is still open.  The APN service
+	 * sends nothing but an error-response before it closes the connection, so data also means the connection is done.
+	 * @param inUse True if notifications were sent over the connection, an error-response on it is kept for takeError
+	 */
+	private boolean isClosedByPeer(SSLSocket socket, boolean inUse) {
+		if (socket.isClosed()) {
+			return true;
+		}
+		try {
+			int timeout = socket.getSoTimeout();
+			socket.setSoTimeout(PROBE_TIMEOUT);
+			try {
+				InputStream in = socket.getInputStream();
+				int first = in.read();
+				if (first >= 0 && inUse) {
+					socket.setSoTimeout(ERROR_RESPONSE_TIMEOUT);
+					pendingError = readErrorResponse(first, in);
+				} else if (first >= 0) {
+					log.warn("Unexpected data on idle connection to APN service");
+				}
+				return true;
+			} finally {
+				socket.setSoTimeout(timeout);
+			}
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			log.debug("IOException while checking connection: " + e.getMessage());
+			return true;
+		}
+	}
+	
+	/**
+	 * Reads the rest of an error-response whose first byte was read
+	 * @return The error-response, or null if it was cut short
+	 */
+	private static ErrorResponse readErrorResponse(int first, InputStream in) throws IOException {
+		byte[] packet = new byte[ErrorResponse.LENGTH];
+		packet[0] = (byte) first;
+		int length = 1;
+		try {
+			while (length < packet.length) {
+				int read = in.read(packet, length, packet.length - length);
+				if (read < 0) {
+					break;
+				}
+				length += read;
+			}
+		} catch (SocketTimeoutException e) {
+			// Cut short, logged below
+		}
+		if (length < packet.length) {
+			log.warn("Connection to APN service closed in the middle of an error-response");
+			return null;
+		}
+		ErrorResponse error = ErrorResponse.parse(packet);
+		log.info("Received late error-response for notification: " + error.getIdentifier());
+		return error;
+	}
+	
+	/**
+	 * Records that a read from the connection just timed out, so it was open and nothing was waiting to be read.  The
+	 * next connect does not check it again if it comes soon after.
+	 */
+	void alive() {
+		lastAlive = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Takes the error-response the APN service sent on a connection connect found closed
+	 * @return The error-response, or null if there was none
+	 */
+	ErrorResponse takeError() {
+		ErrorResponse error = pendingError;
+		pendingError = null;
+		return error;
+	}
+	
+	/**
+	 * @return The standby connection if it is still usable, otherwise null
+	 */
+	private SSLSocket takeStandby(ConnectionHealth health, long now) {
+		SSLSocket socket;
+		long socketOpened;
+		synchronized (this) {
+			socket = standby;
+			socketOpened = standbyOpened;
+			standby = null;
+		}
+		if (socket == null) {
+			return null;
+		}
+		String reason = health.expired(socketOpened, socketOpened, now);
+		if (reason == null && isClosedByPeer(socket, false)) {
+			reason = "was closed by the APN service";
+		}
+		if (reason != null) {
+			log.info("Not using standby connection, it " + reason);
+			closeQuietly(socket);
+			return null;
+		}
+		opened = socketOpened;
+		lastAlive = now;
+		return socket;
+	}
+	
+	/**
+	 * Opens a standby connection on a thread of its own, unless there is one or it is being opened
+	 */
+	private void warm() {
+		final int current;
+		synchronized (this) {
+			if (standby != null || warming || System.currentTimeMillis() - warmFailed < STANDBY_RETRY) {
+				return;
+			}
+			warming = true;
+			current = generation;
+		}
+		
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				SSLSocket socket = null;
+				try {
+					socket = open();
+				} catch (RuntimeException e) {
+					log.warn("Could not open standby connection: " + e.getMessage());
+				}
+				synchronized (Connector.this) {
+					warming = false;
+					if (socket == null) {
+						warmFailed = System.currentTimeMillis();
+						return;
+					}
+					if (current == generation && standby == null) {
+						standby = socket;
+						standbyOpened = System.currentTimeMillis();
+						return;
+					}
+				}
+				closeQuietly(socket); // Connector was closed or the standby is no longer wanted
+			}
+		}, "japns-standby");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Closes the standby connection, and one that is being opened once it is ready
+	 */
+	void closeStandby() {
+		SSLSocket socket;
+		synchronized (this) {
+			socket = standby;
+			standby = null;
+			generation++;
+		}
+		if (socket != null) {
+			closeQuietly(socket);
+		}
+	}
+	
+	private static void closeQuietly(SSLSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.debug("IOException while closing connection: " + e.getMessage());
+		}
+	}
 
 	/**
 	 * Closes the connection to the APN service
@@ -0,0 +1,53 @@
+package com.weatherflow.japns;
+
+/**
+ * <p>Counts the connections a Connector opens and times their TCP connect and TLS handshake.  Connectors derived from
+ * another Connector, such as those of a connection pool, record into the same ConnectorMetrics.</p>
+ */
+public class ConnectorMetrics implements ConnectorMetricsMBean {
+	private final StripedCounter connections = new StripedCounter();
+	private final StripedCounter failures = new StripedCounter();
+	private final LatencyHistogram handshakeTime = new LatencyHistogram();
+
+	/**
+	 * Records a connection that was opened
+	 * @param nanos Time taken to connect and finish the handshake
+	 */
+	void connected(long nanos) {
+		connections.increment();
+		handshakeTime.record(nanos);
+	}
+
+	/**
+	 * Records a connection that could not be opened
+	 */
+	void failed() {
+		failures.increment();
+	}
+
+	public long getConnections() {
+		return connections.sum();
+	}
+
+	public long getConnectFailures() {
+		return failures.sum();
+	}
+
+	public double getHandshakeTimeMeanMicros() {
+		return handshakeTime.meanMicros();
+	}
+
+	public double getHandshakeTime99thPercentileMicros() {
+		return handshakeTime.percentileMicros(0.99);
+	}
+
+	public double getHandshakeTimeMaxMicros() {
+		return handshakeTime.maxMicros();
+	}
+
+	public void reset() {
+		connections.reset();
+		failures.reset();
+		handshakeTime.reset();
+	}
+}
@@ -0,0 +1,28 @@
+package com.weatherflow.japns;
+
+/**
+ * <p>JMX view of the connections opened by a Connector.  Times are in microseconds, percentiles are accurate to within
+ * a factor of two.</p>
+ */
+public interface ConnectorMetricsMBean {
+	/**
+	 * @return Connections opened, the first one and every reconnect
+	 */
+	long getConnections();
+
+	/**
+	 * @return Connections that could not be opened
+	 */
+	long getConnectFailures();
+
+	double getHandshakeTimeMeanMicros();
+
+	double getHandshakeTime99thPercentileMicros();
+
+	double getHandshakeTimeMaxMicros();
+
+	/**
+	 * Sets every counter back to zero
+	 */
+	void reset();
+}
@@ -0,0 +1,201 @@
+package com.weatherflow.japns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>An immutable 32 byte device token.  The token is decoded from hex once, when it is created, and kept as four longs,
+ * so it takes a fraction of the memory of the hex string and can be written to a frame without decoding it again.
+ * Tokens are equal when their bytes are equal, whatever case or spacing the hex was written in.</p>
+ */
+public final class DeviceToken {
+	public static final int LENGTH = 32;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final int[] HEX_VALUES = new int['f' + 1];
+	static {
+		Arrays.fill(HEX_VALUES, -1);
+		for (int i = 0; i < 10; i++) {
+			HEX_VALUES['0' + i] = i;
+		}
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a' + i] = 10 + i;
+			HEX_VALUES['A' + i] = 10 + i;
+		}
+	}
+
+	private final long word0;
+	private final long word1;
+	private final long word2;
+	private final long word3;
+
+	private DeviceToken(long word0, long word1, long word2, long word3) {
+		this.word0 = word0;
+		this.word1 = word1;
+		this.word2 = word2;
+		this.word3 = word3;
+	}
+
+	/**
+	 * Decodes a token written in hex, as in "00000000 11111111 22222222 ...".  Spaces are ignored.
+	 * @param hex 64 hex digits
+	 * @return The token
+	 * @throws IllegalArgumentException If hex is not 64 hex digits
+	 */
+	public static DeviceToken parse(String hex) {
+		long[] words = new long[LENGTH / 8];
+		int digits = 0;
+		for (int i = 0; i < hex.length(); i++) {
+			char c = hex.charAt(i);
+			if (c == ' ') {
+				continue;
+			}
+			int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+			if (value < 0) {
+				throw new IllegalArgumentException("Device token is not hexadecimal: " + hex);
+			}
+			if (digits == 2 * LENGTH) {
+				throw new IllegalArgumentException("Device token is longer than " + LENGTH + " bytes: " + hex);
+			}
+			words[digits >>> 4] = (words[digits >>> 4] << 4) | value;
+			digits++;
+		}
+		if (digits != 2 * LENGTH) {
+			throw new IllegalArgumentException("Device token is shorter than " + LENGTH + " bytes: " + hex);
+		}
+		return new DeviceToken(words[0], words[1], words[2], words[3]);
+	}
+
+	/**
+	 * Decodes a token written in ASCII hex, as in "00000000 11111111 22222222 ...", without decoding it to a String first.  
+	 * Spaces are ignored.
+	 * @param hex Buffer whose remaining bytes are 64 hex digits, its position is not changed
+	 * @return The token
+	 * @throws IllegalArgumentException If the remaining bytes are not 64 hex digits
+	 */
+	public static DeviceToken parse(ByteBuffer hex) {
+		long[] words = new long[LENGTH / 8];
+		int digits = 0;
+		for (int i = hex.position(); i < hex.limit(); i++) {
+			int c = hex.get(i) & 0xff;
+			if (c == ' ') {
+				continue;
+			}
+			int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+			if (value < 0 || digits == 2 * LENGTH) {
+				return parse(ascii(hex)); // Throws with the reason
+			}
+			words[digits >>> 4] = (words[digits >>> 4] << 4) | value;
+			digits++;
+		}
+		if (digits != 2 * LENGTH) {
+			return parse(ascii(hex));
+		}
+		return new DeviceToken(words[0], words[1], words[2], words[3]);
+	}
+	
+	private static String ascii(ByteBuffer bytes) {
+		StringBuilder text = new StringBuilder(bytes.remaining());
+		for (int i = bytes.position(); i < bytes.limit(); i++) {
+			text.append((char) (bytes.get(i) & 0xff));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Creates a token from its binary form
+	 * @param bytes 32 bytes
+	 * @return The token
+	 * @throws IllegalArgumentException If bytes is not 32 bytes long
+	 */
+	public static DeviceToken valueOf(byte[] bytes) {
+		if (bytes.length != LENGTH) {
+			throw new IllegalArgumentException("Device token must be " + LENGTH + " bytes, not " + bytes.length);
+		}
+		return read(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Reads a token in its binary form
+	 * @param buffer Big-endian buffer holding at least 32 bytes
+	 * @return The token
+	 */
+	public static DeviceToken read(ByteBuffer buffer) {
+		return new DeviceToken(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+	}
+
+	/**
+	 * Writes the token in its binary form
+	 * @param buffer Big-endian buffer the 32 bytes are written to
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putLong(word0);
+		buffer.putLong(word1);
+		buffer.putLong(word2);
+		buffer.putLong(word3);
+	}
+
+	/**
+	 * @param index 0 to 3
+	 * @return The 8 bytes of the token at index * 8, big-endian
+	 */
+	long word(int index) {
+		switch (index) {
+		case 0:
+			return word0;
+		case 1:
+			return word1;
+		case 2:
+			return word2;
+		default:
+			return word3;
+		}
+	}
+
+	/**
+	 * @return The 32 bytes of the token
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[LENGTH];
+		writeTo(ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof DeviceToken)) {
+			return false;
+		}
+		DeviceToken other = (DeviceToken) o;
+		return word0 == other.word0 && word1 == other.word1 && word2 == other.word2 && word3 == other.word3;
+	}
+
+	public int hashCode() {
+		long h = word0;
+		h = 31 * h + word1;
+		h = 31 * h + word2;
+		h = 31 * h + word3;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @return The token as 64 lower case hex digits
+	 */
+	public String toString() {
+		char[] hex = new char[2 * LENGTH];
+		appendHex(hex, 0, word0);
+		appendHex(hex, 16, word1);
+		appendHex(hex, 32, word2);
+		appendHex(hex, 48, word3);
+		return new String(hex);
+	}
+
+	private static void appendHex(char[] hex, int offset, long word) {
+		for (int i = 15; i >= 0; i--) {
+			hex[offset + i] = HEX_DIGITS[(int) word & 0xf];
+			word >>>= 4;
+		}
+	}
+}
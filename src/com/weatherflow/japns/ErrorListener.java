@@ -0,0 +1,16 @@
+package com.weatherflow.japns;
+
+/**
+ * <p>Receives the notifications rejected by the APN service.  When notifications are pipelined the rejection arrives
+ * asynchronously, after the call that sent the notification has returned, so it is reported through this listener.</p>
+ *
+ * <p>Listeners are called from the thread reading error-responses and should return quickly.</p>
+ */
+public interface ErrorListener {
+	/**
+	 * Called when the APN service rejects a notification
+	 * @param notification The rejected notification, or null if it is no longer known
+	 * @param error The error-response sent by the APN service
+	 */
+	void notificationFailed(Notification notification, ErrorResponse error);
+}
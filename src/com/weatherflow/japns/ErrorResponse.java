@@ -0,0 +1,115 @@
+package com.weatherflow.japns;
+
+/**
+ * <p>An error-response packet returned by the APN service when it rejects a notification.  The packet is 6 bytes long:
+ * the command (8), a status code and the identifier of the rejected notification.  The APN service closes the connection
+ * after sending an error-response, so every notification sent after the rejected one must be sent again.</p>
+ * <br>
+ * <a href="https://developer.apple.com/library/ios/documentation/NetworkingInternet/Conceptual/RemoteNotificationsPG/Chapters/CommunicatingWIthAPS.html">See the APNS binary interface documentation for additional information.</a>
+ */
+public class ErrorResponse {
+	public static final byte COMMAND = 8;
+	public static final int LENGTH = 6;
+
+	public static final int NO_ERROR = 0;
+	public static final int PROCESSING_ERROR = 1;
+	public static final int MISSING_DEVICE_TOKEN = 2;
+	public static final int MISSING_TOPIC = 3;
+	public static final int MISSING_PAYLOAD = 4;
+	public static final int INVALID_TOKEN_SIZE = 5;
+	public static final int INVALID_TOPIC_SIZE = 6;
+	public static final int INVALID_PAYLOAD_SIZE = 7;
+	public static final int INVALID_TOKEN = 8;
+	public static final int SHUTDOWN = 10;
+	public static final int UNKNOWN = 255;
+
+	private int status;
+	private int identifier;
+	private String reason;
+
+	/**
+	 * Constructs an ErrorResponse
+	 * @param status Status code reported by the APN service
+	 * @param identifier Identifier of the rejected notification
+	 */
+	public ErrorResponse(int status, int identifier) {
+		this(status, identifier, null);
+	}
+
+	/**
+	 * Constructs an ErrorResponse for a notification rejected by the HTTP/2 provider API
+	 * @param status Closest binary interface status code
+	 * @param identifier Identifier of the rejected notification
+	 * @param reason Reason given by the provider API, for example BadDeviceToken
+	 */
+	public ErrorResponse(int status, int identifier, String reason) {
+		this.status = status;
+		this.identifier = identifier;
+		this.reason = reason;
+	}
+
+	/**
+	 * Decodes an error-response packet
+	 * @param packet The 6 bytes read from the APN service
+	 * @return The decoded error-response
+	 */
+	public static ErrorResponse parse(byte[] packet) {
+		assert(packet[0] == COMMAND);
+
+		int identifier = ((packet[2] & 0xff) << 24) | ((packet[3] & 0xff) << 16) | ((packet[4] & 0xff) << 8) | (packet[5] & 0xff);
+		return new ErrorResponse(packet[1] & 0xff, identifier);
+	}
+
+	/**
+	 * Gets the description of an error-response status code
+	 * @param status Status code reported by the APN service
+	 * @return Human readable description of the status code
+	 */
+	public static String getMessage(int status) {
+		switch (status) {
+			case NO_ERROR: return "Success";
+			case PROCESSING_ERROR: return "Processing error";
+			case MISSING_DEVICE_TOKEN: return "Missing device Token";
+			case MISSING_TOPIC: return "Missing Topic";
+			case MISSING_PAYLOAD: return "Missing Payload";
+			case INVALID_TOKEN_SIZE: return "Invalid token size";
+			case INVALID_TOPIC_SIZE: return "Invalid topic size";
+			case INVALID_PAYLOAD_SIZE: return "Invalid playload size";
+			case INVALID_TOKEN: return "Invalid token";
+			case SHUTDOWN: return "Shutdown";
+			default: return "Unknown error";
+		}
+	}
+
+	/**
+	 * @return the status code
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the identifier of the rejected notification
+	 */
+	public int getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * @return the reason given by the HTTP/2 provider API, or null for the binary interface
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * @return The reason given by the provider API, or a human readable description of the status code
+	 */
+	public String getMessage() {
+		return reason != null ? reason : getMessage(status);
+	}
+
+	public String toString() {
+		return getMessage() + " (" + status + ") for notification " + identifier;
+	}
+}
@@ -12,35 +12,34 @@ import java.util.Date;
  */
 public class FailedDevice {
 	private Date failedTimestamp;
-	private String deviceToken;
+	private DeviceToken deviceToken;
 	
 	/**
 	 * Constructs a FailedDevice object
 	 * @param failedTimestamp Timestamp when device became unvalid
 	 * @param deviceToken token ID
 	 */
-	public FailedDevice(Date failedTimestamp, String deviceToken) {
+	public FailedDevice(Date failedTimestamp, DeviceToken deviceToken) {
 		this.failedTimestamp = failedTimestamp;
 		this.deviceToken = deviceToken;
 	}
 	
+	/**
+	 * Constructs a FailedDevice object
+	 * @param failedTimestamp Timestamp when device became unvalid
+	 * @param deviceToken token ID in hex
+	 */
+	public FailedDevice(Date failedTimestamp, String deviceToken) {
+		this(failedTimestamp, DeviceToken.parse(deviceToken));
+	}
+	
 	/**
 	 * Constructs a FailedDevice object
 	 * @param failedTimestamp Reported timestamp of failed device
 	 * @param deviceToken binary device token ID
 	 */
 	public FailedDevice(Date failedTimestamp, byte[] deviceToken) {
-		StringBuilder dt = new StringBuilder();
-		
-		this.failedTimestamp = failedTimestamp;
-		for (int i = 0; i < deviceToken.length; i++) {
-			if ((i % 8) == 0) {
-				dt.append(" ");
-			}
-			dt.append(java.lang.Integer.toHexString((int)deviceToken[i] & 0xFF));
-		}
-		
-		this.deviceToken = dt.toString();
+		this(failedTimestamp, DeviceToken.valueOf(deviceToken));
 	}
 
 	/**
@@ -53,7 +52,7 @@ public class FailedDevice {
 	/**
 	 * @return the deviceToken
 	 */
-	public String getDeviceToken() {
+	public DeviceToken getDeviceToken() {
 		return deviceToken;
 	}
 	
@@ -0,0 +1,74 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * <p>Decodes the records of the feedback service from data as it arrives, in pieces of any size.  A record is a 4 byte
+ * timestamp in seconds, a 2 byte token length and the 32 byte token.  Whole records are decoded in place, only a record
+ * split between two pieces is copied.</p>
+ */
+final class FeedbackDecoder {
+	static final int RECORD_LENGTH = 4 + 2 + DeviceToken.LENGTH;
+
+	private final FeedbackListener listener;
+	private final ByteBuffer partial = ByteBuffer.allocate(RECORD_LENGTH);
+	private int count = 0;
+
+	/**
+	 * @param listener Receives every decoded record
+	 */
+	FeedbackDecoder(FeedbackListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Decodes the records in the data, keeping a record that is not complete yet for the next call
+	 * @param data Big-endian data read from the feedback service, consumed entirely
+	 * @throws IOException If a record is corrupt
+	 */
+	void decode(ByteBuffer data) throws IOException {
+		if (partial.position() > 0) {
+			while (partial.hasRemaining() && data.hasRemaining()) {
+				partial.put(data.get());
+			}
+			if (partial.hasRemaining()) {
+				return;
+			}
+			partial.flip();
+			record(partial);
+			partial.clear();
+		}
+
+		while (data.remaining() >= RECORD_LENGTH) {
+			record(data);
+		}
+		partial.put(data);
+	}
+
+	private void record(ByteBuffer data) throws IOException {
+		long seconds = data.getInt() & 0xffffffffL;
+		int tokenSize = data.getShort() & 0xffff;
+		if (tokenSize != DeviceToken.LENGTH) {
+			throw new IOException("Corrupt data: Invalid token size " + tokenSize);
+		}
+		DeviceToken token = DeviceToken.read(data);
+		count++;
+		listener.deviceFailed(new FailedDevice(new Date(seconds * 1000), token));
+	}
+
+	/**
+	 * @return True if the data so far ends inside a record
+	 */
+	boolean isPartial() {
+		return partial.position() > 0;
+	}
+
+	/**
+	 * @return Number of records decoded
+	 */
+	int getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,16 @@
+package com.weatherflow.japns;
+
+/**
+ * <p>Receives the records of the feedback service one at a time, as they are read, so a feedback list of any length can
+ * be processed without holding it in memory.</p>
+ *
+ * <p>Listeners are called from the thread reading the feedback service.  With a NioTransport that is the selector
+ * thread, so listeners should return quickly.</p>
+ */
+public interface FeedbackListener {
+	/**
+	 * Called for every record sent by the feedback service
+	 * @param failedDevice Token and time of a device that no longer accepts notifications
+	 */
+	void deviceFailed(FailedDevice failedDevice);
+}
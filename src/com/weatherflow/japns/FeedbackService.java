@@ -1,11 +1,13 @@
 package com.weatherflow.japns;
 
-import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Date;
-import java.util.Vector;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <p>The FeedbackService class is used to extract the list of invalid device tokens from Apple.</p>
@@ -16,7 +18,10 @@ import java.util.Vector;
  *
  */
 public class FeedbackService {
+	private static final int BUFFER_SIZE = 16384;
+
 	private Connector connector;
+	private NioTransport transport = null;
 	
 	/**
 	 * @param keyFilename fill path to cert/key PKCS12 file
@@ -25,11 +30,26 @@ public class FeedbackService {
 	 * @throws FileNotFoundException PKCS12 file cannot be found
 	 */
 	public FeedbackService(String keyFilename, String keyPasswd, boolean sandbox) throws FileNotFoundException {
-		if (sandbox) {
-			connector = new Connector(keyFilename, keyPasswd, Connector.DEV_FEEDBACK_HOST);
-		} else {
-			connector = new Connector(keyFilename, keyPasswd, Connector.FEEDBACK_HOST);
-		}
+		this(keyFilename, keyPasswd, sandbox ? Connector.DEV_FEEDBACK_HOST : Connector.FEEDBACK_HOST);
+	}
+	
+	/**
+	 * Constructs a FeedbackService that reads a feedback service other than Apple's, such as a FeedbackSimulator
+	 * @param keyFilename fill path to cert/key PKCS12 file
+	 * @param keyPasswd Password of cert/key file
+	 * @param host Host:port of the feedback service
+	 * @throws FileNotFoundException PKCS12 file cannot be found
+	 */
+	public FeedbackService(String keyFilename, String keyPasswd, String host) throws FileNotFoundException {
+		connector = new Connector(keyFilename, keyPasswd, host);
+	}
+
+	/**
+	 * Reads the feedback service through a non-blocking transport instead of a blocking socket.
+	 * @param transport Transport to use, or null to use a blocking socket
+	 */
+	public void setTransport(NioTransport transport) {
+		this.transport = transport;
 	}
 
 	/**
@@ -37,29 +57,118 @@ public class FeedbackService {
 	 * @return List of failed devices
 	 */
 	public FailedDevice[] getFailedDevices() {
-		Vector<FailedDevice> failedDevices = new Vector<FailedDevice>();
-		
+		final List<FailedDevice> failedDevices = new ArrayList<FailedDevice>();
+		readFailedDevices(new FeedbackListener() {
+			public void deviceFailed(FailedDevice failedDevice) {
+				failedDevices.add(failedDevice);
+			}
+		});
+		return failedDevices.toArray(new FailedDevice[failedDevices.size()]);
+	}
+	
+	/**
+	 * Connects to apple's feedback service and passes each failed device to the listener as soon as it is read, so 
+	 * memory use does not depend on the number of failed devices.
+	 * @param listener Receives every failed device
+	 * @return Number of failed devices read
+	 */
+	public int readFailedDevices(FeedbackListener listener) {
 		try {
-			DataInputStream inputStream = new DataInputStream(connector.getInputStream());
-			
-			Date failedDate = new Date((long)inputStream.readInt());
-			
-			int tokenSize = inputStream.readUnsignedShort();
-			if (tokenSize != 32) throw new IOException("Corrupt data: Invalid token size");
-			
-			byte[] token = new byte[32];
-			tokenSize = inputStream.read(token);
-			if (tokenSize != 32) throw new IOException("Unexpected end of stream");
-			
-			failedDevices.add(new FailedDevice(failedDate, token));
-			
-		} catch (EOFException e) {
-			// Do nothing at eof
+			if (transport != null) {
+				return receive(listener);
+			}
+			try {
+				return read(connector.getInputStream(), listener);
+			} finally {
+				connector.close();
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} 
+		}
+	}
+	
+	/**
+	 * Decodes the records sent by the feedback service, until the end of the stream
+	 * @param input Stream of feedback records
+	 * @return List of failed devices
+	 * @throws IOException If a record is corrupt or the stream fails
+	 */
+	static FailedDevice[] read(InputStream input) throws IOException {
+		final List<FailedDevice> failedDevices = new ArrayList<FailedDevice>();
+		read(input, new FeedbackListener() {
+			public void deviceFailed(FailedDevice failedDevice) {
+				failedDevices.add(failedDevice);
+			}
+		});
+		return failedDevices.toArray(new FailedDevice[failedDevices.size()]);
+	}
+	
+	/**
+	 * Decodes the records sent by the feedback service, until the end of the stream.  The stream is read in large 
+	 * blocks, so it does not need to be buffered.
+	 * @param input Stream of feedback records
+	 * @param listener Receives every failed device
+	 * @return Number of failed devices read
+	 * @throws IOException If a record is corrupt or the stream fails
+	 */
+	static int read(InputStream input, FeedbackListener listener) throws IOException {
+		FeedbackDecoder decoder = new FeedbackDecoder(listener);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int size;
+		while ((size = input.read(buffer)) >= 0) {
+			decoder.decode(ByteBuffer.wrap(buffer, 0, size));
+		}
+		if (decoder.isPartial()) {
+			throw new IOException("Unexpected end of stream");
+		}
+		return decoder.getCount();
+	}
+	
+	/**
+	 * Decodes everything the feedback service sends through the transport as it arrives.  The feedback service closes 
+	 * the connection once every record has been sent.
+	 */
+	private int receive(FeedbackListener listener) throws IOException {
+		final FeedbackDecoder decoder = new FeedbackDecoder(listener);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		NioLink.open(transport, connector.getSSLContext(), connector.getHost(), new NioLink.Handler() {
+			public void received(ByteBuffer data) {
+				if (failure.get() != null) {
+					return; // Ignore the rest after a corrupt record
+				}
+				try {
+					decoder.decode(data);
+				} catch (IOException e) {
+					failure.set(e);
+				} catch (RuntimeException e) {
+					failure.set(e); // Thrown by the listener
+				}
+			}
 
-		return (FailedDevice[])failedDevices.toArray();
+			public void closed(IOException cause) {
+				done.countDown();
+			}
+		});
+		
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted reading feedback service");
+		}
+		
+		Exception e = failure.get();
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e != null) {
+			throw (RuntimeException) e;
+		}
+		if (decoder.isPartial()) {
+			throw new IOException("Unexpected end of stream");
+		}
+		return decoder.getCount();
 	}
 	
 }
@@ -0,0 +1,59 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A single connection to the APN gateway that a PipelinedConnection writes encoded frames to.  The link reports
+ * once, through its Listener, when the connection ends, with the error-response that ended it if there was one.</p>
+ */
+interface GatewayLink {
+	/**
+	 * Writes encoded frames.  The link takes ownership of the buffer and releases it to the buffer pool when done.
+	 * @param frames Flipped buffer of complete frames
+	 * @param firstId Identifier of the first notification in the buffer
+	 * @throws IOException If the connection has failed.  Every later write fails as well.
+	 */
+	void write(ByteBuffer frames, int firstId) throws IOException;
+
+	/**
+	 * Blocks until every written frame has been handed to the operating system.
+	 */
+	void flush();
+
+	/**
+	 * Gets the oldest notification the link knows was not delivered because the connection failed.  Only meaningful
+	 * once the link has ended.
+	 * @return Identifier of the oldest undelivered notification, or null
+	 */
+	Integer getUndelivered();
+
+	/**
+	 * Closes the connection without reporting it to the Listener
+	 */
+	void close();
+
+	/**
+	 * Opens links to the APN gateway
+	 */
+	interface Factory {
+		/**
+		 * Opens a new link, blocking until it is ready to be written to
+		 * @param listener Listener told when the link ends
+		 * @return The new link
+		 */
+		GatewayLink open(Listener listener);
+	}
+
+	/**
+	 * Told when a link ends
+	 */
+	interface Listener {
+		/**
+		 * Called once when the connection ends, never while a write to the link is in progress on the calling thread.
+		 * @param link The link that ended
+		 * @param error Error-response sent by the APN service, or null if the connection ended without one
+		 */
+		void closed(GatewayLink link, ErrorResponse error);
+	}
+}
@@ -0,0 +1,453 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>HPACK header compression (RFC 7541) for the HTTP/2 provider API.  The Encoder only needs to write the handful of
+ * request headers the provider API uses, but the Decoder implements the whole specification (dynamic table and Huffman
+ * coded strings) because the server is free to use all of it.</p>
+ */
+final class Hpack {
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	// Size of the dynamic table we allow the server to use, the HTTP/2 default
+	static final int DEFAULT_TABLE_SIZE = 4096;
+
+	// Every dynamic table entry costs its name and value plus 32 bytes
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private static final String[][] STATIC_TABLE = {
+		{ ":authority", "" },
+		{ ":method", "GET" },
+		{ ":method", "POST" },
+		{ ":path", "/" },
+		{ ":path", "/index.html" },
+		{ ":scheme", "http" },
+		{ ":scheme", "https" },
+		{ ":status", "200" },
+		{ ":status", "204" },
+		{ ":status", "206" },
+		{ ":status", "304" },
+		{ ":status", "400" },
+		{ ":status", "404" },
+		{ ":status", "500" },
+		{ "accept-charset", "" },
+		{ "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" },
+		{ "accept-ranges", "" },
+		{ "accept", "" },
+		{ "access-control-allow-origin", "" },
+		{ "age", "" },
+		{ "allow", "" },
+		{ "authorization", "" },
+		{ "cache-control", "" },
+		{ "content-disposition", "" },
+		{ "content-encoding", "" },
+		{ "content-language", "" },
+		{ "content-length", "" },
+		{ "content-location", "" },
+		{ "content-range", "" },
+		{ "content-type", "" },
+		{ "cookie", "" },
+		{ "date", "" },
+		{ "etag", "" },
+		{ "expect", "" },
+		{ "expires", "" },
+		{ "from", "" },
+		{ "host", "" },
+		{ "if-match", "" },
+		{ "if-modified-since", "" },
+		{ "if-none-match", "" },
+		{ "if-range", "" },
+		{ "if-unmodified-since", "" },
+		{ "last-modified", "" },
+		{ "link", "" },
+		{ "location", "" },
+		{ "max-forwards", "" },
+		{ "proxy-authenticate", "" },
+		{ "proxy-authorization", "" },
+		{ "range", "" },
+		{ "referer", "" },
+		{ "refresh", "" },
+		{ "retry-after", "" },
+		{ "server", "" },
+		{ "set-cookie", "" },
+		{ "strict-transport-security", "" },
+		{ "transfer-encoding", "" },
+		{ "user-agent", "" },
+		{ "vary", "" },
+		{ "via", "" },
+		{ "www-authenticate", "" }
+	};
+
+	// Index of the first static table entry for each name, and of each name/value pair
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+	private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<String, Integer>();
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+			STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+		}
+	}
+
+	// Huffman code of each symbol (RFC 7541 Appendix B), symbol 256 is EOS
+	private static final int[] HUFFMAN_CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+		0x3fffffff
+	};
+	private static final byte[] HUFFMAN_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+		30
+	};
+
+	// Decoding tree built from the Huffman codes.  Node n has its children at 2n and 2n + 1, a positive child is another
+	// node and a negative child is a symbol stored as -(symbol + 1).
+	private static final int[] HUFFMAN_TREE = new int[2 * HUFFMAN_CODES.length];
+	private static final int EOS = 256;
+	static {
+		int nodes = 1;
+		for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+			int node = 0;
+			for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+				int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+				if (HUFFMAN_TREE[child] == 0) {
+					HUFFMAN_TREE[child] = nodes++;
+				}
+				node = HUFFMAN_TREE[child];
+			}
+			HUFFMAN_TREE[2 * node + (HUFFMAN_CODES[symbol] & 1)] = -(symbol + 1);
+		}
+	}
+
+	private Hpack() {
+	}
+
+	/**
+	 * <p>Encodes header blocks.  Headers that repeat on every request (the authority, topic and so on) can be added to
+	 * the dynamic table so they shrink to a single byte on later requests.  An Encoder belongs to one connection and
+	 * header blocks must be sent in the order they were encoded.</p>
+	 */
+	static class Encoder {
+		private final List<String[]> table = new ArrayList<String[]>();
+		private int tableSize = 0;
+		private int maxTableSize = DEFAULT_TABLE_SIZE;
+		private boolean sizeUpdate = false;
+
+		/**
+		 * Applies the SETTINGS_HEADER_TABLE_SIZE announced by the server
+		 * @param size Largest dynamic table the server's decoder keeps
+		 */
+		void setMaxTableSize(int size) {
+			maxTableSize = Math.min(size, DEFAULT_TABLE_SIZE);
+			evict(0);
+			sizeUpdate = true;
+		}
+
+		/**
+		 * Starts a header block.  Must be called before the first header of every block.
+		 */
+		void begin(ByteBuffer out) {
+			if (sizeUpdate) {
+				writeInteger(out, 0x20, 5, maxTableSize);
+				sizeUpdate = false;
+			}
+		}
+
+		/**
+		 * Encodes a header
+		 * @param out Buffer the header block is written to
+		 * @param name Lower case header name
+		 * @param value Header value
+		 * @param index True to add the header to the dynamic table, for headers that repeat on every request
+		 */
+		void header(ByteBuffer out, String name, String value, boolean index) {
+			Integer match = STATIC_ENTRIES.get(name + '\0' + value);
+			if (match == null) {
+				match = findDynamic(name, value);
+			}
+			if (match != null) {
+				writeInteger(out, 0x80, 7, match);
+				return;
+			}
+
+			Integer nameIndex = STATIC_NAMES.get(name);
+			int size = name.length() + value.length() + ENTRY_OVERHEAD;
+			if (index && size <= maxTableSize) {
+				writeInteger(out, 0x40, 6, nameIndex != null ? nameIndex : 0);
+				evict(size);
+				table.add(new String[] { name, value });
+				tableSize += size;
+			} else {
+				writeInteger(out, 0x00, 4, nameIndex != null ? nameIndex : 0);
+			}
+			if (nameIndex == null) {
+				writeString(out, name);
+			}
+			writeString(out, value);
+		}
+
+		private Integer findDynamic(String name, String value) {
+			for (int i = table.size() - 1; i >= 0; i--) {
+				String[] entry = table.get(i);
+				if (entry[0].equals(name) && entry[1].equals(value)) {
+					return STATIC_TABLE.length + table.size() - i;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Drops the oldest entries until an entry of the given size fits
+		 */
+		private void evict(int size) {
+			while (tableSize + size > maxTableSize && table.size() > 0) {
+				String[] entry = table.remove(0);
+				tableSize -= entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+			}
+		}
+	}
+
+	/**
+	 * <p>Decodes header blocks received from the server.  A Decoder belongs to one connection and must see every header
+	 * block in the order it was received, even when the headers are not needed, to keep its dynamic table in step.</p>
+	 */
+	static class Decoder {
+		private final List<String[]> table = new ArrayList<String[]>();
+		private int tableSize = 0;
+		private int maxTableSize = DEFAULT_TABLE_SIZE;
+
+		/**
+		 * Decodes a complete header block
+		 * @param block Header block, read up to its limit
+		 * @return Headers by name.  If a name repeats the last value is kept.
+		 * @throws IOException If the header block is malformed, the connection cannot be used any longer
+		 */
+		Map<String, String> decode(ByteBuffer block) throws IOException {
+			Map<String, String> headers = new HashMap<String, String>();
+			try {
+				while (block.hasRemaining()) {
+					int b = block.get(block.position()) & 0xff;
+					if ((b & 0x80) != 0) {
+						String[] entry = entry(readInteger(block, 7));
+						headers.put(entry[0], entry[1]);
+					} else if ((b & 0xc0) == 0x40) {
+						String[] entry = readLiteral(block, 6);
+						add(entry);
+						headers.put(entry[0], entry[1]);
+					} else if ((b & 0xe0) == 0x20) {
+						int size = readInteger(block, 5);
+						if (size > DEFAULT_TABLE_SIZE) {
+							throw new IOException("HPACK table size update larger than allowed: " + size);
+						}
+						maxTableSize = size;
+						evict(0);
+					} else {
+						String[] entry = readLiteral(block, 4);
+						headers.put(entry[0], entry[1]);
+					}
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated HPACK header block");
+			}
+			return headers;
+		}
+
+		private String[] readLiteral(ByteBuffer block, int prefix) throws IOException {
+			int index = readInteger(block, prefix);
+			String name = index == 0 ? readString(block) : entry(index)[0];
+			return new String[] { name, readString(block) };
+		}
+
+		private String[] entry(int index) throws IOException {
+			if (index <= 0) {
+				throw new IOException("Invalid HPACK index: " + index);
+			} else if (index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			} else if (index - STATIC_TABLE.length <= table.size()) {
+				return table.get(table.size() - (index - STATIC_TABLE.length));
+			}
+			throw new IOException("HPACK index outside of the dynamic table: " + index);
+		}
+
+		private void add(String[] entry) {
+			int size = entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+			evict(size);
+			if (size <= maxTableSize) {
+				table.add(entry);
+				tableSize += size;
+			}
+		}
+
+		private void evict(int size) {
+			while (tableSize + size > maxTableSize && table.size() > 0) {
+				String[] entry = table.remove(0);
+				tableSize -= entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+			}
+		}
+	}
+
+	/**
+	 * Writes an integer with an N-bit prefix, the flags occupy the bits of the first byte above the prefix
+	 */
+	static void writeInteger(ByteBuffer out, int flags, int prefix, int value) {
+		int max = (1 << prefix) - 1;
+		if (value < max) {
+			out.put((byte) (flags | value));
+			return;
+		}
+		out.put((byte) (flags | max));
+		value -= max;
+		while (value >= 0x80) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	static int readInteger(ByteBuffer in, int prefix) throws IOException {
+		int max = (1 << prefix) - 1;
+		int value = in.get() & max;
+		if (value < max) {
+			return value;
+		}
+		for (int shift = 0; shift < 28; shift += 7) {
+			int b = in.get() & 0xff;
+			value += (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("HPACK integer overflow");
+	}
+
+	/**
+	 * Writes a string literal, Huffman coded when that is shorter
+	 */
+	static void writeString(ByteBuffer out, String value) {
+		long bits = 0;
+		for (int i = 0; i < value.length(); i++) {
+			bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+		}
+		int huffmanLength = (int) ((bits + 7) / 8);
+		if (huffmanLength >= value.length()) {
+			writeInteger(out, 0x00, 7, value.length());
+			for (int i = 0; i < value.length(); i++) {
+				out.put((byte) value.charAt(i));
+			}
+			return;
+		}
+
+		writeInteger(out, 0x80, 7, huffmanLength);
+		long buffer = 0;
+		int pending = 0;
+		for (int i = 0; i < value.length(); i++) {
+			int symbol = value.charAt(i) & 0xff;
+			buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+			pending += HUFFMAN_LENGTHS[symbol];
+			while (pending >= 8) {
+				pending -= 8;
+				out.put((byte) (buffer >>> pending));
+			}
+		}
+		if (pending > 0) {
+			// Pad with the most significant bits of EOS, which are all ones
+			out.put((byte) ((buffer << (8 - pending)) | (0xff >>> pending)));
+		}
+	}
+
+	static String readString(ByteBuffer in) throws IOException {
+		boolean huffman = (in.get(in.position()) & 0x80) != 0;
+		int length = readInteger(in, 7);
+		if (length > in.remaining()) {
+			throw new IOException("Truncated HPACK string");
+		}
+		if (!huffman) {
+			String value = new String(in.array(), in.arrayOffset() + in.position(), length, ISO_8859_1);
+			in.position(in.position() + length);
+			return value;
+		}
+
+		StringBuilder value = new StringBuilder(length * 8 / 5);
+		int node = 0;
+		int depth = 0;
+		boolean ones = true;
+		for (int i = 0; i < length; i++) {
+			int b = in.get() & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int next = (b >>> bit) & 1;
+				node = HUFFMAN_TREE[2 * node + next];
+				depth++;
+				ones &= next == 1;
+				if (node < 0) {
+					int symbol = -node - 1;
+					if (symbol == EOS) {
+						throw new IOException("EOS in HPACK Huffman string");
+					}
+					value.append((char) symbol);
+					node = 0;
+					depth = 0;
+					ones = true;
+				} else if (node == 0) {
+					throw new IOException("Invalid HPACK Huffman code");
+				}
+			}
+		}
+		if (depth > 7 || !ones) {
+			throw new IOException("Invalid HPACK Huffman padding");
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,394 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * <p>Sends notifications over the APNS HTTP/2 provider API.  Notifications are multiplexed over one connection, each on
+ * its own stream with its own response, so a rejected notification is reported to the ErrorListener without closing the
+ * connection or resending anything.  A new connection is only opened when the server sends GOAWAY or the connection is
+ * lost, and the notifications the server did not process are sent again over it.</p>
+ * <br>
+ * <p>The reader threads of the connections never call the ErrorListener or reconnect themselves.  Rejected
+ * notifications are reported, and unprocessed ones resent, on a callback thread, so a listener that sends again does not
+ * stop the responses it waits for from being read.</p>
+ */
+class Http2Gateway implements Http2Session.Listener {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.Http2Gateway");
+
+	// Largest payload accepted by the provider API, unless the service is given another limit
+	static final int MAX_PAYLOAD_SIZE = 4096;
+
+	private static final int OK = 200;
+
+	// Seconds the callback thread is kept after its last callback
+	private static final long CALLBACK_KEEP_ALIVE = 60;
+
+	private final Connector connector;
+	private final String host;
+	private final String topic;
+	private final int maxPayloadSize;
+	private final NotificationMetrics metrics;
+	private final ErrorListener listener;
+	private final Object lock = new Object();
+	private final List<Http2Session> sessions = new ArrayList<Http2Session>();
+	private final ArrayDeque<Notification> backlog = new ArrayDeque<Notification>();
+	// One thread, so rejected notifications are reported in the order their responses arrived
+	private final ThreadPoolExecutor callbacks = new ThreadPoolExecutor(1, 1, CALLBACK_KEEP_ALIVE, TimeUnit.SECONDS, 
+			new LinkedBlockingQueue<Runnable>(), NioTransport.daemonThreads("japns-http2-callback-"));
+
+	private Http2Session session = null;
+	private int notificationCounter = 1;
+	private int unflushed = 0;
+	private int unflushedBytes = 0;
+	// Notifications taken from the backlog that are not started yet
+	private int resending = 0;
+	private boolean closed = false;
+
+	/**
+	 * Constructs an Http2Gateway, the connection is opened by the first send
+	 * @param connector Connector whose SSLContext is used and whose metrics the connections are recorded in
+	 * @param host Host:port of the provider API
+	 * @param topic Value of the apns-topic header, or null when the certificate only has one topic
+	 * @param maxPayloadSize Largest payload accepted, in bytes
+	 * @param metrics Metrics the notifications are recorded in
+	 * @param listener Listener notified of rejected notifications
+	 */
+	Http2Gateway(Connector connector, String host, String topic, int maxPayloadSize, NotificationMetrics metrics, 
+			ErrorListener listener) {
+		this.connector = connector;
+		this.host = host;
+		this.topic = topic;
+		this.maxPayloadSize = maxPayloadSize;
+		this.metrics = metrics;
+		this.listener = listener;
+		callbacks.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Starts a stream for each notification.  Returns once every notification has been written, responses are reported
+	 * to the ErrorListener as they arrive.  Blocks while the server's concurrent stream limit is reached.
+	 * @param notifications Notifications to send
+	 * @throws InvalidNotificationException If a notification cannot be encoded, or its payload is larger than the 
+	 * server lets a stream send.  It is thrown after the other notifications have been written.
+	 */
+	void send(List<Notification> notifications) throws InvalidNotificationException {
+		InvalidNotificationException invalid = null;
+
+		synchronized (lock) {
+			closed = false;
+		}
+		try {
+			resend();
+			Http2Session last = null;
+			for (Notification notification : notifications) {
+				synchronized (lock) {
+					notification.setNotificationId(notificationCounter++);
+				}
+				try {
+					long start = System.nanoTime();
+					notification.checkToken();
+					byte[] payload = notification.encodePayload(maxPayloadSize);
+					metrics.encoded(System.nanoTime() - start);
+					last = start(notification, payload);
+				} catch (InvalidNotificationException e) {
+					log.error("Skipping invalid notification " + notification.getNotificationId() + ": " + e.getMessage());
+					if (invalid == null) {
+						invalid = e;
+					}
+				}
+			}
+			if (last != null) {
+				flush(last);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+
+		if (invalid != null) {
+			throw invalid;
+		}
+	}
+
+	/**
+	 * Waits for the response to every notification and closes the connection.
+	 */
+	void close() {
+		try {
+			while (true) {
+				resend();
+				synchronized (lock) {
+					if (backlog.isEmpty() && resending == 0 && isIdle()) {
+						break;
+					}
+					if (backlog.isEmpty()) {
+						lock.wait();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			List<Http2Session> open;
+			synchronized (lock) {
+				closed = true;
+				open = new ArrayList<Http2Session>(sessions);
+				sessions.clear();
+				session = null;
+				if (!backlog.isEmpty()) {
+					log.error(backlog.size() + " notifications were not resent");
+					backlog.clear();
+				}
+			}
+			for (Http2Session retired : open) {
+				retired.close();
+			}
+		}
+	}
+
+	private boolean isIdle() {
+		for (Http2Session open : sessions) {
+			if (!open.isIdle()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the connection new streams are started on, replacing it when it no longer accepts streams.  Must hold the
+	 * lock.
+	 */
+	private Http2Session session() {
+		if (session == null || !session.isAccepting()) {
+			// The reader thread of a connection that no longer accepts streams closes it once its last stream ended
+			Iterator<Http2Session> retired = sessions.iterator();
+			while (retired.hasNext()) {
+				Http2Session old = retired.next();
+				if (!old.isAccepting() && old.isIdle()) {
+					retired.remove();
+				}
+			}
+
+			try {
+				long start = System.nanoTime();
+				session = new Http2Session(connector.getSSLContext(), host, topic, lock, this);
+				connector.getMetrics().connected(System.nanoTime() - start);
+			} catch (IOException e) {
+				connector.getMetrics().failed();
+				session = null;
+				log.error("Could not connect to the provider API");
+				throw new RuntimeException(e);
+			}
+			sessions.add(session);
+		}
+		return session;
+	}
+
+	/**
+	 * Starts a stream for a notification, waiting while the server's limits are reached.  Must not hold the lock, the
+	 * frames are written outside it so the reader threads go on handling responses while a write blocks.
+	 * @return The connection the stream was started on, its last frames are written by flush
+	 * @throws InvalidNotificationException If the payload is larger than the connection lets a stream send
+	 */
+	private Http2Session start(Notification notification, byte[] payload) throws InvalidNotificationException, InterruptedException {
+		while (true) {
+			Http2Session current;
+			boolean started = false;
+			synchronized (lock) {
+				current = session();
+				if (!current.fits(payload.length)) {
+					throw tooLarge(notification, current);
+				}
+				if (current.canStart(payload.length)) {
+					unflushedBytes += current.start(notification, payload);
+					unflushed++;
+					started = true;
+				} else if (!current.hasUnwritten()) {
+					lock.wait();
+					if (!current.isAccepting() && !current.isReady()) {
+						throw new RuntimeException("Connection to the provider API closed before its SETTINGS arrived");
+					}
+					continue;
+				}
+			}
+			// Before waiting the frames already queued are written, the server cannot answer streams it has not received
+			current.write(!started);
+			if (started) {
+				return current;
+			}
+		}
+	}
+
+	/**
+	 * Starts the notifications waiting to be resent, waiting while the server's limits are reached.  Must not hold the
+	 * lock.
+	 */
+	private void resend() throws InterruptedException {
+		Http2Session last = null;
+		try {
+			while (true) {
+				Notification notification;
+				synchronized (lock) {
+					notification = backlog.pollFirst();
+					if (notification == null) {
+						break;
+					}
+					resending++;
+				}
+
+				try {
+					last = start(notification, notification.encodePayload(maxPayloadSize));
+				} catch (InvalidNotificationException e) {
+					// The new connection's stream window is smaller than the one it was started on, encoding cannot
+					// fail as only valid notifications are started
+					report(notification, new ErrorResponse(ErrorResponse.INVALID_PAYLOAD_SIZE, 
+							notification.getNotificationId(), e.getMessage()));
+				} catch (RuntimeException e) {
+					synchronized (lock) {
+						backlog.addFirst(notification);
+					}
+					throw e;
+				} finally {
+					synchronized (lock) {
+						resending--;
+						lock.notifyAll();
+					}
+				}
+			}
+		} finally {
+			if (last != null) {
+				flush(last);
+			}
+		}
+	}
+
+	private static InvalidNotificationException tooLarge(Notification notification, Http2Session current) {
+		return new InvalidNotificationException(notification, "Payload larger than the provider API's stream window of " 
+				+ current.getInitialWindowSize() + " bytes");
+	}
+
+	/**
+	 * Writes the frames queued on a connection and records the streams started since the last flush.  Must not hold the
+	 * lock.
+	 */
+	private void flush(Http2Session current) {
+		long start = System.nanoTime();
+		current.write(true);
+		synchronized (lock) {
+			if (unflushed > 0) {
+				metrics.written(unflushed, unflushedBytes, System.nanoTime() - start);
+				unflushed = 0;
+				unflushedBytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * Reports a rejected notification to the ErrorListener on the callback thread
+	 */
+	private void report(final Notification notification, final ErrorResponse error) {
+		callbacks.execute(new Runnable() {
+			public void run() {
+				try {
+					listener.notificationFailed(notification, error);
+				} catch (RuntimeException e) {
+					log.error("ErrorListener failed for notification " + notification.getNotificationId(), e);
+				}
+			}
+		});
+	}
+
+	public void completed(Notification notification, int status, byte[] body) {
+		if (status == OK) {
+			return;
+		}
+
+		String reason = reason(body);
+		if (reason == null) {
+			reason = status == 0 ? "StreamReset" : "HTTP " + status;
+		}
+		ErrorResponse error = new ErrorResponse(statusOf(status, reason), notification.getNotificationId(), reason);
+		log.info("Received error response: " + error);
+		report(notification, error);
+	}
+
+	public void unprocessed(List<Notification> notifications) {
+		synchronized (lock) {
+			if (closed) {
+				log.error(notifications.size() + " notifications were not resent, the gateway is closed");
+				return;
+			}
+			log.info("Resending " + notifications.size() + " notifications not processed by the provider API");
+			backlog.addAll(notifications);
+			lock.notifyAll();
+		}
+		// Reconnecting needs a handshake and may wait for the new connection's SETTINGS, which the reader thread 
+		// calling this must not do
+		callbacks.execute(new Runnable() {
+			public void run() {
+				try {
+					resend();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (RuntimeException e) {
+					log.error("Could not reconnect to the provider API, notifications are waiting to be resent", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads the reason from a response body such as {"reason":"BadDeviceToken"}
+	 */
+	private static String reason(byte[] body) {
+		if (body == null) {
+			return null;
+		}
+		try {
+			Object json = JSONValue.parse(new String(body, "UTF-8"));
+			if (json instanceof JSONObject && ((JSONObject) json).get("reason") instanceof String) {
+				return (String) ((JSONObject) json).get("reason");
+			}
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Maps a provider API reason to the closest binary interface status code, so error listeners can treat both the
+	 * same way.
+	 */
+	private static int statusOf(int status, String reason) {
+		if (reason.equals("BadDeviceToken") || reason.equals("Unregistered") || reason.equals("DeviceTokenNotForTopic")) {
+			return ErrorResponse.INVALID_TOKEN;
+		} else if (reason.equals("MissingDeviceToken")) {
+			return ErrorResponse.MISSING_DEVICE_TOKEN;
+		} else if (reason.equals("MissingTopic")) {
+			return ErrorResponse.MISSING_TOPIC;
+		} else if (reason.equals("PayloadEmpty")) {
+			return ErrorResponse.MISSING_PAYLOAD;
+		} else if (reason.equals("PayloadTooLarge")) {
+			return ErrorResponse.INVALID_PAYLOAD_SIZE;
+		} else if (reason.equals("Shutdown") || reason.equals("ServiceUnavailable")) {
+			return ErrorResponse.SHUTDOWN;
+		} else if (status == 0 || status >= 500) {
+			return ErrorResponse.PROCESSING_ERROR;
+		}
+		return ErrorResponse.UNKNOWN;
+	}
+}
@@ -0,0 +1,752 @@
+package com.weatherflow.japns;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>One HTTP/2 connection to the APNS provider API.  Every notification is a POST on its own stream, so many
+ * notifications are in flight at once and each one gets its own response.  A rejected notification only ends its
+ * stream, the connection stays open.  A reader thread handles the responses and the server's control frames.</p>
+ *
+ * <p>The session shares its lock with the Http2Gateway that owns it.  Every method must be called with the lock held,
+ * except write and close, which only take it to pick up the queued frames, so the reader thread goes on handling
+ * responses while a write blocks.  The listener is called from the reader thread after it released the lock.</p>
+ */
+class Http2Session implements Runnable {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.Http2Session");
+
+	private static final byte[] PREFACE = {
+		'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n', '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+	};
+
+	// Frame types
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	// Frame flags
+	private static final int END_STREAM = 0x1;
+	private static final int ACK = 0x1;
+	private static final int END_HEADERS = 0x4;
+	private static final int PADDED = 0x8;
+	private static final int PRIORITY = 0x20;
+
+	// Settings
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	// Error codes
+	private static final int NO_ERROR = 0x0;
+	private static final int REFUSED_STREAM = 0x7;
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+	private static final int MAX_FRAME_SIZE = 16384;
+	private static final int MAX_ALLOWED_FRAME_SIZE = 16777215;
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	// Milliseconds the server has to send its SETTINGS before the connection is given up
+	private static final int SETTINGS_TIMEOUT = 10000;
+
+	/**
+	 * Receives the outcome of the streams.  Called from the reader thread without the lock held.
+	 */
+	interface Listener {
+		/**
+		 * The server responded to a notification
+		 * @param notification The notification
+		 * @param status HTTP status, or 0 when the server reset the stream
+		 * @param body Response body, null when the response has none
+		 */
+		void completed(Notification notification, int status, byte[] body);
+
+		/**
+		 * The server did not process the notifications, they can be sent again on another connection
+		 */
+		void unprocessed(List<Notification> notifications);
+	}
+
+	private static class Stream {
+		private final Notification notification;
+		private int status = 0;
+		private ByteArrayOutputStream body = null;
+
+		private Stream(Notification notification) {
+			this.notification = notification;
+		}
+	}
+
+	private final Object lock;
+	private final Listener listener;
+	private final String authority;
+	private final String topic;
+	private final SSLSocket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+	private final Hpack.Decoder decoder = new Hpack.Decoder();
+	private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+	private final ByteBuffer headerBlock = ByteBuffer.allocate(4096);
+	// Held while writing to the socket, taken before the lock, never while holding it
+	private final Object writeLock = new Object();
+	// Full buffers waiting to be written, and the buffer frames are added to
+	private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer output;
+	// Outcomes handed to the listener once the reader thread released the lock
+	private List<Stream> answered = new ArrayList<Stream>();
+	private List<Notification> refused = new ArrayList<Notification>();
+
+	private int nextStreamId = 1;
+	private int maxConcurrentStreams = Integer.MAX_VALUE;
+	private int initialWindowSize = DEFAULT_WINDOW_SIZE;
+	// Largest frame the server accepts
+	private int maxFrameSize = MAX_FRAME_SIZE;
+	private int connectionWindow = DEFAULT_WINDOW_SIZE;
+	private int consumed = 0;
+	private boolean ready = false;
+	private boolean accepting = true;
+	private boolean closed = false;
+	// Set when the connection no longer accepts streams and the last one ended, the reader thread then closes it
+	private boolean retired = false;
+
+	// Header block split over HEADERS and CONTINUATION frames
+	private ByteArrayOutputStream headerFragments = null;
+	private int headerStreamId;
+	private int headerFlags;
+
+	/**
+	 * Opens a connection, sends the connection preface and starts the reader thread.  Streams can be started once the
+	 * server's SETTINGS have arrived.
+	 * @param sslContext SSLContext initialized with the p12 key/cert
+	 * @param host Host:port of the provider API
+	 * @param topic Value of the apns-topic header, or null to leave it out
+	 * @param lock Lock shared with the owner of the session
+	 * @param listener Listener notified of the outcome of the streams
+	 * @throws IOException When the connection could not be established
+	 */
+	Http2Session(SSLContext sslContext, String host, String topic, Object lock, Listener listener) throws IOException {
+		this.lock = lock;
+		this.listener = listener;
+		this.topic = topic;
+
+		String[] hostPort = host.split(":");
+		this.authority = hostPort[0];
+		log.debug("Connecting to " + host);
+		socket = (SSLSocket) sslContext.getSocketFactory().createSocket(hostPort[0], Integer.parseInt(hostPort[1]));
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setEnabledCipherSuites(SSLContextCache.cipherSuites(socket.getSupportedCipherSuites(), socket.getEnabledCipherSuites()));
+			requestHttp2(socket);
+			socket.startHandshake();
+			checkHttp2(socket);
+
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_FRAME_SIZE));
+			out = socket.getOutputStream();
+			// Reads time out until the server's SETTINGS arrive, so a server that never sends them fails the session
+			socket.setSoTimeout(SETTINGS_TIMEOUT);
+
+			// Nothing else uses the session before the reader thread starts, the preface is written right away
+			output = NotificationService.BUFFERS.acquire();
+			output.put(PREFACE);
+			writeFrameHeader(output, 6, SETTINGS, 0, 0);
+			output.putShort((short) SETTINGS_ENABLE_PUSH);
+			output.putInt(0);
+			out.write(output.array(), output.arrayOffset(), output.position());
+			output.clear();
+		} catch (IOException e) {
+			if (output != null) {
+				NotificationService.BUFFERS.release(output);
+				output = null;
+			}
+			socket.close();
+			throw e;
+		}
+
+		Thread thread = new Thread(this, "japns-http2-reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Asks for HTTP/2 during the TLS handshake.  ALPN is only available from Java 8u252, older JREs connect without it.
+	 */
+	private static void requestHttp2(SSLSocket socket) {
+		SSLParameters parameters = socket.getSSLParameters();
+		try {
+			Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+			method.invoke(parameters, new Object[] { new String[] { "h2" } });
+			socket.setSSLParameters(parameters);
+		} catch (NoSuchMethodException e) {
+			log.warn("ALPN is not supported by this JRE, the provider API may refuse the connection");
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static void checkHttp2(SSLSocket socket) throws IOException {
+		try {
+			Method method = SSLSocket.class.getMethod("getApplicationProtocol");
+			String protocol = (String) method.invoke(socket);
+			if (protocol != null && protocol.length() > 0 && !protocol.equals("h2")) {
+				throw new IOException("Server negotiated " + protocol + " instead of HTTP/2");
+			}
+		} catch (NoSuchMethodException e) {
+			// No ALPN, assume the server speaks HTTP/2
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return True while new streams can be started on this connection
+	 */
+	boolean isAccepting() {
+		return accepting;
+	}
+
+	/**
+	 * @return True once the server's SETTINGS have arrived
+	 */
+	boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return True when every stream has been answered
+	 */
+	boolean isIdle() {
+		return streams.isEmpty();
+	}
+
+	/**
+	 * @param payloadLength Length of the notification's payload
+	 * @return False when the server's settings leave a stream no room for the payload, however long it waits.  Every 
+	 * payload fits until the settings have arrived.
+	 */
+	boolean fits(int payloadLength) {
+		return !ready || initialWindowSize >= payloadLength;
+	}
+
+	/**
+	 * @return Bytes a stream may send before the server opens its window further
+	 */
+	int getInitialWindowSize() {
+		return initialWindowSize;
+	}
+
+	/**
+	 * @param payloadLength Length of the notification's payload
+	 * @return True when a notification can be started without exceeding the server's limits
+	 */
+	boolean canStart(int payloadLength) {
+		return accepting && ready && streams.size() < maxConcurrentStreams && connectionWindow >= payloadLength
+				&& initialWindowSize >= payloadLength;
+	}
+
+	/**
+	 * Opens a stream for the notification and queues its HEADERS and DATA frames, the payload split into frames no
+	 * larger than the server accepts.  Only call when canStart returns true, so the whole payload fits in the stream
+	 * and connection windows.  The frames are queued for write when the buffer is full.
+	 * @param notification Notification to send
+	 * @param payload Serialized payload of the notification
+	 * @return Number of bytes queued, 0 if the connection has failed
+	 */
+	int start(Notification notification, byte[] payload) {
+		int streamId = nextStreamId;
+		nextStreamId += 2;
+		if (nextStreamId < 0) {
+			accepting = false; // Stream identifiers are exhausted, the connection is replaced
+		}
+
+		headerBlock.clear();
+		encoder.begin(headerBlock);
+		encoder.header(headerBlock, ":method", "POST", false);
+		encoder.header(headerBlock, ":scheme", "https", false);
+		encoder.header(headerBlock, ":path", "/3/device/" + notification.getToken(), false);
+		encoder.header(headerBlock, ":authority", authority, true);
+		if (topic != null) {
+			encoder.header(headerBlock, "apns-topic", topic, true);
+		}
+		encoder.header(headerBlock, "apns-expiration", Integer.toString(notification.getExpirationSeconds()), true);
+		encoder.header(headerBlock, "apns-priority", Integer.toString(notification.getPriority()), true);
+		headerBlock.flip();
+
+		streams.put(streamId, new Stream(notification));
+		connectionWindow -= payload.length;
+
+		if (output != null && output.remaining() < FRAME_HEADER_LENGTH + headerBlock.remaining()) {
+			queue();
+		}
+		if (output == null) {
+			return 0; // Connection failed, the reader hands the stream back as unprocessed
+		}
+		int length = FRAME_HEADER_LENGTH + headerBlock.remaining();
+		writeFrameHeader(output, headerBlock.remaining(), HEADERS, END_HEADERS, streamId);
+		output.put(headerBlock);
+
+		int offset = 0;
+		do {
+			int chunk = Math.min(payload.length - offset, Math.min(maxFrameSize, output.capacity() - FRAME_HEADER_LENGTH));
+			if (output.remaining() < FRAME_HEADER_LENGTH + chunk) {
+				queue();
+			}
+			boolean last = offset + chunk == payload.length;
+			writeFrameHeader(output, chunk, DATA, last ? END_STREAM : 0, streamId);
+			output.put(payload, offset, chunk);
+			offset += chunk;
+			length += FRAME_HEADER_LENGTH + chunk;
+		} while (offset < payload.length);
+		return length;
+	}
+
+	/**
+	 * Queues the buffer frames are added to for write and starts a new one.  Must hold the lock.
+	 */
+	private void queue() {
+		queued.add(output);
+		output = NotificationService.BUFFERS.acquire();
+	}
+
+	/**
+	 * @return True when frames are waiting to be written
+	 */
+	boolean hasUnwritten() {
+		return !queued.isEmpty() || (output != null && output.position() > 0);
+	}
+
+	/**
+	 * Writes the queued frames.  Must not hold the lock, it is only taken to pick up the frames.  A failed write closes
+	 * the connection, the reader thread then hands the unanswered streams back as unprocessed.
+	 * @param all True to also write the buffer frames are still being added to, false to only write full buffers
+	 */
+	void write(boolean all) {
+		synchronized (writeLock) {
+			while (true) {
+				ByteBuffer buffer;
+				synchronized (lock) {
+					if (all && output != null && output.position() > 0) {
+						queue();
+					}
+					buffer = queued.poll();
+				}
+				if (buffer == null) {
+					return;
+				}
+				try {
+					out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+				} catch (IOException e) {
+					log.info("IOException while writing to the provider API: " + e.getMessage());
+					synchronized (lock) {
+						shutdown();
+					}
+					return;
+				} finally {
+					NotificationService.BUFFERS.release(buffer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells the server the connection is going away and closes it.  Streams that have not been answered are handed back
+	 * as unprocessed.  Must not hold the lock.
+	 */
+	void close() {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			accepting = false;
+			if (output != null) {
+				writeFrameHeader(output, 8, GOAWAY, 0, 0);
+				output.putInt(0);
+				output.putInt(NO_ERROR);
+			}
+		}
+		write(true);
+		synchronized (lock) {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Closes the socket and releases the buffers.  Must hold the lock.
+	 */
+	private void shutdown() {
+		accepting = false;
+		if (output != null) {
+			NotificationService.BUFFERS.release(output);
+			output = null;
+		}
+		while (!queued.isEmpty()) {
+			NotificationService.BUFFERS.release(queued.poll());
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.debug("IOException while closing socket", e);
+		}
+	}
+
+	public void run() {
+		byte[] frame = new byte[MAX_FRAME_SIZE];
+		try {
+			while (true) {
+				int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+				int type = in.readUnsignedByte();
+				int flags = in.readUnsignedByte();
+				int streamId = in.readInt() & Integer.MAX_VALUE;
+				if (length > MAX_FRAME_SIZE) {
+					throw new IOException("Frame larger than " + MAX_FRAME_SIZE + " bytes: " + length);
+				}
+				in.readFully(frame, 0, length);
+
+				try {
+					frame(type, flags, streamId, ByteBuffer.wrap(frame, 0, length));
+				} catch (BufferUnderflowException e) {
+					throw new IOException("Truncated frame of type " + type);
+				}
+				deliver();
+			}
+		} catch (SocketTimeoutException e) {
+			log.error("Provider API sent no SETTINGS within " + SETTINGS_TIMEOUT + " ms");
+			synchronized (lock) {
+				fail();
+			}
+		} catch (IOException e) {
+			synchronized (lock) {
+				if (!closed) {
+					log.info("Connection to the provider API lost: " + e.getMessage());
+				}
+				fail();
+			}
+		} catch (RuntimeException e) {
+			log.error("Unexpected exception reading from the provider API", e);
+			synchronized (lock) {
+				fail();
+			}
+		}
+		deliver();
+	}
+
+	/**
+	 * Hands the outcomes of the last frame to the listener, writes the frames it queued in reply and closes a retired
+	 * connection.  Called by the reader thread without the lock, so a listener that blocks or starts streams does not
+	 * hold up the senders.
+	 */
+	private void deliver() {
+		List<Stream> answeredStreams;
+		List<Notification> refusedNotifications;
+		boolean close;
+		boolean reply;
+		synchronized (lock) {
+			answeredStreams = answered;
+			refusedNotifications = refused;
+			if (!answered.isEmpty()) {
+				answered = new ArrayList<Stream>();
+			}
+			if (!refused.isEmpty()) {
+				refused = new ArrayList<Notification>();
+			}
+			close = retired && !closed;
+			reply = output != null && output.position() > 0;
+		}
+
+		for (Stream stream : answeredStreams) {
+			listener.completed(stream.notification, stream.status, stream.body != null ? stream.body.toByteArray() : null);
+		}
+		if (!refusedNotifications.isEmpty()) {
+			listener.unprocessed(refusedNotifications);
+		}
+		if (close) {
+			close();
+		} else if (reply) {
+			write(true);
+		}
+	}
+
+	private void frame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+		if (headerFragments != null && type != CONTINUATION) {
+			throw new IOException("Header block interrupted by frame of type " + type);
+		}
+
+		switch (type) {
+			case DATA:
+				data(flags, streamId, payload);
+				break;
+			case HEADERS:
+				unpad(flags, payload);
+				if ((flags & PRIORITY) != 0) {
+					payload.position(payload.position() + 5);
+				}
+				if ((flags & END_HEADERS) != 0) {
+					headers(streamId, flags, payload);
+				} else {
+					headerFragments = new ByteArrayOutputStream();
+					headerFragments.write(payload.array(), payload.position(), payload.remaining());
+					headerStreamId = streamId;
+					headerFlags = flags;
+				}
+				break;
+			case CONTINUATION:
+				if (headerFragments == null || streamId != headerStreamId) {
+					throw new IOException("Unexpected CONTINUATION frame");
+				}
+				headerFragments.write(payload.array(), payload.position(), payload.remaining());
+				if ((flags & END_HEADERS) != 0) {
+					ByteBuffer block = ByteBuffer.wrap(headerFragments.toByteArray());
+					headerFragments = null;
+					headers(headerStreamId, headerFlags, block);
+				}
+				break;
+			case RST_STREAM:
+				reset(streamId, payload.getInt());
+				break;
+			case SETTINGS:
+				if ((flags & ACK) == 0) {
+					settings(payload);
+				}
+				break;
+			case PUSH_PROMISE:
+				throw new IOException("PUSH_PROMISE received with server push disabled");
+			case PING:
+				if ((flags & ACK) == 0) {
+					synchronized (lock) {
+						if (output != null) {
+							writeFrameHeader(output, 8, PING, ACK, 0);
+							output.put(payload);
+						}
+					}
+				}
+				break;
+			case GOAWAY:
+				goAway(payload.getInt() & Integer.MAX_VALUE, payload.getInt(), payload);
+				break;
+			case WINDOW_UPDATE:
+				windowUpdate(streamId, payload.getInt() & Integer.MAX_VALUE);
+				break;
+			default:
+				// PRIORITY and unknown frame types are ignored
+		}
+	}
+
+	/**
+	 * Skips the padding length and removes the padding from a padded frame
+	 */
+	private static void unpad(int flags, ByteBuffer payload) throws IOException {
+		if ((flags & PADDED) != 0) {
+			int padding = payload.get() & 0xff;
+			if (padding > payload.remaining()) {
+				throw new IOException("Padding longer than frame");
+			}
+			payload.limit(payload.limit() - padding);
+		}
+	}
+
+	private void headers(int streamId, int flags, ByteBuffer block) throws IOException {
+		// Every header block is decoded to keep the decoder's dynamic table in step, even when the stream is unknown
+		Map<String, String> headers = decoder.decode(block);
+
+		synchronized (lock) {
+			Stream stream = streams.get(streamId);
+			if (stream == null) {
+				return;
+			}
+			if (stream.status == 0) {
+				try {
+					stream.status = Integer.parseInt(headers.get(":status"));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid :status in response: " + headers.get(":status"));
+				}
+			}
+			if ((flags & END_STREAM) != 0) {
+				complete(streamId, stream);
+			}
+		}
+	}
+
+	private void data(int flags, int streamId, ByteBuffer payload) throws IOException {
+		synchronized (lock) {
+			// Flow control counts the whole frame, padding included
+			consumed += payload.remaining();
+			if (consumed >= DEFAULT_WINDOW_SIZE / 2 && output != null) {
+				writeFrameHeader(output, 4, WINDOW_UPDATE, 0, 0);
+				output.putInt(consumed);
+				consumed = 0;
+			}
+
+			unpad(flags, payload);
+			Stream stream = streams.get(streamId);
+			if (stream == null) {
+				return;
+			}
+			if (stream.body == null) {
+				stream.body = new ByteArrayOutputStream(payload.remaining());
+			}
+			stream.body.write(payload.array(), payload.position(), payload.remaining());
+			if ((flags & END_STREAM) != 0) {
+				complete(streamId, stream);
+			}
+		}
+	}
+
+	private void complete(int streamId, Stream stream) {
+		streams.remove(streamId);
+		answered.add(stream);
+		released();
+	}
+
+	private void reset(int streamId, int errorCode) {
+		synchronized (lock) {
+			Stream stream = streams.remove(streamId);
+			if (stream == null) {
+				return;
+			}
+			if (errorCode == REFUSED_STREAM) {
+				refused.add(stream.notification);
+			} else {
+				log.info("Stream " + streamId + " reset by the provider API with error code " + errorCode);
+				stream.status = 0;
+				stream.body = null;
+				answered.add(stream);
+			}
+			released();
+		}
+	}
+
+	/**
+	 * Called after a stream ended.  A connection that no longer accepts streams is closed once the last one ended.
+	 */
+	private void released() {
+		if (!accepting && streams.isEmpty()) {
+			retired = true;
+		}
+		// Senders are woken once a quarter of the streams are free, so they write many frames at a time instead of one
+		// frame for every response
+		if (streams.size() <= maxConcurrentStreams - maxConcurrentStreams / 4) {
+			lock.notifyAll();
+		}
+	}
+
+	private void settings(ByteBuffer payload) throws IOException {
+		synchronized (lock) {
+			while (payload.remaining() >= 6) {
+				int id = payload.getShort() & 0xffff;
+				int value = payload.getInt();
+				if (id == SETTINGS_HEADER_TABLE_SIZE) {
+					encoder.setMaxTableSize(value);
+				} else if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+					maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+				} else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+					if (value < 0) {
+						throw new IOException("SETTINGS_INITIAL_WINDOW_SIZE too large");
+					}
+					initialWindowSize = value;
+				} else if (id == SETTINGS_MAX_FRAME_SIZE) {
+					if (value < MAX_FRAME_SIZE || value > MAX_ALLOWED_FRAME_SIZE) {
+						throw new IOException("Invalid SETTINGS_MAX_FRAME_SIZE: " + value);
+					}
+					maxFrameSize = value;
+				}
+			}
+			log.debug("Provider API allows " + maxConcurrentStreams + " concurrent streams");
+
+			if (!ready) {
+				socket.setSoTimeout(0);
+				ready = true;
+			}
+			if (output != null) {
+				writeFrameHeader(output, 0, SETTINGS, ACK, 0);
+			}
+			lock.notifyAll();
+		}
+	}
+
+	private void windowUpdate(int streamId, int increment) throws IOException {
+		if (streamId != 0) {
+			return; // Each stream sends its whole payload right away, only the connection window matters
+		}
+		synchronized (lock) {
+			if (connectionWindow > MAX_WINDOW_SIZE - increment) {
+				throw new IOException("Connection window overflow");
+			}
+			connectionWindow += increment;
+			lock.notifyAll();
+		}
+	}
+
+	private void goAway(int lastStreamId, int errorCode, ByteBuffer debug) {
+		synchronized (lock) {
+			log.info("Provider API sent GOAWAY with error code " + errorCode + ": "
+					+ new String(debug.array(), debug.position(), debug.remaining()));
+			accepting = false;
+
+			List<Notification> unprocessed = new ArrayList<Notification>();
+			Iterator<Map.Entry<Integer, Stream>> entries = streams.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<Integer, Stream> entry = entries.next();
+				if (entry.getKey() > lastStreamId) {
+					unprocessed.add(entry.getValue().notification);
+					entries.remove();
+				}
+			}
+			refused.addAll(unprocessed);
+			released();
+		}
+	}
+
+	/**
+	 * Called by the reader thread when the connection ended.  Must hold the lock.
+	 */
+	private void fail() {
+		shutdown();
+		closed = true;
+
+		for (Stream stream : streams.values()) {
+			refused.add(stream.notification);
+		}
+		streams.clear();
+		lock.notifyAll();
+	}
+
+	private static void writeFrameHeader(ByteBuffer output, int length, int type, int flags, int streamId) {
+		output.put((byte) (length >>> 16));
+		output.putShort((short) length);
+		output.put((byte) type);
+		output.put((byte) flags);
+		output.putInt(streamId);
+	}
+}
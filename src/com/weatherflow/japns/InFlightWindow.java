@@ -0,0 +1,122 @@
+package com.weatherflow.japns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The most recently sent notifications, kept so they can be sent again after an error-response.  It is a ring
+ * indexed by notification identifier, so the rejected notification is found without a scan, and it covers a fixed
+ * range of identifiers so memory is bounded however many notifications are sent.  Identifiers are compared by their
+ * distance, so the window keeps working when the 32 bit identifier wraps around.</p>
+ * <br>
+ * <p>Not thread safe, the owner must synchronize.</p>
+ */
+final class InFlightWindow {
+	private final Notification[] slots;
+	private final int mask;
+	// Identifier of the oldest slot and the identifier after the newest, equal when empty
+	private int first = 0;
+	private int end = 0;
+
+	/**
+	 * Constructs an InFlightWindow
+	 * @param capacity Number of identifiers covered, rounded up to a power of two
+	 */
+	InFlightWindow(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.slots = new Notification[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Adds a sent notification.  Its identifier must be newer than every identifier in the window, identifiers that
+	 * were skipped are left empty.  When the window is full the oldest notification is dropped.
+	 * @param notification Notification with an identifier
+	 */
+	void add(Notification notification) {
+		int id = notification.getNotificationId();
+		if (first == end || id - end >= slots.length) {
+			clear();
+			first = id;
+			end = id;
+		} else if (id - end < 0) {
+			throw new IllegalArgumentException("Notification " + id + " is not newer than " + (end - 1));
+		}
+
+		while (end != id) {
+			append(null);
+		}
+		append(notification);
+	}
+
+	private void append(Notification notification) {
+		if (end - first == slots.length) {
+			slots[first & mask] = null;
+			first++;
+		}
+		slots[end & mask] = notification;
+		end++;
+	}
+
+	/**
+	 * @param id Identifier of a notification
+	 * @return The notification, or null if it is not in the window
+	 */
+	Notification get(int id) {
+		int offset = id - first;
+		if (offset < 0 || offset >= end - first) {
+			return null;
+		}
+		return slots[id & mask];
+	}
+
+	/**
+	 * Empties the window and returns the notifications sent after the given one.  If the identifier is older than
+	 * the window every notification in it is returned.
+	 * @param id Identifier of the rejected notification
+	 * @return Notifications to send again, oldest first
+	 */
+	List<Notification> takeAfter(int id) {
+		return take(id - first < 0 ? first : id + 1);
+	}
+
+	/**
+	 * Empties the window and returns the given notification and those sent after it.  If the identifier is older
+	 * than the window every notification in it is returned.
+	 * @param id Identifier of the first notification that was not delivered
+	 * @return Notifications to send again, oldest first
+	 */
+	List<Notification> takeFrom(int id) {
+		return take(id - first < 0 ? first : id);
+	}
+
+	private List<Notification> take(int from) {
+		int count = end - from;
+		List<Notification> taken = new ArrayList<Notification>(Math.max(count, 0));
+		for (int id = from; id != end && count > 0; id++) {
+			Notification notification = slots[id & mask];
+			if (notification != null) {
+				taken.add(notification);
+			}
+		}
+		clear();
+		return taken;
+	}
+
+	/**
+	 * @return Number of identifiers covered, including skipped ones
+	 */
+	int size() {
+		return end - first;
+	}
+
+	/**
+	 * Forgets every notification
+	 */
+	void clear() {
+		for (int id = first; id != end; id++) {
+			slots[id & mask] = null;
+		}
+		first = end;
+	}
+}
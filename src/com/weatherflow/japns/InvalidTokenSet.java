@@ -0,0 +1,198 @@
+package com.weatherflow.japns;
+
+/**
+ * <p>Device tokens known to be invalid, each with the time it was found to be invalid.  A NotificationService skips
+ * notifications to these tokens instead of sending them, because the APN service closes the connection after rejecting
+ * one and every notification sent after it has to be sent again over a new connection.  Tokens are added from invalid
+ * token error-responses and from the feedback service, and let through again when the device registers after that
+ * time.</p>
+ * <br>
+ * <p>The tokens are kept in an open-addressed table of longs, four per token, with a parallel table of timestamps, so an
+ * entry takes 40 bytes and a lookup allocates nothing.  Lookups of an empty set do not take the lock.</p>
+ */
+public class InvalidTokenSet implements FeedbackListener {
+	private static final int WORDS = DeviceToken.LENGTH / 8;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] tokens;
+	// Time each token was found invalid, 0 marks an empty slot
+	private long[] timestamps;
+	private int mask;
+	private volatile int size = 0;
+
+	/**
+	 * Constructs an empty InvalidTokenSet
+	 */
+	public InvalidTokenSet() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		tokens = new long[capacity * WORDS];
+		timestamps = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @param token Device token
+	 * @return True if notifications to the token are skipped
+	 */
+	public boolean contains(DeviceToken token) {
+		if (size == 0) {
+			return false;
+		}
+		synchronized (this) {
+			return find(token) >= 0;
+		}
+	}
+
+	/**
+	 * @param token Device token
+	 * @return Time the token was found invalid in milliseconds since the epoch, or 0 if it is not in the set
+	 */
+	public synchronized long getTimestamp(DeviceToken token) {
+		int slot = find(token);
+		return slot >= 0 ? timestamps[slot] : 0;
+	}
+
+	/**
+	 * Adds a token, or moves the time it was found invalid forward if it is in the set already
+	 * @param token Device token
+	 * @param timestamp Time the token was found invalid, in milliseconds since the epoch
+	 */
+	public synchronized void add(DeviceToken token, long timestamp) {
+		timestamp = Math.max(timestamp, 1);
+		int slot = find(token);
+		if (slot >= 0) {
+			timestamps[slot] = Math.max(timestamps[slot], timestamp);
+			return;
+		}
+		if ((size + 1) * 2 > timestamps.length) {
+			grow();
+		}
+		insert(token, timestamp);
+		size++;
+	}
+
+	/**
+	 * Records that a device registered its token with the app.  The token is let through again if it registered after
+	 * it was found invalid, the feedback service reports tokens that registered again later in the same way.
+	 * @param token Device token
+	 * @param registered Time the device registered, in milliseconds since the epoch
+	 * @return True if the token was removed from the set
+	 */
+	public synchronized boolean registered(DeviceToken token, long registered) {
+		int slot = find(token);
+		if (slot < 0 || registered <= timestamps[slot]) {
+			return false;
+		}
+		delete(slot);
+		return true;
+	}
+
+	/**
+	 * Removes a token whatever time it was found invalid
+	 * @param token Device token
+	 * @return True if the token was in the set
+	 */
+	public synchronized boolean remove(DeviceToken token) {
+		int slot = find(token);
+		if (slot < 0) {
+			return false;
+		}
+		delete(slot);
+		return true;
+	}
+
+	/**
+	 * @return Number of tokens in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes every token
+	 */
+	public synchronized void clear() {
+		allocate(INITIAL_CAPACITY);
+		size = 0;
+	}
+
+	/**
+	 * Adds a device reported by the feedback service, so the set can be passed to FeedbackService.readFailedDevices.
+	 */
+	public void deviceFailed(FailedDevice failedDevice) {
+		add(failedDevice.getDeviceToken(), failedDevice.getFailedTimestamp().getTime());
+	}
+
+	private int home(long word0, long word1, long word2, long word3) {
+		long h = word0 ^ word1 * 31 ^ word2 * 961 ^ word3 * 29791;
+		h *= 0x9e3779b97f4a7c15L;
+		return (int) (h >>> 32) & mask;
+	}
+
+	/**
+	 * @return Slot holding the token, or -1 if it is not in the set
+	 */
+	private int find(DeviceToken token) {
+		long word0 = token.word(0);
+		long word1 = token.word(1);
+		long word2 = token.word(2);
+		long word3 = token.word(3);
+		for (int slot = home(word0, word1, word2, word3); timestamps[slot] != 0; slot = (slot + 1) & mask) {
+			int i = slot * WORDS;
+			if (tokens[i] == word0 && tokens[i + 1] == word1 && tokens[i + 2] == word2 && tokens[i + 3] == word3) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(DeviceToken token, long timestamp) {
+		int slot = home(token.word(0), token.word(1), token.word(2), token.word(3));
+		while (timestamps[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		for (int i = 0; i < WORDS; i++) {
+			tokens[slot * WORDS + i] = token.word(i);
+		}
+		timestamps[slot] = timestamp;
+	}
+
+	/**
+	 * Empties a slot and moves later entries of the same probe run back into the gap, so lookups never need to skip
+	 * deleted slots.
+	 */
+	private void delete(int gap) {
+		for (int slot = (gap + 1) & mask; timestamps[slot] != 0; slot = (slot + 1) & mask) {
+			int i = slot * WORDS;
+			int home = home(tokens[i], tokens[i + 1], tokens[i + 2], tokens[i + 3]);
+			// The entry can move to the gap unless its home slot lies after the gap, up to the entry itself
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				System.arraycopy(tokens, i, tokens, gap * WORDS, WORDS);
+				timestamps[gap] = timestamps[slot];
+				gap = slot;
+			}
+		}
+		timestamps[gap] = 0;
+		size--;
+	}
+
+	private void grow() {
+		long[] oldTokens = tokens;
+		long[] oldTimestamps = timestamps;
+		allocate(oldTimestamps.length * 2);
+		for (int slot = 0; slot < oldTimestamps.length; slot++) {
+			if (oldTimestamps[slot] != 0) {
+				int i = slot * WORDS;
+				int to = home(oldTokens[i], oldTokens[i + 1], oldTokens[i + 2], oldTokens[i + 3]);
+				while (timestamps[to] != 0) {
+					to = (to + 1) & mask;
+				}
+				System.arraycopy(oldTokens, i, tokens, to * WORDS, WORDS);
+				timestamps[to] = oldTimestamps[slot];
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.weatherflow.japns;
+
+import java.util.Arrays;
+
+/**
+ * <p>Checks that bytes are a well-formed UTF-8 JSON object without building any objects, so a payload serialized
+ * elsewhere can be sent as it is.  Nesting is tracked on an explicit stack instead of by recursion, so deeply nested
+ * input cannot overflow the thread's stack.</p>
+ */
+final class JsonValidator {
+	private JsonValidator() {
+	}
+
+	/**
+	 * Checks a JSON object
+	 * @param json Bytes holding the JSON
+	 * @param offset Index of the first byte
+	 * @param length Number of bytes
+	 * @return -1 if the bytes are one well-formed JSON object, otherwise the index of the first byte in error
+	 */
+	static int validate(byte[] json, int offset, int length) {
+		int end = offset + length;
+		int i = skip(json, offset, end);
+		if (i == end || json[i] != '{') {
+			return i;
+		}
+
+		byte[] stack = new byte[16];
+		int depth = 0;
+		boolean value = true; // True when a value starts at i, false when one has just ended
+		while (true) {
+			i = skip(json, i, end);
+			if (i == end) {
+				return i;
+			}
+			byte c = json[i];
+
+			if (value) {
+				if (c == '{' || c == '[') {
+					if (depth == stack.length) {
+						stack = Arrays.copyOf(stack, depth * 2);
+					}
+					stack[depth++] = c;
+					i = skip(json, i + 1, end);
+					if (i < end && json[i] == (c == '{' ? '}' : ']')) {
+						depth--;
+						i++;
+						value = false;
+						if (depth == 0) {
+							i = skip(json, i, end);
+							return i == end ? -1 : i;
+						}
+					} else if (c == '{') {
+						i = key(json, i, end);
+					}
+				} else {
+					i = scalar(json, i, end);
+					value = false;
+				}
+			} else if (c == ',') {
+				i++;
+				if (stack[depth - 1] == '{') {
+					i = key(json, skip(json, i, end), end);
+				}
+				value = true;
+			} else if ((c == '}' && stack[depth - 1] == '{') || (c == ']' && stack[depth - 1] == '[')) {
+				depth--;
+				i++;
+				if (depth == 0) {
+					i = skip(json, i, end);
+					return i == end ? -1 : i;
+				}
+			} else {
+				return i;
+			}
+
+			if (i < 0) {
+				return ~i;
+			}
+		}
+	}
+
+	private static int skip(byte[] json, int i, int end) {
+		while (i < end && (json[i] == ' ' || json[i] == '\t' || json[i] == '\n' || json[i] == '\r')) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Checks a member name and the colon after it
+	 * @return Index after the colon, or the complement of the index in error
+	 */
+	private static int key(byte[] json, int i, int end) {
+		if (i == end || json[i] != '"') {
+			return ~i;
+		}
+		i = string(json, i, end);
+		if (i < 0) {
+			return i;
+		}
+		i = skip(json, i, end);
+		if (i == end || json[i] != ':') {
+			return ~i;
+		}
+		return i + 1;
+	}
+
+	/**
+	 * Checks a string, number, true, false or null
+	 * @return Index after the value, or the complement of the index in error
+	 */
+	private static int scalar(byte[] json, int i, int end) {
+		switch (json[i]) {
+		case '"':
+			return string(json, i, end);
+		case 't':
+			return literal(json, i, end, "true");
+		case 'f':
+			return literal(json, i, end, "false");
+		case 'n':
+			return literal(json, i, end, "null");
+		default:
+			return number(json, i, end);
+		}
+	}
+
+	private static int literal(byte[] json, int i, int end, String literal) {
+		for (int j = 0; j < literal.length(); j++, i++) {
+			if (i == end || json[i] != literal.charAt(j)) {
+				return ~i;
+			}
+		}
+		return i;
+	}
+
+	private static int number(byte[] json, int i, int end) {
+		if (i < end && json[i] == '-') {
+			i++;
+		}
+		if (i < end && json[i] == '0') {
+			i++;
+		} else {
+			int start = i;
+			i = digits(json, i, end);
+			if (i == start) {
+				return ~i;
+			}
+		}
+		if (i < end && json[i] == '.') {
+			int start = ++i;
+			i = digits(json, i, end);
+			if (i == start) {
+				return ~i;
+			}
+		}
+		if (i < end && (json[i] == 'e' || json[i] == 'E')) {
+			i++;
+			if (i < end && (json[i] == '+' || json[i] == '-')) {
+				i++;
+			}
+			int start = i;
+			i = digits(json, i, end);
+			if (i == start) {
+				return ~i;
+			}
+		}
+		return i;
+	}
+
+	private static int digits(byte[] json, int i, int end) {
+		while (i < end && json[i] >= '0' && json[i] <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Checks a string, its escapes and that it is well-formed UTF-8
+	 * @return Index after the closing quote, or the complement of the index in error
+	 */
+	private static int string(byte[] json, int i, int end) {
+		i++;
+		while (i < end) {
+			int c = json[i] & 0xff;
+			if (c == '"') {
+				return i + 1;
+			} else if (c == '\\') {
+				if (++i == end) {
+					return ~i;
+				}
+				switch (json[i]) {
+				case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+					i++;
+					break;
+				case 'u':
+					for (int j = 0; j < 4; j++) {
+						if (++i == end || Character.digit(json[i], 16) < 0) {
+							return ~i;
+						}
+					}
+					i++;
+					break;
+				default:
+					return ~i;
+				}
+			} else if (c < 0x20) {
+				return ~i;
+			} else if (c < 0x80) {
+				i++;
+			} else {
+				i = utf8(json, i, end);
+				if (i < 0) {
+					return i;
+				}
+			}
+		}
+		return ~i;
+	}
+
+	/**
+	 * Checks a multi-byte UTF-8 sequence, rejecting overlong forms, surrogates and code points above U+10FFFF
+	 * @return Index after the sequence, or the complement of the index in error
+	 */
+	private static int utf8(byte[] json, int i, int end) {
+		int c = json[i] & 0xff;
+		int continuation;
+		int min = 0x80;
+		int max = 0xbf;
+		if (c >= 0xc2 && c <= 0xdf) {
+			continuation = 1;
+		} else if (c >= 0xe0 && c <= 0xef) {
+			continuation = 2;
+			if (c == 0xe0) {
+				min = 0xa0;
+			} else if (c == 0xed) {
+				max = 0x9f;
+			}
+		} else if (c >= 0xf0 && c <= 0xf4) {
+			continuation = 3;
+			if (c == 0xf0) {
+				min = 0x90;
+			} else if (c == 0xf4) {
+				max = 0x8f;
+			}
+		} else {
+			return ~i;
+		}
+
+		for (int j = 0; j < continuation; j++) {
+			if (++i == end) {
+				return ~i;
+			}
+			int b = json[i] & 0xff;
+			if (b < min || b > max) {
+				return ~i;
+			}
+			min = 0x80;
+			max = 0xbf;
+		}
+		return i + 1;
+	}
+}
@@ -0,0 +1,327 @@
+package com.weatherflow.japns;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * <p>Writes JSON straight to UTF-8 bytes in one pass, without building the intermediate String that
+ * JSONValue.toJSONString and getBytes("UTF-8") would.  Non-ASCII characters are written as UTF-8 instead of \\u
+ * escapes because they take fewer bytes of the payload limit.</p>
+ *
+ * <p>Values can be Strings, Numbers, Booleans, null, Maps, Iterables and arrays, nested in any way.</p>
+ */
+final class JsonWriter {
+	private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] ELLIPSIS = { (byte) 0xe2, (byte) 0x80, (byte) 0xa6 }; // U+2026 in UTF-8
+
+	private byte[] bytes;
+	private int count = 0;
+	private boolean first = true;
+
+	JsonWriter() {
+		this(256);
+	}
+
+	JsonWriter(int capacity) {
+		bytes = new byte[capacity];
+	}
+
+	/**
+	 * @return Number of bytes written so far
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return Copy of the bytes written
+	 */
+	byte[] toByteArray() {
+		return Arrays.copyOf(bytes, count);
+	}
+
+	/**
+	 * Starts an object.  Members are written with name followed by a value, or with member.
+	 */
+	JsonWriter beginObject() {
+		separate();
+		write('{');
+		first = true;
+		return this;
+	}
+
+	JsonWriter endObject() {
+		write('}');
+		first = false;
+		return this;
+	}
+
+	JsonWriter beginArray() {
+		separate();
+		write('[');
+		first = true;
+		return this;
+	}
+
+	JsonWriter endArray() {
+		write(']');
+		first = false;
+		return this;
+	}
+
+	/**
+	 * Writes the name of an object member, the value must follow
+	 */
+	JsonWriter name(String name) {
+		separate();
+		quote(name);
+		write(':');
+		first = true;
+		return this;
+	}
+
+	/**
+	 * Writes an object member, unless the value is null
+	 */
+	JsonWriter member(String name, Object value) {
+		if (value != null) {
+			name(name);
+			value(value);
+		}
+		return this;
+	}
+
+	/**
+	 * Writes a value, Maps become objects and Iterables and arrays become arrays
+	 */
+	JsonWriter value(Object value) {
+		if (value instanceof String) {
+			separate();
+			quote((String) value);
+			first = false;
+		} else if (value == null) {
+			literal(NULL);
+		} else if (value instanceof Boolean) {
+			literal(((Boolean) value) ? TRUE : FALSE);
+		} else if (value instanceof Number) {
+			number((Number) value);
+		} else if (value instanceof Map) {
+			beginObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				name(String.valueOf(entry.getKey()));
+				value(entry.getValue());
+			}
+			endObject();
+		} else if (value instanceof Iterable) {
+			beginArray();
+			for (Object element : (Iterable<?>) value) {
+				value(element);
+			}
+			endArray();
+		} else if (value instanceof Object[]) {
+			beginArray();
+			for (Object element : (Object[]) value) {
+				value(element);
+			}
+			endArray();
+		} else {
+			separate();
+			quote(value.toString());
+			first = false;
+		}
+		return this;
+	}
+
+	/**
+	 * Writes an empty string whose contents are filled in by fill once the size of everything after it is known
+	 * @return Position of the string
+	 */
+	int placeholder() {
+		separate();
+		int at = count;
+		write('"');
+		write('"');
+		first = false;
+		return at;
+	}
+
+	/**
+	 * Fills a placeholder with a string, truncated so the whole output is at most maxSize bytes.  The string is cut at a
+	 * code point boundary and ends with an ellipsis when it is truncated.  The exact escaped length of each character
+	 * is counted as the string is scanned, so the string is only scanned once.  The string is left empty when not even
+	 * the ellipsis fits.
+	 * @param at Position returned by placeholder
+	 * @param s The string
+	 * @param maxSize Largest output wanted, in bytes
+	 * @return True if the string was truncated
+	 */
+	boolean fill(int at, String s, int maxSize) {
+		int available = maxSize - count;
+		int length = 0;
+		int cut = 0;
+		int end = 0;
+		while (end < s.length() && length <= available) {
+			if (length + ELLIPSIS.length <= available) {
+				cut = end;
+			}
+			int codePoint = s.codePointAt(end);
+			length += escapedLength(codePoint);
+			end += Character.charCount(codePoint);
+		}
+		if (length + ELLIPSIS.length <= available) {
+			cut = end;
+		}
+		boolean truncated = length > available;
+
+		byte[] tail = Arrays.copyOfRange(bytes, at + 1, count);
+		count = at + 1;
+		if (truncated) {
+			escape(s, cut);
+			if (available >= ELLIPSIS.length) {
+				ensure(ELLIPSIS.length);
+				System.arraycopy(ELLIPSIS, 0, bytes, count, ELLIPSIS.length);
+				count += ELLIPSIS.length;
+			}
+		} else {
+			escape(s, s.length());
+		}
+		ensure(tail.length);
+		System.arraycopy(tail, 0, bytes, count, tail.length);
+		count += tail.length;
+		return truncated;
+	}
+
+	/**
+	 * @return Number of bytes a code point takes in a JSON string
+	 */
+	private static int escapedLength(int codePoint) {
+		if (codePoint == '"' || codePoint == '\\' || codePoint == '\n' || codePoint == '\r' || codePoint == '\t'
+				|| codePoint == '\b' || codePoint == '\f') {
+			return 2;
+		} else if (codePoint < 0x20) {
+			return 6;
+		} else if (codePoint < 0x80) {
+			return 1;
+		} else if (codePoint < 0x800) {
+			return 2;
+		} else if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+			return 1; // Unpaired surrogate, replaced by '?'
+		} else if (codePoint < 0x10000) {
+			return 3;
+		}
+		return 4;
+	}
+
+	private void number(Number value) {
+		if ((value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))
+				|| (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite()))) {
+			literal(NULL);
+			return;
+		}
+		separate();
+		String digits = value.toString();
+		ensure(digits.length());
+		for (int i = 0; i < digits.length(); i++) {
+			bytes[count++] = (byte) digits.charAt(i);
+		}
+		first = false;
+	}
+
+	private void literal(byte[] literal) {
+		separate();
+		ensure(literal.length);
+		System.arraycopy(literal, 0, bytes, count, literal.length);
+		count += literal.length;
+		first = false;
+	}
+
+	private void separate() {
+		if (!first) {
+			write(',');
+		}
+	}
+
+	/**
+	 * Writes a quoted and escaped string encoded as UTF-8
+	 */
+	private void quote(String s) {
+		write('"');
+		escape(s, s.length());
+		write('"');
+	}
+
+	/**
+	 * Writes the chars of s before end, escaped and encoded as UTF-8
+	 */
+	private void escape(String s, int end) {
+		// Worst case is 6 bytes for every char, but that is rare enough to grow on demand instead
+		ensure(end);
+		for (int i = 0; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+				if (count == bytes.length) {
+					ensure(end - i);
+				}
+				bytes[count++] = (byte) c;
+				continue;
+			}
+
+			ensure(end - i + 6);
+			if (c == '"' || c == '\\') {
+				bytes[count++] = '\\';
+				bytes[count++] = (byte) c;
+			} else if (c == '\n') {
+				bytes[count++] = '\\';
+				bytes[count++] = 'n';
+			} else if (c == '\r') {
+				bytes[count++] = '\\';
+				bytes[count++] = 'r';
+			} else if (c == '\t') {
+				bytes[count++] = '\\';
+				bytes[count++] = 't';
+			} else if (c == '\b') {
+				bytes[count++] = '\\';
+				bytes[count++] = 'b';
+			} else if (c == '\f') {
+				bytes[count++] = '\\';
+				bytes[count++] = 'f';
+			} else if (c < 0x20) {
+				bytes[count++] = '\\';
+				bytes[count++] = 'u';
+				bytes[count++] = '0';
+				bytes[count++] = '0';
+				bytes[count++] = HEX_DIGITS[c >> 4];
+				bytes[count++] = HEX_DIGITS[c & 0xf];
+			} else if (c < 0x800) {
+				bytes[count++] = (byte) (0xc0 | (c >> 6));
+				bytes[count++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				bytes[count++] = (byte) (0xf0 | (codePoint >> 18));
+				bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				bytes[count++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				bytes[count++] = '?'; // Unpaired surrogate, replaced like String.getBytes does
+			} else {
+				bytes[count++] = (byte) (0xe0 | (c >> 12));
+				bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				bytes[count++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	private void write(char c) {
+		ensure(1);
+		bytes[count++] = (byte) c;
+	}
+
+	private void ensure(int length) {
+		if (count + length > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + length));
+		}
+	}
+}
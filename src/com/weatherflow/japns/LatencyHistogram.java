@@ -0,0 +1,101 @@
+package com.weatherflow.japns;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Records durations into power of two buckets, so recording is a couple of atomic adds and the percentiles read
+ * back are accurate to within a factor of two.  Like StripedCounter, each thread records into its own stripe of
+ * buckets.</p>
+ */
+final class LatencyHistogram {
+	private static final int BUCKETS = 64;
+
+	// Each stripe holds the buckets followed by a count and a total
+	private static final int COUNT = BUCKETS;
+	private static final int TOTAL = BUCKETS + 1;
+	private static final int STRIDE = BUCKETS + StripedCounter.PADDING;
+
+	private final AtomicLongArray cells = new AtomicLongArray(StripedCounter.STRIPES * STRIDE);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos Duration in nanoseconds
+	 */
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int base = StripedCounter.stripe() * STRIDE;
+		cells.getAndIncrement(base + BUCKETS - Long.numberOfLeadingZeros(nanos));
+		cells.getAndIncrement(base + COUNT);
+		cells.getAndAdd(base + TOTAL, nanos);
+
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	long count() {
+		long count = 0;
+		for (int i = 0; i < StripedCounter.STRIPES; i++) {
+			count += cells.get(i * STRIDE + COUNT);
+		}
+		return count;
+	}
+
+	/**
+	 * @return Mean duration in microseconds, or 0 when nothing was recorded
+	 */
+	double meanMicros() {
+		long count = 0;
+		long total = 0;
+		for (int i = 0; i < StripedCounter.STRIPES; i++) {
+			count += cells.get(i * STRIDE + COUNT);
+			total += cells.get(i * STRIDE + TOTAL);
+		}
+		return count == 0 ? 0 : total / 1000.0 / count;
+	}
+
+	/**
+	 * @param fraction Fraction of the durations, such as 0.99
+	 * @return Upper bound of the bucket holding that fraction of the durations, in microseconds
+	 */
+	double percentileMicros(double fraction) {
+		long[] buckets = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < StripedCounter.STRIPES; i++) {
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				long value = cells.get(i * STRIDE + bucket);
+				buckets[bucket] += value;
+				count += value;
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += buckets[bucket];
+			if (seen >= rank) {
+				// Bucket n holds durations below 2^n nanoseconds
+				return Math.min(Math.pow(2, bucket), max.get()) / 1000.0;
+			}
+		}
+		return max.get() / 1000.0;
+	}
+
+	double maxMicros() {
+		return max.get() / 1000.0;
+	}
+
+	void reset() {
+		for (int i = 0; i < cells.length(); i++) {
+			cells.set(i, 0);
+		}
+		max.set(0);
+	}
+}
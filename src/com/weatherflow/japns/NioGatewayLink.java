@@ -0,0 +1,76 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A GatewayLink over a NioLink.  Frames are queued on the caller's thread and written by the transport's selector
+ * thread, which also collects the error-response.  The link is closed as soon as a complete error-response has
+ * arrived.</p>
+ */
+class NioGatewayLink implements GatewayLink, NioLink.Handler {
+	private final Listener listener;
+	private final NioLink link;
+	private final byte[] packet = new byte[ErrorResponse.LENGTH];
+	private int read = 0;
+
+	private NioGatewayLink(NioTransport transport, Connector connector, Listener listener) throws IOException {
+		this.listener = listener;
+		long start = System.nanoTime();
+		try {
+			this.link = NioLink.open(transport, connector.getSSLContext(), connector.getHost(), this);
+		} catch (IOException e) {
+			connector.getMetrics().failed();
+			throw e;
+		}
+		connector.getMetrics().connected(System.nanoTime() - start);
+	}
+
+	/**
+	 * Creates a factory that opens NioGatewayLinks
+	 * @param transport Transport driving the connections
+	 * @param connector Connector whose SSLContext and host are used
+	 * @return The factory
+	 */
+	static Factory factory(final NioTransport transport, final Connector connector) {
+		return new Factory() {
+			public GatewayLink open(Listener listener) {
+				try {
+					return new NioGatewayLink(transport, connector, listener);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	public void write(ByteBuffer frames, int firstId) throws IOException {
+		link.write(frames, firstId);
+	}
+
+	public void flush() {
+		link.flush();
+	}
+
+	public Integer getUndelivered() {
+		return link.getUnflushedTag();
+	}
+
+	public void close() {
+		link.close();
+	}
+
+	public void received(ByteBuffer data) {
+		int size = Math.min(data.remaining(), packet.length - read);
+		data.get(packet, read, size);
+		read += size;
+
+		if (read == packet.length) {
+			link.fail(new IOException("Received error-response"));
+		}
+	}
+
+	public void closed(IOException cause) {
+		listener.closed(this, read == packet.length ? ErrorResponse.parse(packet) : null);
+	}
+}
@@ -0,0 +1,578 @@
+package com.weatherflow.japns;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A TLS connection over a non-blocking SocketChannel, driven by a NioTransport.  Any thread can queue buffers to be
+ * written; the selector thread encrypts them with the SSLEngine into direct buffers and writes several TLS records with
+ * one gathering write.  Decrypted data is handed to the Handler on the selector thread.</p>
+ */
+class NioLink {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.NioLink");
+
+	// Number of TLS records gathered into one write
+	private static final int NET_RECORDS = 4;
+	// Number of queued buffers encrypted with one call to the SSLEngine
+	private static final int MAX_SOURCES = 16;
+	// Number of queued bytes that makes writers wait for the selector to catch up
+	private static final long HIGH_WATER = 1 << 20;
+	private static final long HANDSHAKE_TIMEOUT = 30000;
+
+	/**
+	 * Receives what happens on the link
+	 */
+	interface Handler {
+		/**
+		 * Called on the selector thread with decrypted data.  The buffer is reused after the call returns.
+		 */
+		void received(ByteBuffer data);
+
+		/**
+		 * Called once on a callback thread of the transport, never a worker thread, when an established connection 
+		 * ends, unless it was ended with close()
+		 * @param cause EOFException when the peer closed the connection, otherwise the failure
+		 */
+		void closed(IOException cause);
+	}
+
+	/**
+	 * A queued buffer and the tag it was written with
+	 */
+	private static class Outbound {
+		final ByteBuffer buffer;
+		final int tag;
+
+		Outbound(ByteBuffer buffer, int tag) {
+			this.buffer = buffer;
+			this.tag = tag;
+		}
+	}
+
+	private final NioTransport transport;
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final Handler handler;
+	private SelectionKey key;
+
+	private ByteBuffer netIn;
+	private ByteBuffer appIn;
+	private final ByteBuffer[] netOut = new ByteBuffer[NET_RECORDS];
+	private int netOutHead = 0;
+	private int netOutTail = 0;
+	private final ByteBuffer empty = ByteBuffer.allocate(0);
+	private final ByteBuffer[] sources = new ByteBuffer[MAX_SOURCES];
+
+	private final ConcurrentLinkedQueue<Outbound> pending = new ConcurrentLinkedQueue<Outbound>();
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final AtomicBoolean pumpScheduled = new AtomicBoolean();
+	// Tag of the oldest buffer that was encrypted but may not have reached the socket
+	private Integer unflushedTag = null;
+	private boolean tasksRunning = false;
+
+	private volatile boolean handshaken = false;
+	private volatile boolean closed = false;
+	private volatile boolean closedByUser = false;
+	private volatile IOException failure = null;
+	private volatile int waiting = 0;
+
+	private final Runnable pumpTask = new Runnable() {
+		public void run() {
+			pumpScheduled.set(false);
+			pump();
+		}
+	};
+
+	private NioLink(NioTransport transport, SocketChannel channel, SSLEngine engine, Handler handler) {
+		this.transport = transport;
+		this.channel = channel;
+		this.engine = engine;
+		this.handler = handler;
+
+		int packetSize = engine.getSession().getPacketBufferSize();
+		netIn = ByteBuffer.allocateDirect(packetSize);
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		for (int i = 0; i < NET_RECORDS; i++) {
+			netOut[i] = ByteBuffer.allocateDirect(packetSize);
+		}
+	}
+
+	/**
+	 * Opens a TLS connection and waits for the handshake to finish
+	 * @param transport Transport whose selector drives the connection
+	 * @param sslContext SSLContext the SSLEngine is created from
+	 * @param host Host:port to connect to
+	 * @param handler Handler receiving data and the end of the connection
+	 * @return The connected link
+	 * @throws IOException If the connection or handshake fails
+	 */
+	static NioLink open(NioTransport transport, SSLContext sslContext, String host, Handler handler) throws IOException {
+		String[] hostPort = host.split(":");
+		int port = Integer.parseInt(hostPort[1]);
+
+		SSLEngine engine = sslContext.createSSLEngine(hostPort[0], port);
+		engine.setUseClientMode(true);
+		engine.setEnabledCipherSuites(SSLContextCache.cipherSuites(engine.getSupportedCipherSuites(), engine.getEnabledCipherSuites()));
+
+		log.debug("Connecting to " + host);
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(hostPort[0], port));
+
+		final NioLink link = new NioLink(transport, channel, engine, handler);
+		transport.execute(new Runnable() {
+			public void run() {
+				link.register();
+			}
+		});
+		link.awaitHandshake();
+		return link;
+	}
+
+	/**
+	 * Queues a buffer to be written.  Blocks while too much data is queued.
+	 * @param buffer Flipped buffer, released to the buffer pool once it has been encrypted
+	 * @param tag Value reported by getUnflushedTag while the buffer may not have been written
+	 * @throws IOException If the connection has ended
+	 */
+	void write(ByteBuffer buffer, int tag) throws IOException {
+		if (closed) {
+			NotificationService.BUFFERS.release(buffer);
+			throw new IOException("Connection closed", failure);
+		}
+
+		Outbound outbound = new Outbound(buffer, tag);
+		pending.add(outbound);
+		if (closed && pending.remove(outbound)) {
+			// Ended while queuing, after fail released the queue
+			NotificationService.BUFFERS.release(buffer);
+			throw new IOException("Connection closed", failure);
+		}
+		long queued = pendingBytes.addAndGet(buffer.remaining());
+		schedulePump();
+
+		if (queued > HIGH_WATER) {
+			await(HIGH_WATER);
+		}
+	}
+
+	/**
+	 * Blocks until everything queued has been written to the socket or the connection has ended
+	 */
+	void flush() {
+		try {
+			await(0);
+		} catch (IOException e) {
+			// Connection ended, nothing left to flush
+		}
+	}
+
+	/**
+	 * Gets the tag of the oldest buffer that may not have been written to the socket.  Only meaningful once the
+	 * connection has ended.
+	 * @return The tag, or null when everything was written
+	 */
+	Integer getUnflushedTag() {
+		if (unflushedTag != null) {
+			return unflushedTag;
+		}
+		Outbound head = pending.peek();
+		return head == null ? null : head.tag;
+	}
+
+	/**
+	 * Closes the connection.  The Handler is not told.
+	 */
+	void close() {
+		closedByUser = true;
+		if (transport.inEventLoop()) {
+			shutdown();
+		} else {
+			try {
+				transport.execute(new Runnable() {
+					public void run() {
+						shutdown();
+					}
+				});
+			} catch (IllegalStateException e) {
+				// Transport already closed every connection
+			}
+		}
+	}
+
+	/**
+	 * Ends the connection with a failure.  Must be called on the selector thread.
+	 */
+	void fail(final IOException cause) {
+		if (closed) {
+			return;
+		}
+		log.debug("Connection ended: " + cause.getMessage());
+		failure = cause;
+		release();
+		discard();
+
+		if (handshaken && !closedByUser) {
+			transport.dispatch(new Runnable() {
+				public void run() {
+					handler.closed(cause);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Handles a ready key.  Called on the selector thread.
+	 */
+	void ready(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+		try {
+			if (key.isConnectable() && channel.finishConnect()) {
+				log.debug("Starting handshake");
+				engine.beginHandshake();
+			}
+			pump();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void register() {
+		try {
+			key = channel.register(transport.getSelector(), SelectionKey.OP_CONNECT, this);
+		} catch (ClosedChannelException e) {
+			fail(e);
+		}
+	}
+
+	private void schedulePump() {
+		if (pumpScheduled.compareAndSet(false, true)) {
+			try {
+				transport.execute(pumpTask);
+			} catch (IllegalStateException e) {
+				pumpScheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Moves data through the SSLEngine in both directions until no more progress can be made.  Called on the selector
+	 * thread.
+	 */
+	private void pump() {
+		if (closed || tasksRunning || !channel.isConnected()) {
+			return;
+		}
+
+		try {
+			boolean progress = true;
+			while (progress && !tasksRunning && !closed) {
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+					break;
+				} else if (status == HandshakeStatus.NEED_WRAP) {
+					progress = wrap();
+				} else if (status == HandshakeStatus.NEED_UNWRAP) {
+					progress = unwrap();
+				} else {
+					if (!handshaken) {
+						log.debug("Handshake finished");
+						handshaken = true;
+						signal();
+					}
+					progress = unwrap();
+					progress |= wrap();
+				}
+
+				if (!flushNet()) {
+					break; // Socket is full, wait for OP_WRITE
+				}
+			}
+
+			if (!closed) {
+				key.interestOps(SelectionKey.OP_READ | (netOutHead < netOutTail ? SelectionKey.OP_WRITE : 0));
+			}
+		} catch (IOException e) {
+			fail(e);
+			return;
+		} catch (RuntimeException e) {
+			fail(new IOException(e));
+			return;
+		}
+
+		if (waiting > 0) {
+			signal();
+		}
+	}
+
+	private boolean unwrap() throws IOException {
+		int read = channel.read(netIn);
+		if (read < 0) {
+			throw new EOFException("Connection closed by peer");
+		}
+
+		boolean progress = read > 0;
+		netIn.flip();
+		try {
+			while (netIn.hasRemaining()) {
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				SSLEngineResult.Status status = result.getStatus();
+
+				if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					ByteBuffer larger = ByteBuffer.allocate(appIn.capacity() + engine.getSession().getApplicationBufferSize());
+					appIn.flip();
+					larger.put(appIn);
+					appIn = larger;
+					continue;
+				} else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					if (netIn.limit() == netIn.capacity() && netIn.position() == 0) {
+						netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+					}
+					break;
+				} else if (status == SSLEngineResult.Status.CLOSED) {
+					throw new EOFException("Connection closed by peer");
+				}
+
+				if (result.bytesProduced() > 0) {
+					appIn.flip();
+					handler.received(appIn);
+					appIn.clear();
+				}
+				progress |= result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+
+				HandshakeStatus handshake = result.getHandshakeStatus();
+				if (handshake == HandshakeStatus.NEED_TASK || handshake == HandshakeStatus.NEED_WRAP) {
+					break;
+				}
+			}
+		} finally {
+			netIn.compact();
+		}
+		return progress;
+	}
+
+	private boolean wrap() throws IOException {
+		boolean progress = false;
+		while (netOutTail < NET_RECORDS) {
+			boolean handshaking = engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+			int count = handshaken && !handshaking ? gather() : 0;
+			if (count == 0 && !handshaking) {
+				break;
+			}
+
+			ByteBuffer destination = netOut[netOutTail];
+			SSLEngineResult result = count > 0 ? engine.wrap(sources, 0, count, destination) : engine.wrap(empty, destination);
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+				throw new IOException("SSLEngine closed");
+			}
+			if (result.bytesProduced() > 0) {
+				destination.flip();
+				netOutTail++;
+				progress = true;
+			}
+			if (count > 0) {
+				consumed(result.bytesConsumed());
+			}
+
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK
+					|| (result.bytesProduced() == 0 && result.bytesConsumed() == 0)) {
+				break;
+			}
+		}
+		return progress;
+	}
+
+	/**
+	 * Fills the sources array from the head of the queue
+	 */
+	private int gather() {
+		int count = 0;
+		for (Outbound outbound : pending) {
+			if (count == MAX_SOURCES) {
+				break;
+			}
+			sources[count++] = outbound.buffer;
+		}
+		return count;
+	}
+
+	/**
+	 * Removes the fully encrypted buffers from the head of the queue
+	 */
+	private void consumed(int bytes) {
+		pendingBytes.addAndGet(-bytes);
+		Outbound head;
+		while ((head = pending.peek()) != null && !head.buffer.hasRemaining()) {
+			pending.poll();
+			if (unflushedTag == null) {
+				unflushedTag = head.tag;
+			}
+			NotificationService.BUFFERS.release(head.buffer);
+		}
+		for (int i = 0; i < MAX_SOURCES; i++) {
+			sources[i] = null;
+		}
+	}
+
+	/**
+	 * Releases the buffers that will never be written, keeping the tag of the oldest for getUnflushedTag
+	 */
+	private void discard() {
+		Outbound head;
+		while ((head = pending.poll()) != null) {
+			if (unflushedTag == null) {
+				unflushedTag = head.tag;
+			}
+			pendingBytes.addAndGet(-head.buffer.remaining());
+			NotificationService.BUFFERS.release(head.buffer);
+		}
+	}
+
+	/**
+	 * Writes the encrypted records with one gathering write
+	 * @return True when every record has been written
+	 */
+	private boolean flushNet() throws IOException {
+		if (netOutHead == netOutTail) {
+			return true;
+		}
+
+		channel.write(netOut, netOutHead, netOutTail - netOutHead);
+		while (netOutHead < netOutTail && !netOut[netOutHead].hasRemaining()) {
+			netOut[netOutHead].clear();
+			netOutHead++;
+		}
+
+		if (netOutHead == netOutTail) {
+			netOutHead = 0;
+			netOutTail = 0;
+			unflushedTag = null;
+			return true;
+		}
+		return false;
+	}
+
+	private void runDelegatedTasks() {
+		tasksRunning = true;
+		transport.submit(new Runnable() {
+			public void run() {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				transport.execute(new Runnable() {
+					public void run() {
+						tasksRunning = false;
+						pump();
+					}
+				});
+			}
+		});
+	}
+
+	private void shutdown() {
+		if (closed) {
+			return;
+		}
+		try {
+			engine.closeOutbound();
+			if (handshaken) {
+				wrap();
+				flushNet();
+			}
+		} catch (IOException e) {
+			log.debug("IOException while closing connection: " + e.getMessage());
+		}
+		release();
+	}
+
+	private void release() {
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("IOException while closing channel", e);
+		}
+		signal();
+	}
+
+	private void awaitHandshake() throws IOException {
+		long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+		synchronized (this) {
+			waiting++;
+			try {
+				while (!handshaken && !closed) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						close();
+						throw new IOException("Timed out waiting for handshake");
+					}
+					wait(wait);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new IOException("Interrupted waiting for handshake");
+			} finally {
+				waiting--;
+			}
+		}
+		if (!handshaken) {
+			throw new IOException("Handshake failed", failure);
+		}
+	}
+
+	/**
+	 * Waits until no more than the given number of bytes is queued and, for 0, every record is written
+	 */
+	private void await(long queued) throws IOException {
+		synchronized (this) {
+			waiting++;
+			try {
+				while (!closed && (pendingBytes.get() > queued || (queued == 0 && (!pending.isEmpty() || unflushedTag != null)))) {
+					wait(100);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for the connection to drain");
+			} finally {
+				waiting--;
+			}
+		}
+		if (closed) {
+			throw new IOException("Connection closed", failure);
+		}
+	}
+
+	private synchronized void signal() {
+		notifyAll();
+	}
+
+	private static ByteBuffer enlarge(ByteBuffer buffer, int extra) {
+		ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() + extra);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+}
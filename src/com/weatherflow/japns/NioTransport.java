@@ -0,0 +1,163 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A non-blocking transport that drives any number of connections to the APN gateway and feedback service from a
+ * single selector thread.  Connections use a SocketChannel with an SSLEngine instead of a blocking SSLSocket, so no
+ * thread is parked on a socket per connection.  A small pool of worker threads runs the SSLEngine's handshake tasks that
+ * would otherwise stall the selector.  Callbacks run on threads of their own, as they may block on a new handshake.</p>
+ *
+ * <p>One transport can be shared by many NotificationService and FeedbackService objects.  Close it when they are no
+ * longer used.</p>
+ */
+public class NioTransport implements Runnable {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.NioTransport");
+
+	private final Selector selector;
+	private final Thread thread;
+	private final ExecutorService workers;
+	private final ExecutorService callbacks;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean running = true;
+
+	/**
+	 * Constructs a NioTransport with two worker threads and starts the selector thread
+	 * @throws IOException If the selector cannot be opened
+	 */
+	public NioTransport() throws IOException {
+		this(2);
+	}
+
+	/**
+	 * Constructs a NioTransport and starts the selector thread
+	 * @param workerThreads Number of threads running handshake tasks
+	 * @throws IOException If the selector cannot be opened
+	 */
+	public NioTransport(int workerThreads) throws IOException {
+		selector = Selector.open();
+		workers = Executors.newFixedThreadPool(workerThreads, daemonThreads("japns-nio-worker-"));
+		callbacks = Executors.newCachedThreadPool(daemonThreads("japns-nio-callback-"));
+
+		thread = new Thread(this, "japns-nio-selector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the selector thread and closes every connection it drives
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		workers.shutdown();
+		callbacks.shutdown();
+	}
+	
+	static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Runs a task on the selector thread
+	 */
+	void execute(Runnable task) {
+		if (!running) {
+			throw new IllegalStateException("Transport is closed");
+		}
+		tasks.add(task);
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs a task on a worker thread
+	 */
+	void submit(Runnable task) {
+		workers.execute(task);
+	}
+
+	/**
+	 * Runs a callback on a callback thread.  A callback may reconnect and wait for the handshake, which needs the
+	 * worker threads, so callbacks never run on them.
+	 */
+	void dispatch(Runnable callback) {
+		callbacks.execute(callback);
+	}
+
+	/**
+	 * @return True when called from the selector thread
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					((NioLink) key.attachment()).ready(key);
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+			} catch (IOException e) {
+				log.error("IOException in selector loop", e);
+			} catch (RuntimeException e) {
+				log.error("Unexpected exception in selector loop", e);
+			}
+		}
+
+		List<NioLink> links = new ArrayList<NioLink>();
+		for (SelectionKey key : selector.keys()) {
+			links.add((NioLink) key.attachment());
+		}
+		for (NioLink link : links) {
+			link.fail(new IOException("Transport closed"));
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warn("IOException while closing selector", e);
+		}
+	}
+}
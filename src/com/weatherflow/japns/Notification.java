@@ -1,15 +1,18 @@
 package com.weatherflow.japns;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Date;
 
 import org.apache.log4j.Logger;
-import org.json.simple.JSONValue;
 
 /**
- * <p>The Notification class represents a single notification to be sent to a single device.  The whole notification cannot be
- * more than 256 bytes.  If the notification is larger than 255 bytes the toByteArray function will throw an InvalidNotificationException.</p>
+ * <p>The Notification class represents a single notification to be sent to a single device.  Its payload cannot be
+ * larger than MAX_NOTIFICATION_SIZE bytes, unless a larger limit, up to 65474 bytes, is set with
+ * NotificationService.setMaxPayloadSize.  Frames are encoded by encodeTo, which throws an InvalidNotificationException
+ * for a payload over the limit.</p>
  * 
  * @author robert
  *
@@ -18,24 +21,83 @@ public class Notification {
 	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.Notification");
 	
 	public static final int MAX_NOTIFICATION_SIZE = 255;
+	/** Priority of a notification that is delivered immediately, the default */
+	public static final int PRIORITY_IMMEDIATE = 10;
+	/** Priority of a notification that is delivered when it saves power on the device */
+	public static final int PRIORITY_CONSERVE_POWER = 5;
 
+	private static final byte COMMAND = 2;
 	private static final byte DEVICE_ITEM = 1;
 	private static final byte PAYLOAD_ITEM = 2;
 	private static final byte NOTIFICATION_ITEM = 3;
 	private static final byte EXPIRATION_ITEM = 4;
 	private static final byte PRIORITY_ITEM  = 5;
+	// Bytes of a frame besides the payload: command, frame length and the header and value of every other item
+	static final int FRAME_OVERHEAD = 5 + 7 + 3 + (3 + DeviceToken.LENGTH) + 7 + 4;
 	
-	private String deviceToken;
+	private DeviceToken deviceToken;
+	private String invalidToken = null;
 	private Payload payload = null;
+	private PayloadBuilder builder = null;
+	private byte[] encodedPayload = null;
 	private Integer notificationId = null;
+	private int priority = PRIORITY_IMMEDIATE;
+	// Seconds since the epoch, 0 if the notification is not stored when the device cannot be reached
+	private int expiration = 0;
 	
 	/**
 	 * Constructs a Notification object
 	 * @param deviceToken The token of the device where the alert is to be sent to
 	 */
 	public Notification(String deviceToken) {
-		this.deviceToken = deviceToken.replace(" ", "");
-		log.debug("Device token: " + this.deviceToken);
+		setToken(deviceToken);
+	}
+	
+	/**
+	 * Constructs a Notification object
+	 * @param deviceToken The token of the device where the alert is to be sent to
+	 */
+	public Notification(DeviceToken deviceToken) {
+		this.deviceToken = deviceToken;
+	}
+	
+	/**
+	 * Constructs a Notification object
+	 * @param deviceToken The token of the device where the alert is to be sent to
+	 * @param alert Alert string to send to the device
+	 */
+	public Notification(DeviceToken deviceToken, String alert) {
+		this(deviceToken, new Payload(alert));
+	}
+	
+	/**
+	 * Constructs a Notification object
+	 * @param deviceToken The token of the device where the alert is to be sent to
+	 * @param payload A custom payload object that is sent to the device
+	 */
+	public Notification(DeviceToken deviceToken, Payload payload) {
+		this(deviceToken);
+		this.payload = payload;
+	}
+	
+	/**
+	 * Constructs a Notification object
+	 * @param deviceToken The token of the device where the alert is to be sent to.
+	 * @param aps An Aps object
+	 */
+	public Notification(DeviceToken deviceToken, Aps aps) {
+		this(deviceToken);
+		this.payload = new Payload(aps);
+	}
+	
+	/**
+	 * Constructs a Notification object
+	 * @param deviceToken The token of the device where the alert is to be sent to
+	 * @param builder A typed payload, serialized once and kept until it is changed
+	 */
+	public Notification(DeviceToken deviceToken, PayloadBuilder builder) {
+		this(deviceToken);
+		this.builder = builder;
 	}
 	
 	/**
@@ -67,12 +129,54 @@ public class Notification {
 		this.payload = new Payload(aps);
 	}
 	
+	/**
+	 * Constructs a Notification object
+	 * @param deviceToken The token of the device where the alert is to be sent to
+	 * @param builder A typed payload, serialized once and kept until it is changed
+	 */
+	public Notification(String deviceToken, PayloadBuilder builder) {
+		this(deviceToken);
+		this.builder = builder;
+	}
+	
+	/**
+	 * Constructs a Notification with a payload that is already serialized.  The array is shared, not copied, so many 
+	 * notifications can send the same payload.
+	 * @param deviceToken The token of the device where the alert is to be sent to
+	 * @param encodedPayload UTF-8 encoded JSON payload, must not be modified afterwards
+	 */
+	Notification(DeviceToken deviceToken, byte[] encodedPayload) {
+		this(deviceToken);
+		this.encodedPayload = encodedPayload;
+	}
+	
+	/**
+	 * Creates a Notification with a payload that was serialized elsewhere, for example read from a file.  The payload is 
+	 * checked to be a well-formed UTF-8 JSON object and sent byte for byte as it is, without being parsed into objects.
+	 * @param deviceToken The token of the device where the alert is to be sent to
+	 * @param json UTF-8 encoded JSON object, must not be modified afterwards
+	 * @return The notification, whose payload cannot be changed
+	 * @throws IllegalArgumentException If json is not a well-formed JSON object
+	 */
+	public static Notification fromJson(DeviceToken deviceToken, byte[] json) {
+		int error = JsonValidator.validate(json, 0, json.length);
+		if (error >= 0) {
+			throw new IllegalArgumentException("Payload is not a well-formed JSON object, error at byte " + error);
+		}
+		return new Notification(deviceToken, json);
+	}
+	
 	/**
 	 * Puts in an Aps object into the payload.  Will replace an existing Aps object if one is already assigned.
 	 * @param aps An Aps object
 	 */
 	public void putAps(Aps aps) {
-		this.payload.put("Aps", aps);
+		checkMutable();
+		if (builder != null) {
+			builder.addCustom("Aps", aps);
+		} else {
+			this.payload.put("Aps", aps);
+		}
 	}
 
 	/**
@@ -81,10 +185,32 @@ public class Notification {
 	 * @param payload Custom payload.  Some valid data types are string, integer, array, or map. 
 	 */
 	public void put(String key, Object payload) {
-		this.payload.put(key, payload);
+		checkMutable();
+		if (builder != null) {
+			builder.addCustom(key, payload);
+		} else {
+			this.payload.put(key, payload);
+		}
 	}
 	
+	/**
+	 * Serializes the payload now and keeps the bytes instead of the payload, so the notification is sent without being 
+	 * serialized again.  This lets the payloads of many notifications be serialized on other threads before they are 
+	 * sent.  The payload cannot be changed afterwards.
+	 */
+	public void serializePayload() {
+		if (encodedPayload == null) {
+			encodedPayload = payloadBytes();
+			payload = null;
+			builder = null;
+		}
+	}
 	
+	private void checkMutable() {
+		if (encodedPayload != null) {
+			throw new IllegalStateException("The payload of a serialized or broadcast notification cannot be changed");
+		}
+	}
 	
 	public Integer getNotificationId() {
 		return notificationId;
@@ -94,19 +220,97 @@ public class Notification {
 		this.notificationId = notificationId;
 	}
 	
+	/**
+	 * @return PRIORITY_IMMEDIATE or PRIORITY_CONSERVE_POWER
+	 */
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Sets the priority of the notification.  A NotificationService sends immediate notifications ahead of power 
+	 * conserving ones, so bulk notifications should be sent with PRIORITY_CONSERVE_POWER to keep them from delaying 
+	 * urgent ones.
+	 * @param priority PRIORITY_IMMEDIATE or PRIORITY_CONSERVE_POWER
+	 */
+	public void setPriority(int priority) {
+		if (priority != PRIORITY_IMMEDIATE && priority != PRIORITY_CONSERVE_POWER) {
+			throw new IllegalArgumentException("Priority must be " + PRIORITY_IMMEDIATE + " or " + PRIORITY_CONSERVE_POWER + ", not " + priority);
+		}
+		this.priority = priority;
+	}
+	
+	/**
+	 * @return Time after which the APN service stops trying to deliver the notification, or null if it is not stored 
+	 * when the device cannot be reached
+	 */
+	public Date getExpiration() {
+		return expiration != 0 ? new Date(expiration * 1000L) : null;
+	}
+	
+	/**
+	 * Sets how long the APN service keeps trying to deliver the notification when the device cannot be reached.  The 
+	 * time is sent in whole seconds.
+	 * @param expiration Time after which the notification is discarded, or null to discard it at once if the device 
+	 * cannot be reached
+	 */
+	public void setExpiration(Date expiration) {
+		this.expiration = expiration != null ? (int) (expiration.getTime() / 1000) : 0;
+	}
+	
+	/**
+	 * @return Expiration in seconds since the epoch as sent in the frame, 0 if the notification is not stored
+	 */
+	int getExpirationSeconds() {
+		return expiration;
+	}
+	
+	/**
+	 * @return The device token as hex, or the string it was set to if that is not a valid token
+	 */
 	public String getToken() {
-		return this.deviceToken;
+		return deviceToken != null ? deviceToken.toString() : invalidToken;
 	}
 	
+	/**
+	 * Sets the device token from its hex form, spaces are ignored.  A string that is not 32 bytes of hex is kept as it 
+	 * is and InvalidNotificationException is thrown when the notification is sent.
+	 * @param deviceToken The token of the device where the alert is to be sent to
+	 */
 	public void setToken(String deviceToken) {
+		try {
+			this.deviceToken = DeviceToken.parse(deviceToken);
+			this.invalidToken = null;
+		} catch (IllegalArgumentException e) {
+			this.deviceToken = null;
+			this.invalidToken = deviceToken;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Device token: " + getToken());
+		}
+	}
+	
+	/**
+	 * @return The device token, or null if the notification was given a string that is not a valid token
+	 */
+	public DeviceToken getDeviceToken() {
+		return deviceToken;
+	}
+	
+	public void setDeviceToken(DeviceToken deviceToken) {
 		this.deviceToken = deviceToken;
+		this.invalidToken = null;
 	}
 
 	/**
 	 * Converts the payload to a JSON object
 	 */
 	public String toString() {
-		return JSONValue.toJSONString(this.payload);
+		try {
+			return new String(payloadBytes(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
 	}
 	
 	/**
@@ -117,52 +321,163 @@ public class Notification {
 		ByteBuffer message = ByteBuffer.allocate(1024);
 		message.order(ByteOrder.BIG_ENDIAN);
 		
-		log.debug("Marshalling notification");
+		encodeItems(message, MAX_NOTIFICATION_SIZE);
+		message.flip();
 
-		log.debug("Adding notification identifier to frame: " + this.getNotificationId());
-		message.put(NOTIFICATION_ITEM);
-		message.putShort((short)4);
-		message.putInt(this.getNotificationId());
+		byte[] outputBuffer = new byte[message.limit()];
+		message.get(outputBuffer);
 		
-		// Payload
-		log.debug("Adding payload to frame: " + this.toString());
-		byte[] payload;
+		return outputBuffer;
+	}
+	
+	/**
+	 * Writes the Notification as a complete frame (command, frame length and items) into the buffer at its current 
+	 * position.  Nothing is allocated apart from the serialized payload, so a batch can be encoded straight into a 
+	 * reusable buffer.
+	 * @param buffer Big-endian buffer the frame is written to
+	 * @throws InvalidNotificationException If the payload is too large or the device token is not valid hex
+	 * @throws BufferOverflowException If the frame does not fit.  The buffer position is left where it was.
+	 */
+	public void encodeTo(ByteBuffer buffer) throws InvalidNotificationException {
+		encodeTo(buffer, MAX_NOTIFICATION_SIZE);
+	}
+	
+	/**
+	 * Writes the Notification as a complete frame into the buffer at its current position, see encodeTo(ByteBuffer).
+	 * @param buffer Big-endian buffer the frame is written to
+	 * @param maxPayloadSize Largest payload accepted, in bytes
+	 * @throws InvalidNotificationException If the payload is larger than maxPayloadSize or the device token is not 
+	 * valid hex
+	 * @throws BufferOverflowException If the frame does not fit.  The buffer position is left where it was.
+	 */
+	public void encodeTo(ByteBuffer buffer, int maxPayloadSize) throws InvalidNotificationException {
+		int start = buffer.position();
 		try {
-			payload = this.toString().getBytes("UTF-8");
-			if (payload.length > MAX_NOTIFICATION_SIZE) {
-				throw new InvalidNotificationException(this, "Notification larger than 256 bytes");
+			buffer.put(COMMAND);
+			buffer.putInt(0); // Frame length
+			encodeItems(buffer, maxPayloadSize);
+			buffer.putInt(start + 1, buffer.position() - start - 5);
+		} catch (BufferOverflowException e) {
+			buffer.position(start);
+			throw e;
+		} catch (InvalidNotificationException e) {
+			buffer.position(start);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Reads a frame written by encodeTo back into a Notification, with the identifier it was written with.
+	 * @param frame Big-endian buffer positioned at the start of the frame, left after its end
+	 * @return The notification, whose payload cannot be changed
+	 * @throws IllegalArgumentException If the frame is not a notification frame or has no device token or payload
+	 */
+	static Notification readFrame(ByteBuffer frame) {
+		if (frame.get() != COMMAND) {
+			throw new IllegalArgumentException("Not a notification frame");
+		}
+		int end = frame.getInt();
+		end += frame.position();
+		
+		DeviceToken deviceToken = null;
+		byte[] payload = null;
+		Integer notificationId = null;
+		int expiration = 0;
+		int priority = PRIORITY_IMMEDIATE;
+		while (frame.position() < end) {
+			byte item = frame.get();
+			int length = frame.getShort() & 0xffff;
+			int itemEnd = frame.position() + length;
+			if (item == DEVICE_ITEM && length == DeviceToken.LENGTH) {
+				deviceToken = DeviceToken.read(frame);
+			} else if (item == PAYLOAD_ITEM) {
+				payload = new byte[length];
+				frame.get(payload);
+			} else if (item == NOTIFICATION_ITEM && length == 4) {
+				notificationId = frame.getInt();
+			} else if (item == EXPIRATION_ITEM && length == 4) {
+				expiration = frame.getInt();
+			} else if (item == PRIORITY_ITEM && length == 1) {
+				priority = frame.get() & 0xff;
 			}
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
+			frame.position(itemEnd);
+		}
+		
+		if (deviceToken == null || payload == null) {
+			throw new IllegalArgumentException("Notification frame without a device token or payload");
+		}
+		Notification notification = new Notification(deviceToken, payload);
+		notification.setNotificationId(notificationId);
+		notification.expiration = expiration;
+		notification.priority = priority;
+		return notification;
+	}
+	
+	private void encodeItems(ByteBuffer message, int maxPayloadSize) throws InvalidNotificationException {
+		if (log.isDebugEnabled()) {
+			log.debug("Marshalling notification " + this.getNotificationId() + " for token " + getToken());
 		}
+
+		message.put(NOTIFICATION_ITEM);
+		message.putShort((short)4);
+		message.putInt(notificationId != null ? notificationId : 0);
+		
+		// Payload
+		byte[] payload = encodePayload(maxPayloadSize);
 		message.put(PAYLOAD_ITEM);
 		message.putShort((short)payload.length);
 		message.put(payload);
 
-		log.debug("Adding token to frame: " + deviceToken);
+		checkToken();
 		message.put(DEVICE_ITEM);
-		message.putShort((short)32);
-		for (int i = 0; i < deviceToken.length(); i+= 2) {
-			message.put((byte)Integer.parseInt(deviceToken.substring(i, i + 2), 16));
-		}
+		message.putShort((short)DeviceToken.LENGTH);
+		deviceToken.writeTo(message);
 
-		// TODO: Support expiration date 
-		log.debug("Adding expiration date to frame: " + deviceToken);
 		message.put(EXPIRATION_ITEM);
 		message.putShort((short)4);
-		message.putInt(0);
+		message.putInt(expiration);
 		
-		// TODO: Support priority
-		log.debug("Adding priority to frame: " + deviceToken);
 		message.put(PRIORITY_ITEM);
 		message.putShort((short)1);
-		message.put((byte)10);
-		
-		message.flip();
-
-		byte[] outputBuffer = new byte[message.limit()];
-		message.get(outputBuffer);
-		
-		return outputBuffer;
+		message.put((byte)priority);
+	}
+	
+	/**
+	 * Serializes the payload as UTF-8 encoded JSON
+	 * @param maxSize Largest payload the protocol accepts
+	 * @return The serialized payload
+	 * @throws InvalidNotificationException If the payload is larger than maxSize
+	 */
+	byte[] encodePayload(int maxSize) throws InvalidNotificationException {
+		byte[] payload = payloadBytes();
+		if (payload.length > maxSize) {
+			throw new InvalidNotificationException(this, "Payload larger than " + maxSize + " bytes");
+		}
+		return payload;
+	}
+	
+	/**
+	 * Returns the payload as UTF-8 encoded JSON.  A shared payload is returned as it is and a PayloadBuilder keeps its 
+	 * bytes until it is changed, but a Payload map is serialized again every time because it can be changed without the 
+	 * notification knowing.  The array must not be modified.
+	 */
+	private byte[] payloadBytes() {
+		if (encodedPayload != null) {
+			return encodedPayload;
+		}
+		if (builder != null) {
+			return builder.encoded();
+		}
+		return new JsonWriter().value(payload).toByteArray();
+	}
+	
+	/**
+	 * Checks that the notification has a valid device token
+	 * @throws InvalidNotificationException If the device token is not 32 bytes of hex
+	 */
+	void checkToken() throws InvalidNotificationException {
+		if (deviceToken == null) {
+			throw new InvalidNotificationException(this, "Device token is not " + DeviceToken.LENGTH + " bytes of hex: " + invalidToken);
+		}
 	}
 }
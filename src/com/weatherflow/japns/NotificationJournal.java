@@ -0,0 +1,442 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>An append-only file of the notifications a NotificationService is sending, so they can be sent again after the
+ * JVM dies without sending the ones that were delivered.  Every batch is written to the journal as encoded frames
+ * before it is sent.  Once a batch has been sent and the time the APN service takes to send an error-response has
+ * passed without one, the committed watermark moves past it.  When a service is started with the same journal,
+ * NotificationService.resume sends the notifications after the watermark again.</p>
+ * <br>
+ * <p>The file is memory-mapped in 64MB regions.  Threads appending at the same time share one force of the mapped
+ * file to disk instead of forcing one after the other, so a batch costs at most one disk flush and often less.  The
+ * header maps every region from the committed watermark on to a slot of the file, and the slots of regions the
+ * watermark moved past are reused for new regions, so the file and its mappings only grow to the most notifications
+ * ever waiting to be committed.  Records carry a sequence number and a checksum, so a torn write or an old record
+ * left over in a reused slot is never read back.</p>
+ */
+public class NotificationJournal {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.NotificationJournal");
+
+	private static final int MAGIC = 0x4a504e4a; // JPNJ
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 4096;
+	private static final int REGION_SIZE = 64 << 20;
+	// The header holds the slot of every region not yet committed, indexed by region number modulo MAX_REGIONS
+	private static final int SLOTS_OFFSET = 32;
+	private static final int MAX_REGIONS = (HEADER_SIZE - SLOTS_OFFSET) / 4;
+	private static final int NO_SLOT = -1;
+	// Length, checksum and sequence number before every frame
+	private static final int RECORD_HEADER = 16;
+	// Length of the record that fills the end of a region the next frame does not fit in
+	private static final int PADDING = -1;
+
+	/**
+	 * Notifications written to the journal with one call to append.
+	 */
+	static final class Batch {
+		private final long end;
+		private final long sequence;
+		// Time the batch was sent, 0 until then
+		private long sent = 0;
+
+		private Batch(long end, long sequence) {
+			this.end = end;
+			this.sequence = sequence;
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	// Mapped slots of the file, null until used, and the slots no region is using
+	private final List<MappedByteBuffer> slots = new ArrayList<MappedByteBuffer>();
+	private final Queue<Integer> free = new ArrayDeque<Integer>();
+	private final CRC32 crc = new CRC32();
+	private final long window;
+
+	// Positions only grow, region(position) finds the slot they are written in
+	private long committed;
+	private long committedSequence;
+	private long appended;
+	private long sequence;
+	private long durable;
+	private boolean forcing = false;
+	private long lastError = 0;
+	private final Queue<Batch> pending = new ArrayDeque<Batch>();
+	private Batch recovered = null;
+
+	/**
+	 * Opens a journal, creating the file if it does not exist, and finds the notifications after the committed
+	 * watermark.
+	 * @param filename Name of the journal file
+	 * @throws IOException If the file cannot be opened or is not a journal
+	 */
+	public NotificationJournal(String filename) throws IOException {
+		this(filename, PipelinedConnection.DRAIN_TIMEOUT);
+	}
+
+	/**
+	 * @param window Time after a batch is sent before it is committed, when no error-response arrived
+	 */
+	NotificationJournal(String filename, long window) throws IOException {
+		this.file = new RandomAccessFile(filename, "rw");
+		this.channel = file.getChannel();
+		this.window = window;
+		boolean created = channel.size() == 0;
+		this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+		if (created) {
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			for (int region = 0; region < MAX_REGIONS; region++) {
+				header.putInt(SLOTS_OFFSET + 4 * region, NO_SLOT);
+			}
+			writeHeader();
+		} else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+			file.close();
+			throw new IOException(filename + " is not a notification journal");
+		}
+		committed = header.getLong(8);
+		committedSequence = header.getLong(16);
+
+		boolean[] used = new boolean[(int) ((channel.size() - HEADER_SIZE) / REGION_SIZE)];
+		for (int region = 0; region < MAX_REGIONS; region++) {
+			int slot = header.getInt(SLOTS_OFFSET + 4 * region);
+			if (slot >= used.length) {
+				// The header was forced but the slot was never written to
+				header.putInt(SLOTS_OFFSET + 4 * region, NO_SLOT);
+			} else if (slot != NO_SLOT) {
+				used[slot] = true;
+			}
+		}
+		for (int slot = 0; slot < used.length; slot++) {
+			slots.add(null);
+			if (!used[slot]) {
+				free.add(slot);
+			}
+		}
+		scan();
+		durable = appended;
+
+		if (appended > committed) {
+			recovered = new Batch(appended, sequence);
+			pending.add(recovered);
+			log.info("Journal has " + (sequence - committedSequence) + " notifications after the committed watermark");
+		}
+	}
+
+	/**
+	 * Finds the end of the records after the committed watermark.
+	 */
+	private void scan() throws IOException {
+		long position = committed;
+		long expected = committedSequence;
+		byte[] frame = new byte[NotificationService.CAPACITY];
+		while (true) {
+			int offset = (int) (position % REGION_SIZE);
+			if (REGION_SIZE - offset < RECORD_HEADER) {
+				position += REGION_SIZE - offset;
+				continue;
+			}
+			if (slot(position / REGION_SIZE) == NO_SLOT) {
+				break;
+			}
+			ByteBuffer region = region(position);
+			int length = region.getInt(offset);
+			if (region.getLong(offset + 8) != expected) {
+				break;
+			}
+			if (length == PADDING) {
+				position += REGION_SIZE - offset;
+				continue;
+			}
+			if (length <= 0 || length > frame.length || length > REGION_SIZE - offset - RECORD_HEADER) {
+				break;
+			}
+			ByteBuffer record = region.duplicate();
+			record.position(offset + RECORD_HEADER);
+			record.get(frame, 0, length);
+			if (region.getInt(offset + 4) != checksum(frame, 0, length)) {
+				break;
+			}
+			position += RECORD_HEADER + length;
+			expected++;
+		}
+		appended = position;
+		sequence = expected;
+	}
+
+	/**
+	 * Decodes the notifications that were after the committed watermark when the journal was opened, and hands them
+	 * out once.  They are not committed until the returned batch is sent.
+	 * @param notifications List the notifications are added to
+	 * @return The batch to report as sent, or null if there were none or they were handed out already
+	 */
+	synchronized Batch recovered(List<Notification> notifications) throws IOException {
+		if (recovered == null) {
+			return null;
+		}
+		long position = committed;
+		while (position < recovered.end) {
+			int offset = (int) (position % REGION_SIZE);
+			if (REGION_SIZE - offset < RECORD_HEADER) {
+				position += REGION_SIZE - offset;
+				continue;
+			}
+			ByteBuffer region = region(position).duplicate();
+			int length = region.getInt(offset);
+			if (length == PADDING) {
+				position += REGION_SIZE - offset;
+				continue;
+			}
+			region.position(offset + RECORD_HEADER);
+			notifications.add(Notification.readFrame(region));
+			position += RECORD_HEADER + length;
+		}
+		Batch batch = recovered;
+		recovered = null;
+		return batch;
+	}
+
+	/**
+	 * Writes the notifications to the journal and forces them to disk.  Notifications that cannot be encoded are left
+	 * out, they are skipped when they are sent as well.
+	 * @param notifications Notifications about to be sent
+	 * @param maxPayloadSize Largest payload accepted, in bytes
+	 * @return The batch to report as sent, or null if nothing was written
+	 */
+	Batch append(List<Notification> notifications, int maxPayloadSize) throws IOException {
+		Batch batch;
+		ByteBuffer frame = NotificationService.BUFFERS.acquire();
+		try {
+			synchronized (this) {
+				long start = appended;
+				for (Notification notification : notifications) {
+					frame.clear();
+					try {
+						notification.encodeTo(frame, maxPayloadSize);
+					} catch (InvalidNotificationException e) {
+						continue;
+					}
+					frame.flip();
+					write(frame);
+				}
+				if (appended == start) {
+					return null;
+				}
+				batch = new Batch(appended, sequence);
+				pending.add(batch);
+			}
+		} finally {
+			NotificationService.BUFFERS.release(frame);
+		}
+		sync(batch.end);
+		return batch;
+	}
+
+	private void write(ByteBuffer frame) throws IOException {
+		int length = frame.remaining();
+		int offset = (int) (appended % REGION_SIZE);
+		if (REGION_SIZE - offset < RECORD_HEADER + length) {
+			if (REGION_SIZE - offset >= RECORD_HEADER) {
+				ByteBuffer region = region(appended);
+				region.putLong(offset + 8, sequence);
+				region.putInt(offset, PADDING);
+			}
+			appended += REGION_SIZE - offset;
+			offset = 0;
+		}
+
+		int checksum = checksum(frame.array(), frame.arrayOffset() + frame.position(), length);
+		ByteBuffer region = region(appended).duplicate();
+		region.position(offset + RECORD_HEADER);
+		region.put(frame);
+		region.putLong(offset + 8, sequence);
+		region.putInt(offset + 4, checksum);
+		region.putInt(offset, length);
+		appended += RECORD_HEADER + length;
+		sequence++;
+	}
+
+	private int checksum(byte[] bytes, int offset, int length) {
+		crc.reset();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Waits until the journal is on disk up to the position.  One thread forces the file while the others wait, and
+	 * the force covers everything appended before it started.
+	 */
+	private void sync(long position) throws IOException {
+		while (true) {
+			long target;
+			long from;
+			synchronized (this) {
+				while (forcing && durable < position) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted waiting for the journal to be forced");
+					}
+				}
+				if (durable >= position) {
+					return;
+				}
+				forcing = true;
+				from = durable;
+				target = appended;
+			}
+
+			try {
+				for (long region = from / REGION_SIZE; region <= (target - 1) / REGION_SIZE; region++) {
+					region(region * REGION_SIZE).force();
+				}
+			} finally {
+				synchronized (this) {
+					forcing = false;
+					durable = Math.max(durable, target);
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The mapped region holding the position.  A region that has no slot yet gets a free one, or a new one at
+	 * the end of the file, and the header is forced before records are written to it.
+	 */
+	private synchronized MappedByteBuffer region(long position) throws IOException {
+		long region = position / REGION_SIZE;
+		int slot = slot(region);
+		if (slot != NO_SLOT) {
+			return map(slot);
+		}
+
+		if (region - committed / REGION_SIZE >= MAX_REGIONS) {
+			throw new IOException("Journal cannot hold more than " + MAX_REGIONS + " regions that are not committed");
+		}
+		if (free.isEmpty()) {
+			slot = slots.size();
+			slots.add(null);
+		} else {
+			slot = free.remove();
+		}
+		MappedByteBuffer mapped = map(slot);
+		header.putInt(SLOTS_OFFSET + 4 * (int) (region % MAX_REGIONS), slot);
+		header.force();
+		return mapped;
+	}
+
+	/**
+	 * @return The slot mapped, growing the file when the slot is new
+	 */
+	private MappedByteBuffer map(int slot) throws IOException {
+		MappedByteBuffer mapped = slots.get(slot);
+		if (mapped == null) {
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) slot * REGION_SIZE, REGION_SIZE);
+			slots.set(slot, mapped);
+		}
+		return mapped;
+	}
+
+	/**
+	 * @return The slot of the file the region is in, NO_SLOT if it has none
+	 */
+	private int slot(long region) {
+		return header.getInt(SLOTS_OFFSET + 4 * (int) (region % MAX_REGIONS));
+	}
+
+	/**
+	 * Records that a batch was sent, it is committed when no error-response arrives for the error-response window.
+	 * @param batch Batch returned by append or recovered
+	 */
+	synchronized void sent(Batch batch) {
+		batch.sent = System.currentTimeMillis();
+		advance(false);
+	}
+
+	/**
+	 * Records that the APN service rejected a notification.  The notifications sent after it are resent from memory,
+	 * so nothing is committed until the error-response window has passed again.
+	 */
+	synchronized void error() {
+		lastError = System.currentTimeMillis();
+	}
+
+	/**
+	 * Commits every batch that was sent, after the service has waited for the last error-response.
+	 */
+	synchronized void drained() {
+		advance(true);
+	}
+
+	/**
+	 * Moves the committed watermark past the oldest batches that have been sent for longer than the error-response
+	 * window, in the order they were appended.
+	 */
+	private void advance(boolean drained) {
+		long now = System.currentTimeMillis();
+		long first = committed / REGION_SIZE;
+		boolean moved = false;
+		while (!pending.isEmpty()) {
+			Batch batch = pending.peek();
+			if (batch.sent == 0 || (!drained && (now - batch.sent < window || now - lastError < window))) {
+				break;
+			}
+			pending.remove();
+			committed = batch.end;
+			committedSequence = batch.sequence;
+			moved = true;
+		}
+		if (!moved) {
+			return;
+		}
+
+		// The regions the watermark moved past are free for new records.  Sequence numbers keep going up so the records
+		// left behind in them are not read back.
+		for (long region = first; region < committed / REGION_SIZE; region++) {
+			int slot = slot(region);
+			if (slot != NO_SLOT) {
+				header.putInt(SLOTS_OFFSET + 4 * (int) (region % MAX_REGIONS), NO_SLOT);
+				free.add(slot);
+			}
+		}
+		writeHeader();
+	}
+
+	private void writeHeader() {
+		header.putLong(8, committed);
+		header.putLong(16, committedSequence);
+		header.force();
+	}
+
+	/**
+	 * @return Number of bytes written after the committed watermark
+	 */
+	public synchronized long getUncommittedBytes() {
+		return appended - committed;
+	}
+
+	/**
+	 * Closes the file.  Notifications that were not committed are sent again by the next service that uses the journal.
+	 */
+	public synchronized void close() throws IOException {
+		writeHeader();
+		file.close();
+	}
+}
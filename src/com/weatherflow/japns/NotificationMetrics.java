@@ -0,0 +1,151 @@
+package com.weatherflow.japns;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Counters and latency histograms of the send pipeline of a NotificationService.  Recording does not take a lock,
+ * the counters are striped so the threads of a connection pool do not contend, and nothing is logged.  Register them
+ * with NotificationService.registerMBeans to read them over JMX.</p>
+ */
+public class NotificationMetrics implements NotificationMetricsMBean {
+	private final StripedCounter encoded = new StripedCounter();
+	private final StripedCounter sent = new StripedCounter();
+	private final StripedCounter bytes = new StripedCounter();
+	private final StripedCounter batches = new StripedCounter();
+	private final StripedCounter suppressed = new StripedCounter();
+	private final AtomicLongArray errors = new AtomicLongArray(256);
+	private final LatencyHistogram encodeTime = new LatencyHistogram();
+	private final LatencyHistogram writeTime = new LatencyHistogram();
+	private final LatencyHistogram urgentTime = new LatencyHistogram();
+
+	/**
+	 * Records a notification encoded into a frame
+	 * @param nanos Time taken to encode it
+	 */
+	void encoded(long nanos) {
+		encoded.increment();
+		encodeTime.record(nanos);
+	}
+
+	/**
+	 * Records a write of encoded notifications
+	 * @param notifications Number of notifications written
+	 * @param length Number of bytes written
+	 * @param nanos Time taken by the write
+	 */
+	void written(int notifications, int length, long nanos) {
+		sent.add(notifications);
+		bytes.add(length);
+		batches.increment();
+		writeTime.record(nanos);
+	}
+
+	/**
+	 * Records an urgent send written ahead of bulk sends
+	 * @param nanos Time from the send being called to its last notification being written
+	 */
+	void urgentWritten(long nanos) {
+		urgentTime.record(nanos);
+	}
+
+	/**
+	 * Records a notification that was not sent because its token is invalid
+	 */
+	void suppressed() {
+		suppressed.increment();
+	}
+
+	/**
+	 * Records an error response
+	 * @param status Status code of the error response
+	 */
+	void error(int status) {
+		errors.getAndIncrement(status & 0xff);
+	}
+
+	public long getNotificationsEncoded() {
+		return encoded.sum();
+	}
+
+	public long getNotificationsSent() {
+		return sent.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytes.sum();
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public long getNotificationsSuppressed() {
+		return suppressed.sum();
+	}
+
+	public long getErrorResponses() {
+		long total = 0;
+		for (int i = 1; i < errors.length(); i++) {
+			total += errors.get(i);
+		}
+		return total;
+	}
+
+	public long[] getErrorResponsesByStatus() {
+		long[] counts = new long[errors.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = errors.get(i);
+		}
+		return counts;
+	}
+
+	public double getEncodeTimeMeanMicros() {
+		return encodeTime.meanMicros();
+	}
+
+	public double getEncodeTime99thPercentileMicros() {
+		return encodeTime.percentileMicros(0.99);
+	}
+
+	public double getEncodeTimeMaxMicros() {
+		return encodeTime.maxMicros();
+	}
+
+	public double getWriteTimeMeanMicros() {
+		return writeTime.meanMicros();
+	}
+
+	public double getWriteTime99thPercentileMicros() {
+		return writeTime.percentileMicros(0.99);
+	}
+
+	public double getWriteTimeMaxMicros() {
+		return writeTime.maxMicros();
+	}
+
+	public double getUrgentWriteTimeMeanMicros() {
+		return urgentTime.meanMicros();
+	}
+
+	public double getUrgentWriteTime99thPercentileMicros() {
+		return urgentTime.percentileMicros(0.99);
+	}
+
+	public double getUrgentWriteTimeMaxMicros() {
+		return urgentTime.maxMicros();
+	}
+
+	public void reset() {
+		encoded.reset();
+		sent.reset();
+		bytes.reset();
+		batches.reset();
+		suppressed.reset();
+		for (int i = 0; i < errors.length(); i++) {
+			errors.set(i, 0);
+		}
+		encodeTime.reset();
+		writeTime.reset();
+		urgentTime.reset();
+	}
+}
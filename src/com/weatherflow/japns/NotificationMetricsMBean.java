@@ -0,0 +1,68 @@
+package com.weatherflow.japns;
+
+/**
+ * <p>JMX view of the send pipeline of a NotificationService.  Times are in microseconds, percentiles are accurate to
+ * within a factor of two.</p>
+ */
+public interface NotificationMetricsMBean {
+	/**
+	 * @return Notifications encoded into frames, including notifications encoded again to be resent
+	 */
+	long getNotificationsEncoded();
+
+	/**
+	 * @return Notifications written to the APN service
+	 */
+	long getNotificationsSent();
+
+	/**
+	 * @return Bytes written to the APN service
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return Writes to the APN service, each holding one or more notifications
+	 */
+	long getBatches();
+
+	/**
+	 * @return Notifications not sent because their token is in the invalid tokens of the service
+	 */
+	long getNotificationsSuppressed();
+
+	/**
+	 * @return Error responses received, other than No errors
+	 */
+	long getErrorResponses();
+
+	/**
+	 * @return Error responses received indexed by status code, for example element 8 counts invalid tokens
+	 */
+	long[] getErrorResponsesByStatus();
+
+	double getEncodeTimeMeanMicros();
+
+	double getEncodeTime99thPercentileMicros();
+
+	double getEncodeTimeMaxMicros();
+
+	double getWriteTimeMeanMicros();
+
+	double getWriteTime99thPercentileMicros();
+
+	double getWriteTimeMaxMicros();
+
+	/**
+	 * @return Mean time from an urgent send being called until its notifications are written, while pipelining
+	 */
+	double getUrgentWriteTimeMeanMicros();
+
+	double getUrgentWriteTime99thPercentileMicros();
+
+	double getUrgentWriteTimeMaxMicros();
+
+	/**
+	 * Sets every counter back to zero
+	 */
+	void reset();
+}
@@ -0,0 +1,364 @@
+package com.weatherflow.japns;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Sends notifications for many apps, each with its own certificate, routing every notification to the connections
+ * of the app it is sent for.  Every app gets a pipelined NotificationService, but they all share one NioTransport,
+ * whose selector thread does the socket I/O of every connection, and one set of threads for the sends of pools of
+ * several connections.  The number of threads stays the same however many apps are added.</p>
+ * <br>
+ * <p>Connections are opened on the first send of an app.  When an idle timeout is set, the connections of an app that
+ * sent nothing for that long are closed, after waiting for late error-responses, and opened again on its next send,
+ * so apps that rarely send do not hold sockets open.  Key files are loaded once, and an app that is evicted resumes
+ * its TLS session when it reconnects.</p>
+ */
+public class NotificationRouter {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.NotificationRouter");
+
+	// Seconds the shared threads are kept after their last send, and after their last close
+	private static final long THREAD_KEEP_ALIVE = 60;
+	private static final long CLOSE_KEEP_ALIVE = 5;
+
+	/**
+	 * An app and the service sending its notifications
+	 */
+	private static class App {
+		final String name;
+		final NotificationService service;
+		// Guarded by the App: sends in progress, whether connections may be open and whether they are being closed
+		int active = 0;
+		boolean connected = false;
+		boolean closing = false;
+		long lastUsed = System.currentTimeMillis();
+
+		App(String name, NotificationService service) {
+			this.name = name;
+			this.service = service;
+		}
+
+		synchronized void begin() {
+			while (closing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			active++;
+			connected = true;
+		}
+
+		synchronized void end() {
+			active--;
+			lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return True if the connections are to be closed, sends wait until evicted is called
+		 */
+		synchronized boolean evict(long now, long idleTimeout) {
+			if (!connected || active > 0 || closing || now - lastUsed < idleTimeout) {
+				return false;
+			}
+			closing = true;
+			return true;
+		}
+
+		synchronized void evicted() {
+			connected = false;
+			closing = false;
+			notifyAll();
+		}
+	}
+
+	private final NioTransport transport;
+	private final boolean ownTransport;
+	private final ExecutorService[] executors;
+	private final Map<String, App> apps = new ConcurrentHashMap<String, App>();
+	private final Timer timer = new Timer("japns-router-eviction", true);
+
+	private int poolSize = 1;
+	private long idleTimeout = 0;
+	private TimerTask eviction = null;
+
+	/**
+	 * Constructs a NotificationRouter with a NioTransport of its own and two threads for sends
+	 * @throws IOException If the transport cannot be opened
+	 */
+	public NotificationRouter() throws IOException {
+		this(new NioTransport(), true, 2);
+	}
+
+	/**
+	 * Constructs a NotificationRouter that uses a transport shared with other services.  The transport is not closed
+	 * by close().
+	 * @param transport Transport driving every connection
+	 * @param threads Number of threads sending over the connections of an app in parallel, only used with a pool size
+	 * above 1
+	 */
+	public NotificationRouter(NioTransport transport, int threads) {
+		this(transport, false, threads);
+	}
+
+	private NotificationRouter(NioTransport transport, boolean ownTransport, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Router needs at least one thread");
+		}
+		this.transport = transport;
+		this.ownTransport = ownTransport;
+		// Closes wait for late error-responses without using the CPU, so every connection closing at once gets a
+		// thread, kept only briefly after the closes are done
+		this.executors = new ExecutorService[] {
+			executor(threads, "japns-router-"),
+			executor(threads, "japns-router-urgent-"),
+			new ThreadPoolExecutor(0, Integer.MAX_VALUE, CLOSE_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					NioTransport.daemonThreads("japns-router-close-"))
+		};
+	}
+
+	private static ExecutorService executor(int threads, String prefix) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), NioTransport.daemonThreads(prefix));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Sets the number of connections each app opens, for apps added after the call
+	 * @param poolSize Number of pipelined connections per app, at least 1
+	 */
+	public synchronized void setPoolSize(int poolSize) {
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		}
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * Closes the connections of apps that sent nothing for the timeout.  They are opened again on the next send.
+	 * @param idleTimeoutMillis Milliseconds without a send before an app is evicted, 0 to keep connections open
+	 */
+	public synchronized void setIdleTimeout(long idleTimeoutMillis) {
+		if (idleTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Idle timeout cannot be negative");
+		}
+		if (eviction != null) {
+			eviction.cancel();
+			eviction = null;
+		}
+		idleTimeout = idleTimeoutMillis;
+		if (idleTimeout == 0) {
+			return;
+		}
+
+		long period = Math.max(1000, idleTimeout / 2);
+		eviction = new TimerTask() {
+			public void run() {
+				evictIdle();
+			}
+		};
+		timer.schedule(eviction, period, period);
+	}
+
+	/**
+	 * Adds an app that sends to Apple's gateway
+	 * @param app Key the app's notifications are routed by
+	 * @param keyFilename Path of the app's cert/key PKCS12 file
+	 * @param keyPasswd Password of the cert/key file
+	 * @param sandbox True to send to the sandbox, false to send to production
+	 * @return The app's service, for settings such as an ErrorListener
+	 * @throws FileNotFoundException If the PKCS12 file cannot be found
+	 */
+	public NotificationService addApp(String app, String keyFilename, String keyPasswd, boolean sandbox) throws FileNotFoundException {
+		return addApp(app, new NotificationService(keyFilename, keyPasswd, sandbox));
+	}
+
+	/**
+	 * Adds an app that sends to a gateway other than Apple's, such as a GatewaySimulator
+	 * @param app Key the app's notifications are routed by
+	 * @param keyFilename Path of the app's cert/key PKCS12 file
+	 * @param keyPasswd Password of the cert/key file
+	 * @param host Host:port of the binary interface gateway
+	 * @return The app's service, for settings such as an ErrorListener
+	 * @throws FileNotFoundException If the PKCS12 file cannot be found
+	 */
+	public NotificationService addApp(String app, String keyFilename, String keyPasswd, String host) throws FileNotFoundException {
+		return addApp(app, new NotificationService(keyFilename, keyPasswd, host));
+	}
+
+	private synchronized NotificationService addApp(String app, NotificationService service) {
+		if (apps.containsKey(app)) {
+			throw new IllegalArgumentException("App " + app + " was added already");
+		}
+		service.setTransport(transport);
+		service.setPoolSize(poolSize);
+		service.setExecutors(executors);
+		apps.put(app, new App(app, service));
+		log.debug("Added app " + app);
+		return service;
+	}
+
+	/**
+	 * Removes an app and closes its connections, waiting for late error-responses
+	 * @param app Key the app was added with
+	 * @return True if the app was added
+	 */
+	public boolean removeApp(String app) {
+		App removed = apps.remove(app);
+		if (removed == null) {
+			return false;
+		}
+		removed.service.close();
+		log.debug("Removed app " + app);
+		return true;
+	}
+
+	/**
+	 * @param app Key the app was added with
+	 * @return The app's service, or null if the app was not added
+	 */
+	public NotificationService getService(String app) {
+		App found = apps.get(app);
+		return found != null ? found.service : null;
+	}
+
+	/**
+	 * @return Number of apps that may have connections open, because they sent since they were added or evicted
+	 */
+	public int getConnectedApps() {
+		int connected = 0;
+		for (App app : apps.values()) {
+			synchronized (app) {
+				if (app.connected) {
+					connected++;
+				}
+			}
+		}
+		return connected;
+	}
+
+	/**
+	 * Sends a notification over the connections of an app, opening them if the app has none
+	 * @param app Key the app was added with
+	 * @param notification Notification to send
+	 * @throws InvalidNotificationException If the notification cannot be encoded
+	 */
+	public void sendNotification(String app, Notification notification) throws InvalidNotificationException {
+		sendNotifications(app, new ArrayList<Notification>(Arrays.asList(notification)));
+	}
+
+	/**
+	 * Sends notifications over the connections of an app, opening them if the app has none
+	 * @param app Key the app was added with
+	 * @param notifications Notifications to send
+	 * @throws InvalidNotificationException If a notification cannot be encoded.  The rest are sent.
+	 */
+	public void sendNotifications(String app, List<Notification> notifications) throws InvalidNotificationException {
+		App found = apps.get(app);
+		if (found == null) {
+			throw new IllegalArgumentException("Unknown app " + app);
+		}
+		found.begin();
+		try {
+			found.service.sendNotifications(notifications);
+		} finally {
+			found.end();
+		}
+	}
+
+	/**
+	 * Closes the connections of every app idle for longer than the timeout, all at the same time
+	 */
+	private void evictIdle() {
+		long timeout;
+		synchronized (this) {
+			timeout = idleTimeout;
+		}
+		if (timeout == 0) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (final App app : apps.values()) {
+			if (!app.evict(now, timeout)) {
+				continue;
+			}
+			results.add(executors[2].submit(new Callable<Void>() {
+				public Void call() {
+					try {
+						app.service.close();
+						log.debug("Evicted idle app " + app.name);
+					} finally {
+						app.evicted();
+					}
+					return null;
+				}
+			}));
+		}
+		await(results);
+	}
+
+	private void await(List<Future<Void>> results) {
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				log.warn("Failed to close app", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections of every app, waiting for late error-responses on all of them at the same time, and stops
+	 * the shared threads.  The transport is closed if the router opened it.
+	 */
+	public void close() {
+		synchronized (this) {
+			timer.cancel();
+			eviction = null;
+		}
+
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (final App app : apps.values()) {
+			results.add(executors[2].submit(new Callable<Void>() {
+				public Void call() {
+					app.service.close();
+					return null;
+				}
+			}));
+		}
+		await(results);
+		apps.clear();
+
+		for (ExecutorService executor : executors) {
+			executor.shutdown();
+		}
+		if (ownTransport) {
+			transport.close();
+		}
+	}
+}
@@ -3,15 +3,23 @@ package com.weatherflow.japns;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.net.ssl.SSLSocket;
 
 import org.apache.log4j.Logger;
@@ -25,14 +33,52 @@ import org.apache.log4j.Logger;
 public class NotificationService  {
 	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.NotificationService");
 	
-	private static final int CAPACITY = 65535;
-	private static final byte COMMAND = 2;
+	static final int CAPACITY = 65535;
+	// Largest payload whose frame fits in a buffer, below the 16 bit item length of the binary interface and the 
+	// initial stream window of HTTP/2
+	static final int MAX_PAYLOAD_SIZE = CAPACITY - Notification.FRAME_OVERHEAD;
+	static final BufferPool BUFFERS = new BufferPool(CAPACITY, 32);
+	private static final int QUEUE_CAPACITY = 16384;
+	private static final int BROADCAST_BATCH_SIZE = 8192;
 
 	private Connector connector;
+	private boolean sandbox;
+	private int poolSize = 0;
+	private ConnectionPool pool = null;
+	private NioTransport transport = null;
+	private volatile CoalescingQueue queue = null;
+	private String http2Host = null;
+	private String topic = null;
+	private Http2Gateway http2 = null;
+	private int maxPayloadSize = 0;
+	private AdaptivePacer pacing = null;
+	private ExecutorService[] executors = null;
+	private volatile InvalidTokenSet invalidTokens = new InvalidTokenSet();
+	private FeedbackService feedback = null;
+	private long feedbackPeriod = 0;
+	private Timer feedbackTimer = null;
+	private volatile NotificationJournal journal = null;
 
-	private String errorMessage = "Success";
+	private volatile String errorMessage = "Success";
+	private final NotificationMetrics metrics = new NotificationMetrics();
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
 	
+	private ErrorListener errorListener = new ErrorListener() {
+		public void notificationFailed(Notification notification, ErrorResponse error) {
+			errorMessage = error.getMessage();
+			if (notification != null) {
+				System.out.println(error.getMessage() + "|" + notification.getToken() + "|" + notification);
+			} else {
+				System.out.println(error.getMessage() + "|" + error.getIdentifier());
+			}
+		}
+	};
+	
+	// Held by the blocking path, which the linger queue's flusher and callers of sendNotifications may run at once
+	private final Object sendLock = new Object();
 	private int notificationCounter = 12;
+	// Notifications of the last blocking send, resent after an error-response that arrives after it returned
+	private InFlightWindow lastWindow = null;
 
 	
 	/**
@@ -42,10 +88,484 @@ public class NotificationService  {
 	 * @throws FileNotFoundException PKCS12 file cannot be found
 	 */
 	public NotificationService(String keyFilename, String keyPasswd, boolean sandbox) throws FileNotFoundException {
-		if (sandbox) {
-			connector = new Connector(keyFilename, keyPasswd, Connector.DEV_APNS_HOST);
+		this(keyFilename, keyPasswd, sandbox ? Connector.DEV_APNS_HOST : Connector.APNS_HOST);
+		this.sandbox = sandbox;
+	}
+	
+	/**
+	 * Constructs a NotificationService that sends to a gateway other than Apple's, such as a GatewaySimulator
+	 * @param keyFilename fill path to cert/key PKCS12 file
+	 * @param keyPasswd Password of cert/key file
+	 * @param host Host:port of the binary interface gateway
+	 * @throws FileNotFoundException PKCS12 file cannot be found
+	 */
+	public NotificationService(String keyFilename, String keyPasswd, String host) throws FileNotFoundException {
+		connector = new Connector(keyFilename, keyPasswd, host);
+	}
+	
+	/**
+	 * Enables or disables pipelined sending.  When pipelined, notifications are streamed to the APN service without 
+	 * waiting for an error-response after each batch.  Error-responses are read by a background thread as they arrive, 
+	 * the rejected notification is reported to the ErrorListener and the notifications sent after it are resent.
+	 * Call close() after the last notification to wait for late error-responses.
+	 * @param pipelined True to stream notifications, false to wait for an error-response after each batch
+	 */
+	public synchronized void setPipelined(boolean pipelined) {
+		if (pipelined && poolSize == 0) {
+			setPoolSize(1);
+		} else if (!pipelined) {
+			setPoolSize(0);
+		}
+	}
+	
+	/**
+	 * Sets the number of pipelined connections opened to the APN service.  Notifications are assigned to a connection 
+	 * by their device token, so notifications for the same device are sent in order while the load is spread over 
+	 * every connection.  Each connection recovers from error-responses independently.
+	 * @param poolSize Number of connections, 0 disables pipelining
+	 */
+	public synchronized void setPoolSize(int poolSize) {
+		if (poolSize < 0) {
+			throw new IllegalArgumentException("Pool size cannot be negative");
+		}
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		this.poolSize = poolSize;
+	}
+	
+	/**
+	 * Queues notifications passed to sendNotification and sends them in batches.  A batch is sent when batchSize 
+	 * notifications are queued or when the oldest queued notification has waited lingerMillis, whichever comes first.
+	 * sendNotification returns as soon as the notification is queued; invalid notifications are logged and dropped 
+	 * instead of being thrown.  Call close() after the last notification to send what is still queued.
+	 * @param batchSize Number of notifications sent without waiting for the linger time
+	 * @param lingerMillis Maximum time a notification is held back, 0 disables queuing
+	 */
+	public void setLinger(int batchSize, long lingerMillis) {
+		CoalescingQueue old;
+		synchronized (this) {
+			old = queue;
+			queue = null;
+			if (lingerMillis > 0 && batchSize > 0) {
+				queue = new CoalescingQueue(this, Math.max(QUEUE_CAPACITY, batchSize * 2), batchSize, lingerMillis);
+			}
+		}
+		// Outside the lock, the flusher sends through methods that take it
+		if (old != null) {
+			old.close();
+		}
+	}
+	
+	/**
+	 * Sends the notifications waiting in the queue without waiting for the linger time.
+	 */
+	public void flush() {
+		CoalescingQueue queue = this.queue;
+		if (queue != null) {
+			queue.flush();
+		}
+	}
+	
+	/**
+	 * Drives the pipelined connections with a non-blocking transport.  The transport's selector thread does the socket 
+	 * I/O for every connection, so no reader thread is started per connection and one transport can serve many 
+	 * services.  Only used when pipelining is enabled.
+	 * @param transport Transport to use, or null to use a blocking socket and reader thread per connection
+	 */
+	public synchronized void setTransport(NioTransport transport) {
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		this.transport = transport;
+	}
+	
+	/**
+	 * Runs the sends of a pool of several connections on executors shared with other services, instead of threads of 
+	 * its own.  The executors are not shut down by close().
+	 * @param executors Executors for bulk sends, urgent sends and closing connections, or null to start threads for 
+	 * every pool
+	 */
+	synchronized void setExecutors(ExecutorService[] executors) {
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		this.executors = executors;
+	}
+	
+	/**
+	 * Sends notifications over the HTTP/2 provider API instead of the binary interface.  Notifications are multiplexed 
+	 * over one connection and every notification gets its own response, so a rejected notification is reported to the 
+	 * ErrorListener without reconnecting or resending the notifications sent after it.  The pool size and transport are 
+	 * not used over HTTP/2.
+	 * @param http2 True to use the provider API of the production or sandbox environment, false to use the binary interface
+	 */
+	public void setHttp2(boolean http2) {
+		if (!http2) {
+			setHttp2Host(null);
+		} else if (sandbox) {
+			setHttp2Host(Connector.DEV_HTTP2_HOST);
 		} else {
-			connector = new Connector(keyFilename, keyPasswd, Connector.APNS_HOST);
+			setHttp2Host(Connector.HTTP2_HOST);
+		}
+	}
+	
+	/**
+	 * Sends notifications over the HTTP/2 provider API at the given host, for example a local stand-in server.
+	 * @param host Host:port of the provider API, or null to use the binary interface
+	 */
+	public synchronized void setHttp2Host(String host) {
+		if (http2 != null) {
+			http2.close();
+			http2 = null;
+		}
+		this.http2Host = host;
+	}
+	
+	/**
+	 * Sets the apns-topic sent with every notification over HTTP/2, normally the bundle ID of the app.  Only needed 
+	 * when the certificate is valid for more than one topic.
+	 * @param topic Topic of the notifications, or null to leave it to the certificate
+	 */
+	public synchronized void setTopic(String topic) {
+		if (http2 != null) {
+			http2.close();
+			http2 = null;
+		}
+		this.topic = topic;
+	}
+	
+	/**
+	 * Sets the largest payload sent, for when Apple accepts larger payloads than the defaults.  Larger notifications 
+	 * are skipped and thrown as an InvalidNotificationException.  PayloadBuilder.setFitSize can truncate the alert to 
+	 * the same limit instead.
+	 * @param maxPayloadSize Largest payload in bytes, at most 65474, or 0 for the default of the protocol in use: 
+	 * Notification.MAX_NOTIFICATION_SIZE over the binary interface and 4096 over HTTP/2
+	 */
+	public synchronized void setMaxPayloadSize(int maxPayloadSize) {
+		if (maxPayloadSize < 0) {
+			throw new IllegalArgumentException("Maximum payload size cannot be negative");
+		}
+		if (maxPayloadSize > MAX_PAYLOAD_SIZE) {
+			throw new IllegalArgumentException("Maximum payload size cannot be larger than " + MAX_PAYLOAD_SIZE + " bytes");
+		}
+		if (http2 != null) {
+			http2.close();
+			http2 = null;
+		}
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		this.maxPayloadSize = maxPayloadSize;
+	}
+	
+	/**
+	 * Adapts the size of the writes and the rate of each pipelined connection to how the APN service copes.  Both are 
+	 * halved when a notification is rejected, the connection is lost or a write takes much longer than usual because 
+	 * the APN service is reading slowly, and grow back by a small step with every write that goes through.  While 
+	 * many tokens are rejected this keeps fewer notifications in flight to be resent after each rejection.  Pacing 
+	 * does not hold back PRIORITY_IMMEDIATE notifications when power conserving ones are being sent too.
+	 * @param minBatchSize Smallest write in bytes
+	 * @param maxBatchSize Largest write in bytes, at most 65535
+	 * @param minRate Lowest rate of each connection in notifications per second
+	 * @param maxRate Highest rate of each connection in notifications per second, or 0 to only adapt the write size
+	 */
+	public synchronized void setPacing(int minBatchSize, int maxBatchSize, int minRate, int maxRate) {
+		if (minBatchSize < 1 || maxBatchSize < minBatchSize || maxBatchSize > CAPACITY) {
+			throw new IllegalArgumentException("Batch sizes must be between 1 and " + CAPACITY + " bytes, smallest first");
+		}
+		if (minRate < 1 && maxRate != 0 || maxRate != 0 && maxRate < minRate) {
+			throw new IllegalArgumentException("Rates must be positive, lowest first, or a highest rate of 0");
+		}
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		pacing = new AdaptivePacer(minBatchSize, maxBatchSize, minRate, maxRate);
+	}
+	
+	/**
+	 * Stops adapting the writes, see setPacing
+	 */
+	public synchronized void clearPacing() {
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		pacing = null;
+	}
+	
+	/**
+	 * Sets when connections to the APN service are replaced before they are written to.  The APN service and firewalls
+	 * drop idle connections, often without the socket noticing, and the first write after that is lost; an idle
+	 * timeout reconnects before it instead.  With a standby, a second connection is handshaked in the background and
+	 * swapped in when a connection is replaced or lost, so reconnecting does not wait for a TLS handshake.  A connection
+	 * the APN service closed is always replaced.
+	 * @param idleTimeoutMillis Time a connection may go without a write, 0 for no limit
+	 * @param maxAgeMillis Time a connection is used for, 0 for no limit.  At least 2 seconds, the time an error-response
+	 * can take to arrive, as a replaced connection stays open that long.
+	 * @param standby True to keep a standby connection to every pipelined connection, or to the single connection
+	 */
+	public synchronized void setConnectionHealth(long idleTimeoutMillis, long maxAgeMillis, boolean standby) {
+		if (idleTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Idle timeout cannot be negative");
+		}
+		if (maxAgeMillis < 0 || (maxAgeMillis > 0 && maxAgeMillis < PipelinedConnection.DRAIN_TIMEOUT)) {
+			throw new IllegalArgumentException("Maximum age must be 0 or at least " + PipelinedConnection.DRAIN_TIMEOUT + "ms");
+		}
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		connector.setHealth(new ConnectionHealth(idleTimeoutMillis, maxAgeMillis, standby));
+	}
+	
+	/**
+	 * Sets the tokens that notifications are not sent to.  Tokens rejected by the APN service as invalid are added to 
+	 * the set, so later notifications to them are skipped instead of costing a reconnect and a resend.  Skipped 
+	 * notifications are counted in the metrics.  By default every service has a set of its own, services sending for 
+	 * the same app can share one.
+	 * @param invalidTokens Tokens to skip, or null to send to every token
+	 */
+	public synchronized void setInvalidTokens(InvalidTokenSet invalidTokens) {
+		stopFeedbackPoll();
+		this.invalidTokens = invalidTokens;
+	}
+	
+	/**
+	 * @return Tokens that notifications are not sent to, or null if every token is sent to
+	 */
+	public InvalidTokenSet getInvalidTokens() {
+		return invalidTokens;
+	}
+	
+	/**
+	 * Reads the failed devices of the feedback service into the invalid tokens periodically, from a background thread, 
+	 * while the service is open.  Devices that registered again since they failed can be let through with 
+	 * InvalidTokenSet.registered.
+	 * @param feedback Feedback service of the same app and environment, or null to stop polling
+	 * @param periodMillis Time between polls
+	 */
+	public synchronized void setFeedbackPoll(FeedbackService feedback, long periodMillis) {
+		if (feedback != null && periodMillis <= 0) {
+			throw new IllegalArgumentException("Feedback poll period must be positive");
+		}
+		stopFeedbackPoll();
+		this.feedback = feedback;
+		this.feedbackPeriod = periodMillis;
+	}
+	
+	private synchronized void stopFeedbackPoll() {
+		if (feedbackTimer != null) {
+			feedbackTimer.cancel();
+			feedbackTimer = null;
+		}
+	}
+	
+	/**
+	 * Writes every batch to a journal before it is sent, so the notifications that were not delivered can be sent 
+	 * again after the JVM dies.  Call resume() after setting the journal to send what the last service to use it did 
+	 * not get to.  Notifications sent with setLinger are journaled when their batch is sent, not when they are queued.
+	 * @param journal Journal to write to, or null to stop journaling
+	 */
+	public void setJournal(NotificationJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Sends the notifications after the committed watermark of the journal, the ones that may not have been delivered 
+	 * when the last service to use the journal stopped.  Some of them may have been delivered, because the APN 
+	 * service does not acknowledge notifications.
+	 * @return Number of notifications sent again
+	 * @throws InvalidNotificationException If a notification cannot be sent, see sendNotifications
+	 */
+	public int resume() throws InvalidNotificationException {
+		NotificationJournal journal = this.journal;
+		if (journal == null) {
+			throw new IllegalStateException("No journal to resume from");
+		}
+		List<Notification> notifications = new ArrayList<Notification>();
+		NotificationJournal.Batch batch;
+		try {
+			batch = journal.recovered(notifications);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (batch == null) {
+			return 0;
+		}
+		log.info("Resuming " + notifications.size() + " notifications from the journal");
+		send(withoutInvalidTokens(notifications), journal, batch);
+		return notifications.size();
+	}
+	
+	private synchronized int getMaxPayloadSize(boolean http2) {
+		if (maxPayloadSize > 0) {
+			return maxPayloadSize;
+		}
+		return http2 ? Http2Gateway.MAX_PAYLOAD_SIZE : Notification.MAX_NOTIFICATION_SIZE;
+	}
+	
+	private synchronized Http2Gateway getHttp2() {
+		if (http2 == null && http2Host != null) {
+			http2 = new Http2Gateway(connector, http2Host, topic, getMaxPayloadSize(true), metrics, new ErrorListener() {
+				public void notificationFailed(Notification notification, ErrorResponse error) {
+					recordError(notification, error);
+					errorListener.notificationFailed(notification, error);
+				}
+			});
+		}
+		return http2;
+	}
+	
+	private synchronized ConnectionPool getPool() {
+		if (pool == null && poolSize > 0) {
+			pool = new ConnectionPool(connector, transport, poolSize, getMaxPayloadSize(false), metrics, new ErrorListener() {
+				public void notificationFailed(Notification notification, ErrorResponse error) {
+					recordError(notification, error);
+					errorListener.notificationFailed(notification, error);
+				}
+			}, pacing, executors);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Records an error-response and adds the token of a notification rejected for its token to the invalid tokens.
+	 * @param notification Rejected notification, or null if it is no longer known
+	 * @param error Error-response of the APN service
+	 */
+	private void recordError(Notification notification, ErrorResponse error) {
+		metrics.error(error.getStatus());
+		NotificationJournal journal = this.journal;
+		if (journal != null) {
+			journal.error();
+		}
+		InvalidTokenSet invalidTokens = this.invalidTokens;
+		if (invalidTokens != null && notification != null && notification.getDeviceToken() != null 
+				&& (error.getStatus() == ErrorResponse.INVALID_TOKEN || error.getStatus() == ErrorResponse.INVALID_TOKEN_SIZE)) {
+			invalidTokens.add(notification.getDeviceToken(), System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * Polls the feedback service in the background while notifications are sent.  Starts with the next notification 
+	 * sent and stops when the service is closed.
+	 */
+	private synchronized void startFeedbackPoll() {
+		if (feedbackTimer != null || feedback == null || invalidTokens == null) {
+			return;
+		}
+		final FeedbackService feedback = this.feedback;
+		final InvalidTokenSet invalidTokens = this.invalidTokens;
+		feedbackTimer = new Timer("japns-feedback-poll", true);
+		feedbackTimer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					int count = feedback.readFailedDevices(invalidTokens);
+					log.info("Feedback service reported " + count + " failed devices");
+				} catch (RuntimeException e) {
+					log.warn("Could not read the feedback service", e);
+				}
+			}
+		}, 0, feedbackPeriod);
+	}
+	
+	/**
+	 * @return Counters and latencies of the notifications sent by this service
+	 */
+	public NotificationMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return Counters and handshake times of the connections opened by this service
+	 */
+	public ConnectorMetrics getConnectorMetrics() {
+		return connector.getMetrics();
+	}
+	
+	/**
+	 * Registers the metrics of this service and its connector with the platform MBeanServer, as 
+	 * com.weatherflow.japns:type=NotificationService,name=NAME and com.weatherflow.japns:type=Connector,name=NAME.
+	 * @param name Name that tells this service apart from others in the same JVM
+	 */
+	public synchronized void registerMBeans(String name) {
+		unregisterMBeans();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName service = new ObjectName("com.weatherflow.japns:type=NotificationService,name=" + ObjectName.quote(name));
+			server.registerMBean(metrics, service);
+			registered.add(service);
+			ObjectName connection = new ObjectName("com.weatherflow.japns:type=Connector,name=" + ObjectName.quote(name));
+			server.registerMBean(connector.getMetrics(), connection);
+			registered.add(connection);
+		} catch (JMException e) {
+			unregisterMBeans();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Unregisters the MBeans registered by registerMBeans
+	 */
+	public synchronized void unregisterMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				log.warn("Could not unregister " + name, e);
+			}
+		}
+		registered.clear();
+	}
+	
+	/**
+	 * Sets the listener that is notified of notifications rejected by the APN service while pipelining or over HTTP/2.  The default 
+	 * listener prints the error, token and payload to standard out.
+	 * @param errorListener Listener for rejected notifications
+	 */
+	public void setErrorListener(ErrorListener errorListener) {
+		this.errorListener = errorListener;
+	}
+	
+	/**
+	 * Sends the queued notifications, waits for late error-responses of pipelined notifications and closes the connection 
+	 * to the APN service.
+	 */
+	public void close() {
+		// Outside the lock, the flusher sends through methods that take it
+		CoalescingQueue queue = this.queue;
+		if (queue != null) {
+			queue.flush();
+		}
+		closeConnections();
+	}
+	
+	private synchronized void closeConnections() {
+		stopFeedbackPoll();
+		if (http2 != null) {
+			http2.close();
+			http2 = null;
+		}
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		} else {
+			synchronized (sendLock) {
+				connector.close();
+				// No error-response can come for notifications sent over the closed connection
+				lastWindow = null;
+			}
+		}
+		connector.closeStandby();
+		if (journal != null) {
+			journal.drained();
 		}
 	}
 	
@@ -54,71 +574,347 @@ public class NotificationService  {
 	 * Multiple calls to send will reuse an existing connection or create a new one if the connection is terminated or does not exist.
 	 * The first message will take longer to send since the connection must be established first.  You can avoid the delay by calling 
 	 * the connect method before sending a Notification object.
+	 * When a linger is set the notification is queued and sent in a batch with other notifications, see setLinger.
 	 * @param notification Notification object to send.
 	 * @throws InvalidNotificationException Is thrown when an invalid Noitification object is detected.  Contains a reference to the last notification sent, but may not be the actual invalid notification.
 	 */
 	public void sendNotification(Notification notification) throws InvalidNotificationException {
-		// TODO: support queuing with timeout to increase efficiency 
+		CoalescingQueue queue = this.queue;
+		if (queue != null) {
+			queue.put(notification);
+			return;
+		}
 		sendNotifications(new ArrayList<Notification>(Arrays.asList(notification)));
 	}
 	
 
+	/**
+	 * Sends the same payload to many devices.  The payload is serialized and its size checked once, and every frame 
+	 * refers to the same bytes, so only the token and identifier are kept per device.  Tokens are read from the 
+	 * Iterable as the notifications are sent, in batches, so the tokens can be streamed from a file or a database 
+	 * cursor.  Later changes to the builder do not change the payload being sent.  The linger queue is not used.
+	 * @param payload Payload sent to every device
+	 * @param tokens Tokens of the devices the payload is sent to
+	 * @throws InvalidNotificationException If the payload is too large, in which case nothing is sent, or if a token is 
+	 * null.  Null tokens are skipped and the exception is thrown after the other notifications have been sent.
+	 */
+	public void broadcast(PayloadBuilder payload, Iterable<DeviceToken> tokens) throws InvalidNotificationException {
+		broadcast(payload.toByteArray(), tokens);
+	}
+	
+	/**
+	 * Sends the same payload to many devices, see broadcast(PayloadBuilder, Iterable).
+	 * @param payload Payload sent to every device
+	 * @param tokens Tokens of the devices the payload is sent to
+	 * @throws InvalidNotificationException If the payload is too large or a token is null
+	 */
+	public void broadcast(Payload payload, Iterable<DeviceToken> tokens) throws InvalidNotificationException {
+		broadcast(new JsonWriter().value(payload).toByteArray(), tokens);
+	}
+	
+	private void broadcast(byte[] payload, Iterable<DeviceToken> tokens) throws InvalidNotificationException {
+		int maxSize = getMaxPayloadSize(getHttp2() != null);
+		if (payload.length > maxSize) {
+			throw new InvalidNotificationException(new Notification(null, payload), "Payload larger than " + maxSize + " bytes");
+		}
+		
+		InvalidNotificationException invalid = null;
+		List<Notification> batch = new ArrayList<Notification>(BROADCAST_BATCH_SIZE);
+		for (DeviceToken token : tokens) {
+			batch.add(new Notification(token, payload));
+			if (batch.size() == BROADCAST_BATCH_SIZE) {
+				try {
+					sendNotifications(batch);
+				} catch (InvalidNotificationException e) {
+					if (invalid == null) {
+						invalid = e;
+					}
+				}
+				batch = new ArrayList<Notification>(BROADCAST_BATCH_SIZE);
+			}
+		}
+		try {
+			if (!batch.isEmpty()) {
+				sendNotifications(batch);
+			}
+		} catch (InvalidNotificationException e) {
+			if (invalid == null) {
+				invalid = e;
+			}
+		}
+		
+		if (invalid != null) {
+			throw invalid;
+		}
+	}
+	
 	/**
 	 * Sends an array of Notification objects.
+	 * Notifications with PRIORITY_IMMEDIATE are sent ahead of those with PRIORITY_CONSERVE_POWER.  While pipelining, 
+	 * immediate notifications sent from one thread also step in between the frames of a power conserving bulk send in 
+	 * progress on another thread, instead of waiting for all of it to be written.
 	 * @param notifications Array of Notification objects.
-	 * @throws InvalidNotificationException Is thrown when an invalid Noitification object is detected.  Contains a reference to the last notification sent, but may not be the actual invalid notification.
+	 * @throws InvalidNotificationException Is thrown when an invalid Noitification object is detected.  The invalid notification is skipped and thrown after the rest of the notifications have been sent.
 	 */
 	public void sendNotifications(List<Notification> notifications) throws InvalidNotificationException {
-		ByteBuffer output = ByteBuffer.allocate(CAPACITY);
-		output.order(ByteOrder.BIG_ENDIAN);
-
+		notifications = withoutInvalidTokens(notifications);
+		NotificationJournal journal = this.journal;
+		if (journal == null || notifications.isEmpty()) {
+			send(notifications);
+			return;
+		}
+		
+		NotificationJournal.Batch batch;
+		try {
+			batch = journal.append(notifications, getMaxPayloadSize(getHttp2() != null));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		send(notifications, journal, batch);
+	}
+	
+	/**
+	 * Sends journaled notifications and records the batch as sent, unless the connection failed.
+	 */
+	private void send(List<Notification> notifications, NotificationJournal journal, NotificationJournal.Batch batch) throws InvalidNotificationException {
+		try {
+			send(notifications);
+		} catch (InvalidNotificationException e) {
+			if (batch != null) {
+				journal.sent(batch);
+			}
+			throw e;
+		}
+		if (batch != null) {
+			journal.sent(batch);
+		}
+	}
+	
+	/**
+	 * Splits the notifications into an urgent lane of immediate priority notifications and a bulk lane of the rest, 
+	 * and sends the urgent lane first.  The list is only copied when it holds both.
+	 */
+	private void send(List<Notification> notifications) throws InvalidNotificationException {
+		List<Notification> urgent = null;
+		List<Notification> bulk = null;
+		for (int i = 0; i < notifications.size(); i++) {
+			boolean immediate = notifications.get(i).getPriority() == Notification.PRIORITY_IMMEDIATE;
+			if (urgent == null && bulk == null) {
+				if (immediate) {
+					continue;
+				}
+				// First bulk notification, everything before it is urgent
+				urgent = new ArrayList<Notification>(notifications.subList(0, i));
+				bulk = new ArrayList<Notification>();
+			}
+			(immediate ? urgent : bulk).add(notifications.get(i));
+		}
+		if (bulk == null) {
+			send(notifications, true);
+			return;
+		}
+		if (urgent.isEmpty()) {
+			send(bulk, false);
+			return;
+		}
+		
+		InvalidNotificationException invalid = null;
+		try {
+			send(urgent, true);
+		} catch (InvalidNotificationException e) {
+			invalid = e;
+		}
+		try {
+			send(bulk, false);
+		} catch (InvalidNotificationException e) {
+			if (invalid == null) {
+				invalid = e;
+			}
+		}
+		if (invalid != null) {
+			throw invalid;
+		}
+	}
+	
+	/**
+	 * Sends the notifications of one lane
+	 * @param urgent True if the notifications are written ahead of bulk sends in progress on other threads
+	 */
+	private void send(List<Notification> notifications, boolean urgent) throws InvalidNotificationException {
+		Http2Gateway http2 = getHttp2();
+		if (http2 != null) {
+			http2.send(notifications);
+			return;
+		}
+		
+		ConnectionPool pool = getPool();
+		if (pool != null) {
+			pool.send(notifications, urgent);
+			return;
+		}
+		
 		if (notifications.size() == 0) {
 			log.info("Empty notification list");
 			return;
 		}
 		
-		for(Notification notification : notifications) {
-			log.info("Marshalling notification: " + notification.toString());
-			output.put(COMMAND);
-			output.putInt(0); // Frame length
-			int mark = output.position();
-
-			notification.setNotificationId(notificationCounter++);
-			
+		// The service lock is taken before the send lock by close, so it is not taken while holding the send lock
+		int maxPayloadSize = getMaxPayloadSize(false);
+		synchronized (sendLock) {
+			sendBlocking(notifications, maxPayloadSize);
+		}
+	}
+	
+	/**
+	 * Writes the notifications over the connector's socket and waits for an error-response, resending the 
+	 * notifications after a rejected one.  Must hold the send lock.
+	 */
+	private void sendBlocking(List<Notification> notifications, int maxPayloadSize) throws InvalidNotificationException {
+		InvalidNotificationException invalid = null;
+		SSLSocket socket = connector.connect();
+		List<Notification> resend = Collections.emptyList();
+		ErrorResponse late = connector.takeError();
+		// Until the first error-response check of this send, an error-response may still be for the last send
+		InFlightWindow previous = lastWindow;
+		if (late != null && previous != null) {
+			// The last send was rejected after it returned, its notifications after the rejected one go out first
+			errorMessage = late.getMessage();
+			resend = rejected(previous, late);
+			previous = null;
+		}
+		
+		// Lists larger than the window are written a window at a time, each slice followed by the wait for an
+		// error-response, so a rejected notification and those after it are always still in the window
+		InFlightWindow window = new InFlightWindow(PipelinedConnection.WINDOW_SIZE);
+		lastWindow = window;
+		Iterator<Notification> pending = notifications.iterator();
+		while (true) {
+			Iterator<Notification> resent = resend.iterator();
+			boolean written = true;
+			ByteBuffer output = BUFFERS.acquire();
+			int frames = 0;
+			int slice = 0;
 			try {
-				byte[] data = notification.toByteArray();
-				output.put(data);
-			} catch (BufferOverflowException e) {
-				log.debug("BufferOverflowException: allocating more space for notifications");
-				ByteBuffer bb = ByteBuffer.allocate(output.capacity()+CAPACITY);
-				output.order(ByteOrder.BIG_ENDIAN);
-				bb.put(output);
-				output = bb;
-				output.put(notification.toByteArray());
+				// Notifications being resent keep their identifiers and go out before the ones not sent yet
+				while (written && slice < PipelinedConnection.WINDOW_SIZE && (resent.hasNext() || pending.hasNext())) {
+					slice++;
+					Notification notification;
+					if (resent.hasNext()) {
+						notification = resent.next();
+					} else {
+						notification = pending.next();
+						notification.setNotificationId(notificationCounter++);
+					}
+					long start = System.nanoTime();
+					try {
+						try {
+							notification.encodeTo(output, maxPayloadSize);
+						} catch (BufferOverflowException e) {
+							written = write(socket, output, frames);
+							frames = 0;
+							start = System.nanoTime();
+							notification.encodeTo(output, maxPayloadSize);
+						}
+						metrics.encoded(System.nanoTime() - start);
+						frames++;
+						window.add(notification);
+					} catch (InvalidNotificationException e) {
+						log.error("Skipping invalid notification " + notification.getNotificationId() + ": " + e.getMessage());
+						if (invalid == null) {
+							invalid = e;
+						}
+					}
+				}
+		
+				if (written) {
+					log.info("Sending " + frames + " notifications");
+					written = write(socket, output, frames);
+				}
+			} finally {
+				BUFFERS.release(output);
+			}
+			ErrorResponse error = readErrorResponse(socket);
+			InFlightWindow rejecting = window;
+			if (error != null && previous != null && window.get(error.getIdentifier()) == null
+					&& previous.get(error.getIdentifier()) != null) {
+				rejecting = previous;
 			}
+			previous = null;
 			
-			int size = output.position() - mark;
-			output.putInt(mark-4, size);
+			if (error == null) {
+				if (!written) {
+					connector.close();
+					throw new RuntimeException("Connection to APN service lost without an error-response");
+				}
+				if (!resent.hasNext() && !pending.hasNext()) {
+					break;
+				}
+				// Next slice over the same connection
+				resend = Collections.<Notification>emptyList();
+				continue;
+			}
+			
+			// Skip over the bad notification and continue on with the rest of the missed notifications
+			resend = rejected(rejecting, error);
+			if (rejecting != window) {
+				// The last send was rejected late, everything written since went unread too.  Its identifiers are
+				// all newer than the rejected one, so the whole window is taken.
+				resend.addAll(window.takeFrom(error.getIdentifier()));
+			}
+			if (resend.isEmpty() && !pending.hasNext()) {
+				break;
+			}
+			log.info("Resending " + resend.size() + " notifications after: " + error.getIdentifier());
+			socket = connector.connect();
 		}
-		output.flip();
-
-		log.info("Sending " + notifications.size() + " notifications");
-		int notificationId = send(output);
 		
-		// Skip over the bad notification and continue on with the rest of the missed notifications
-		if (notificationId != -1) {
-			log.info("Invalid notification id: " + notificationId);
-			for (int idx = 0; idx < notifications.size(); idx++) {
-				Notification n = notifications.get(idx);
-				if (n.getNotificationId() == notificationId) {
-					System.out.println(getLastError() + "|" + n.getToken() + "|" + n);
-					if (idx+1 < notifications.size()) {// Don't try and resend the last notification
-						log.info("Resending notification starting from: " + n.getNotificationId() + " " + n.toString());
-						sendNotifications(notifications.subList(idx+1, notifications.size()));
-					}
+		if (invalid != null) {
+			throw invalid;
+		}
+	}
+	
+	/**
+	 * Reports the notification an error-response rejected
+	 * @return The notifications sent after it, to send again
+	 */
+	private List<Notification> rejected(InFlightWindow window, ErrorResponse error) {
+		int notificationId = error.getIdentifier();
+		log.info("Invalid notification id: " + notificationId);
+		Notification rejected = window.get(notificationId);
+		recordError(rejected, error);
+		if (rejected != null) {
+			System.out.println(getLastError() + "|" + rejected.getToken() + "|" + rejected);
+		} else {
+			log.warn("Rejected notification " + notificationId + " is no longer in the in-flight window");
+		}
+		return window.takeAfter(notificationId);
+	}
+	
+	/**
+	 * Leaves out the notifications to invalid tokens.  The list is only copied if one is left out.
+	 */
+	private List<Notification> withoutInvalidTokens(List<Notification> notifications) {
+		startFeedbackPoll();
+		InvalidTokenSet invalidTokens = this.invalidTokens;
+		if (invalidTokens == null || invalidTokens.size() == 0) {
+			return notifications;
+		}
+		
+		List<Notification> valid = null;
+		for (int i = 0; i < notifications.size(); i++) {
+			Notification notification = notifications.get(i);
+			DeviceToken token = notification.getDeviceToken();
+			if (token != null && invalidTokens.contains(token)) {
+				if (valid == null) {
+					valid = new ArrayList<Notification>(notifications.subList(0, i));
 				}
+				log.debug("Skipping notification to invalid token " + token);
+				metrics.suppressed();
+			} else if (valid != null) {
+				valid.add(notification);
 			}
 		}
+		return valid != null ? valid : notifications;
 	}
 	
 	public String getLastError() {
@@ -128,30 +924,37 @@ public class NotificationService  {
 	}
 
 	
-	private int send(ByteBuffer output) {
-		SSLSocket socket = connector.connect();
-		int rtn = -1;
-
-		OutputStream os = null;
-		InputStream is = null;
-		
+	/**
+	 * Writes the encoded frames straight from the buffer's backing array and clears the buffer.
+	 * @return False if the write failed, the APN service closes the connection after an error-response
+	 */
+	private boolean write(SSLSocket socket, ByteBuffer output, int frames) {
 		try {
-			os = socket.getOutputStream();
-			is = socket.getInputStream();
+			log.debug("Sending alerts");
+			long start = System.nanoTime();
+			socket.getOutputStream().write(output.array(), output.arrayOffset(), output.position());
+			log.debug("Flusing buffer");
+			socket.getOutputStream().flush();
+			metrics.written(frames, output.position(), System.nanoTime() - start);
+			return true;
 		} catch (IOException e) {
-			throw new RuntimeException(e);
+			log.info("IOException while sending alerts, waiting for the error-response");
+			return false;
+		} finally {
+			output.clear();
 		}
+	}
+	
+	/**
+	 * @return The error-response, or null if the APN service did not send one
+	 */
+	private ErrorResponse readErrorResponse(SSLSocket socket) {
+		ErrorResponse rtn = null;
 
-		byte[] outputBuffer = new byte[output.limit()];
-		output.get(outputBuffer);
-		
+		InputStream is = null;
 		try {
-			log.debug("Sending alerts");
-			os.write(outputBuffer);
-			log.debug("Flusing buffer");
-			os.flush();
+			is = socket.getInputStream();
 		} catch (IOException e) {
-			log.error("IOException while sending alerts");
 			throw new RuntimeException(e);
 		}
 		
@@ -162,73 +965,30 @@ public class NotificationService  {
 			throw new RuntimeException(e);
 		}
 		
-		byte[] errorResponse = new byte[6];
+		byte[] errorResponse = new byte[ErrorResponse.LENGTH];
 		try {
 			log.debug("Waiting 2 seconds for error-response packet");
 			int size = is.read(errorResponse);
 			if (size > 0) {
-				// Get the error identifier
-				assert(errorResponse[0] == 8);
-
-				int j;
+				ErrorResponse error = ErrorResponse.parse(errorResponse);
+				log.info("Received error response for notification: " + error.getIdentifier());
 				
-				rtn = 0;
-				j = (errorResponse[2] & 0xff); rtn += (j << 24);
-				j = (errorResponse[3] & 0xff); rtn += (j << 16);
-				j = (errorResponse[4] & 0xff); rtn += (j << 8);
-				j = (errorResponse[5] & 0xff); rtn += (j);				
-				
-				log.info("Received error response for notification: " + rtn);
-				
-				switch((int)(errorResponse[1] & 0xff)) {
-					case 0: // No error
-						rtn = -1;
-						log.warn("Received No Error response packet");
-						break;
-					case 1: 
-						errorMessage = "Processing error";
-						connector.close();
-						break;
-					case 2: 
-						errorMessage = "Missing device Token";
-						connector.close();
-						break;
-					case 3: 
-						errorMessage = "Missing Topic";
-						connector.close();
-						break;
-					case 4: 
-						errorMessage = "Missing Payload";
-						connector.close();
-						break;
-					case 5: 
-						errorMessage = "Invalid token size";
-						connector.close();
-						break;
-					case 6: 
-						errorMessage = "Invalid topic size";
-						connector.close();
-						break;
-					case 7: 
-						errorMessage = "Invalid playload size";
-						connector.close();
-						break;
-					case 8: 
-						errorMessage = "Invalid token";
-						connector.close();
-						break;
-					case 10: 
-						errorMessage = "Shutdown";
-						connector.close();
-						break;
-					case 255: 
-						errorMessage = "Unknown error";
-						connector.close();
-						break;
+				if (error.getStatus() == ErrorResponse.NO_ERROR) {
+					log.warn("Received No Error response packet");
+				} else {
+					rtn = error;
+					errorMessage = error.getMessage();
+					connector.close();
 				}
+			} else if (size < 0) {
+				log.info("Connection closed by APN service");
+				connector.close();
 			}
-		} catch (IOException e) {
+		} catch (SocketTimeoutException e) {
 			// Timeout reading socket..  No notification from apple..
+			connector.alive();
+		} catch (IOException e) {
+			log.debug("IOException while waiting for error-response: " + e.getMessage());
 		}
 		
 		return rtn;
@@ -0,0 +1,236 @@
+package com.weatherflow.japns;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Builds a notification payload from typed fields.  The payload is serialized straight to UTF-8 JSON the first time
+ * it is needed and the bytes are kept until the builder is changed, so a notification that is encoded again, resent or
+ * logged is not serialized again.</p>
+ *
+ * <p>The alert is sent as a plain string unless localization keys are added, as Apple recommends.  Payload, Aps and
+ * Alert can still be used instead, but they are serialized every time the notification is encoded.</p>
+ *
+ * <p>With setFitSize, an alert that would make the payload too large is truncated so the payload fits exactly, instead
+ * of the notification being rejected when it is sent.</p>
+ *
+ * <pre>
+ * new PayloadBuilder().addAlert("Wind is picking up").addBadge(3).addSound("default").addCustom("station", 42)
+ * </pre>
+ */
+public class PayloadBuilder {
+	private String alert = null;
+	private String actionLocKey = null;
+	private String locKey = null;
+	private String[] locArgs = null;
+	private Integer badge = null;
+	private String sound = null;
+	private boolean contentAvailable = false;
+	private final Map<String, Object> custom = new LinkedHashMap<String, Object>();
+	private int fitSize = 0;
+
+	private byte[] encoded = null;
+
+	/**
+	 * Constructs an empty PayloadBuilder
+	 */
+	public PayloadBuilder() {
+	}
+
+	/**
+	 * Constructs a PayloadBuilder with an alert string
+	 * @param alert Alert string that will be displayed on device
+	 */
+	public PayloadBuilder(String alert) {
+		addAlert(alert);
+	}
+
+	/**
+	 * Adds/replaces the alert body text
+	 * @param alert Alert string that will be displayed on device.  Pass null to remove it.
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder addAlert(String alert) {
+		this.alert = alert;
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * Adds/replaces the action localization key
+	 * @param actionLocKey The key to the action localization.  Pass null to remove it.
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder addActionLocKey(String actionLocKey) {
+		this.actionLocKey = actionLocKey;
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * Adds/replaces the localization key
+	 * @param locKey The string specifying the localization key.  Pass null to remove it.
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder addLocKey(String locKey) {
+		this.locKey = locKey;
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * Adds/replaces the localization arguments
+	 * @param locArgs Localization arguments.  Pass null to remove them.
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder addLocArgs(String... locArgs) {
+		this.locArgs = locArgs != null ? locArgs.clone() : null;
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * Adds/replaces badge value
+	 * @param badge Badge value.  Pass null to remove badge value.
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder addBadge(Integer badge) {
+		this.badge = badge;
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * Adds/replaces sound
+	 * @param sound Name of sound file in application bundle.  Pass null to remove sound value.
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder addSound(String sound) {
+		this.sound = sound;
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * Sets content-available, which wakes the application to fetch new content in the background
+	 * @param contentAvailable True to send content-available
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder setContentAvailable(boolean contentAvailable) {
+		this.contentAvailable = contentAvailable;
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * Truncates the alert body when the payload would otherwise be larger than maxSize bytes.  The body is cut at a
+	 * character boundary and ends with an ellipsis, and is cut no more than needed.  The rest of the payload is never
+	 * changed, so the payload can still be too large if the alert body alone cannot make it fit.
+	 * @param maxSize Largest payload in bytes, for example Notification.MAX_NOTIFICATION_SIZE, or 0 to never truncate
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder setFitSize(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Fit size cannot be negative");
+		}
+		this.fitSize = maxSize;
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * Adds/replaces a custom value next to the aps dictionary.  Maps, Lists and arrays must not be changed after they are
+	 * added, the builder cannot tell that the payload has to be serialized again.
+	 * @param key Name of custom payload
+	 * @param value String, number, boolean, array, List or Map.  Pass null to remove it.
+	 * @return This builder
+	 */
+	public synchronized PayloadBuilder addCustom(String key, Object value) {
+		if (value == null) {
+			custom.remove(key);
+		} else {
+			custom.put(key, value);
+		}
+		encoded = null;
+		return this;
+	}
+
+	/**
+	 * @return The serialized payload as UTF-8 encoded JSON
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = encoded();
+		return Arrays.copyOf(bytes, bytes.length);
+	}
+
+	/**
+	 * @return Size of the serialized payload in bytes
+	 */
+	public int size() {
+		return encoded().length;
+	}
+
+	/**
+	 * Converts the payload to a JSON object
+	 */
+	public String toString() {
+		try {
+			return new String(encoded(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the serialized payload, serializing it if it changed since it was last serialized.  The array is shared and
+	 * must not be modified.
+	 */
+	synchronized byte[] encoded() {
+		if (encoded == null) {
+			JsonWriter writer = new JsonWriter();
+			writer.beginObject();
+			writer.name("aps").beginObject();
+			int body;
+			if (actionLocKey != null || locKey != null || locArgs != null) {
+				writer.name("alert").beginObject();
+				body = body(writer, "body");
+				writer.member("action-loc-key", actionLocKey);
+				writer.member("loc-key", locKey);
+				writer.member("loc-args", locArgs);
+				writer.endObject();
+			} else {
+				body = body(writer, "alert");
+			}
+			writer.member("badge", badge);
+			writer.member("sound", sound);
+			if (contentAvailable) {
+				writer.member("content-available", 1);
+			}
+			writer.endObject();
+			for (Map.Entry<String, Object> entry : custom.entrySet()) {
+				writer.member(entry.getKey(), entry.getValue());
+			}
+			writer.endObject();
+			if (body >= 0) {
+				writer.fill(body, alert, fitSize);
+			}
+			encoded = writer.toByteArray();
+		}
+		return encoded;
+	}
+
+	/**
+	 * Writes the alert body, or a placeholder for it when it has to be fitted once the rest of the payload is written
+	 * @return Position of the placeholder, or -1
+	 */
+	private int body(JsonWriter writer, String name) {
+		if (alert != null && fitSize > 0) {
+			writer.name(name);
+			return writer.placeholder();
+		}
+		writer.member(name, alert);
+		return -1;
+	}
+}
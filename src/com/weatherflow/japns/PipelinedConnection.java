@@ -0,0 +1,545 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A connection to the APN service that streams notifications without waiting for an error-response.  Error-responses
+ * are picked up by the GatewayLink as they arrive.  When a notification is rejected the connection is re-established
+ * and every notification sent after the rejected one is sent again.</p>
+ * <br>
+ * <p>Urgent notifications preempt bulk ones.  A bulk send checks between frames whether an urgent send is waiting,
+ * and if so writes what it has encoded and steps aside until the urgent notifications are written.  Identifiers are
+ * given out as the frames are encoded, so they stay in the order the notifications were written.</p>
+ * <br>
+ * <p>A connection that was idle or in use for longer than the ConnectionHealth allows is retired before the next 
+ * write.  Until an error-response could no longer arrive on it, the retired connection stays open with its own 
+ * window, and notifications it loses are sent again over the new connection with new identifiers.  When a standby is 
+ * kept it is handshaked on a thread of its own and swapped in whenever a new connection is needed.</p>
+ */
+class PipelinedConnection implements GatewayLink.Listener {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.PipelinedConnection");
+
+	// Number of sent notifications remembered so they can be resent after an error-response
+	static final int WINDOW_SIZE = 16384;
+	// How long close() waits after the last write for a late error-response
+	static final long DRAIN_TIMEOUT = 2000;
+	// How long after a standby connection could not be opened before trying again
+	private static final long STANDBY_RETRY = 5000;
+
+	private final GatewayLink.Factory factory;
+	private final int maxPayloadSize;
+	private final NotificationMetrics metrics;
+	private final ErrorListener listener;
+	private final AdaptivePacer pacer;
+	private final ConnectionHealth health;
+	private final Object lock = new Object();
+	private InFlightWindow window = new InFlightWindow(WINDOW_SIZE);
+	// Number of urgent sends waiting for or holding the lock
+	private final AtomicInteger urgentWaiting = new AtomicInteger();
+	// Notifications a resend did not get to because the new connection broke too
+	private List<Notification> backlog = Collections.emptyList();
+	private InvalidNotificationException skipped = null;
+
+	private int notificationCounter = 1;
+	private GatewayLink link;
+	private boolean broken = false;
+	private long lastWrite;
+	private long opened;
+
+	// Retired connection that may still send an error-response, and the notifications written to it
+	private GatewayLink retiring = null;
+	private InFlightWindow retiringWindow = null;
+	private long retired;
+
+	private GatewayLink standby = null;
+	private long standbyOpened;
+	private boolean warming = false;
+	private long warmFailed = 0;
+	// Changed by close(), so a standby opened for the connection before it was closed is not used
+	private int generation = 0;
+
+	/**
+	 * Constructs a PipelinedConnection
+	 * @param factory Opens the links to the APN gateway
+	 * @param maxPayloadSize Largest payload accepted, in bytes
+	 * @param metrics Metrics the notifications are recorded in
+	 * @param listener Listener notified of rejected notifications
+	 * @param pacer Sizes and paces the writes, or null to write full buffers as fast as the connection takes them
+	 * @param health When connections are retired and whether a standby is kept
+	 */
+	PipelinedConnection(GatewayLink.Factory factory, int maxPayloadSize, NotificationMetrics metrics, ErrorListener listener,
+			AdaptivePacer pacer, ConnectionHealth health) {
+		this.factory = factory;
+		this.maxPayloadSize = maxPayloadSize;
+		this.metrics = metrics;
+		this.listener = listener;
+		this.pacer = pacer;
+		this.health = health;
+	}
+
+	/**
+	 * Writes the notifications to the APN service.  Returns as soon as the notifications are written, errors are
+	 * reported to the ErrorListener when they arrive.
+	 * @param notifications Notifications to send
+	 * @param urgent True to write the notifications ahead of bulk sends in progress on other threads, false to step
+	 * aside for urgent sends between frames
+	 * @throws InvalidNotificationException If a notification cannot be encoded.  It is thrown after the other
+	 * notifications have been written.
+	 */
+	void send(List<Notification> notifications, boolean urgent) throws InvalidNotificationException {
+		if (notifications.size() == 0) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		if (urgent) {
+			urgentWaiting.incrementAndGet();
+		}
+		synchronized (lock) {
+			try {
+				send(notifications, urgent, start);
+			} finally {
+				if (urgent) {
+					urgentWaiting.decrementAndGet();
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	private void send(List<Notification> notifications, boolean urgent, long start) throws InvalidNotificationException {
+		awaitRecovery();
+		if (!urgent) {
+			awaitUrgent();
+		}
+
+		// Kept apart from skipped, which the urgent sends this one steps aside for use too
+		InvalidNotificationException invalid = null;
+		List<Notification> rest = notifications;
+		while (true) {
+			// Urgent notifications are not held back by the pacing
+			int limit = urgent || pacer == null ? rest.size() : pacer.permits(rest.size());
+			if (limit == 0) {
+				pause(pacer.delay());
+			} else {
+				skipped = null;
+				int transmitted = transmit(rest, true, !urgent, limit);
+				if (pacer != null) {
+					pacer.consumed(transmitted);
+				}
+				if (invalid == null) {
+					invalid = skipped;
+				}
+				if (transmitted == rest.size()) {
+					break;
+				}
+				rest = rest.subList(transmitted, rest.size());
+			}
+			// The connection broke, an urgent send is waiting or the pacing holds the rest back, continue once it is 
+			// out of the way
+			awaitRecovery();
+			if (!urgent) {
+				awaitUrgent();
+			}
+		}
+		if (urgent) {
+			metrics.urgentWritten(System.nanoTime() - start);
+		}
+		if (invalid != null) {
+			throw invalid;
+		}
+	}
+
+	/**
+	 * Waits for outstanding error-responses and closes the connection.  The APN service never acknowledges
+	 * notifications, so a quiet period after the last write is the only sign that every notification was accepted.
+	 */
+	void close() {
+		synchronized (lock) {
+			try {
+				if (link != null && !broken) {
+					link.flush();
+					lastWrite = System.currentTimeMillis();
+				}
+				while (broken || link != null || retiring != null) {
+					long wait = lastWrite + DRAIN_TIMEOUT - System.currentTimeMillis();
+					if (!broken && wait <= 0) {
+						break;
+					}
+					lock.wait(broken ? 0 : wait);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			disconnect();
+			window.clear();
+			closeRetiring();
+			if (standby != null) {
+				standby.close();
+				standby = null;
+			}
+			generation++;
+			backlog = Collections.emptyList();
+		}
+	}
+
+	private void awaitUrgent() {
+		try {
+			while (urgentWaiting.get() > 0) {
+				lock.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Waits without holding the lock, so urgent sends and recovery can go ahead
+	 */
+	private void pause(long millis) {
+		try {
+			lock.wait(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void awaitRecovery() {
+		try {
+			while (broken) {
+				lock.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Encodes and writes notifications.  Invalid notifications are skipped, the first one is kept in skipped.  Stops 
+	 * when the connection breaks, so the window only holds notifications that were written and the rejected one is 
+	 * still in it when the error-response arrives.  Must hold the lock.
+	 * @param assign True to give each notification the next identifier, false to resend with the identifiers they have
+	 * @param yield True to stop between frames when an urgent send is waiting
+	 * @param limit Number of notifications to stop after
+	 * @return Number of notifications written or skipped
+	 */
+	private int transmit(List<Notification> notifications, boolean assign, boolean yield, int limit) {
+		connect();
+
+		ByteBuffer output = NotificationService.BUFFERS.acquire();
+		int batchSize = pacer != null ? pacer.getBatchSize() : output.capacity();
+		Integer chunkStart = null;
+		int chunkLength = 0;
+		int transmitted = 0;
+		for (Notification notification : notifications) {
+			if (transmitted == limit || (yield && transmitted > 0 && urgentWaiting.get() > 0)) {
+				break;
+			}
+			if (assign) {
+				notification.setNotificationId(notificationCounter++);
+			}
+			long start = System.nanoTime();
+			try {
+				try {
+					notification.encodeTo(output, maxPayloadSize);
+				} catch (BufferOverflowException e) {
+					write(output, chunkStart, chunkLength);
+					if (broken) {
+						return transmitted;
+					}
+					output = NotificationService.BUFFERS.acquire();
+					chunkStart = null;
+					chunkLength = 0;
+					start = System.nanoTime();
+					notification.encodeTo(output, maxPayloadSize);
+				}
+				metrics.encoded(System.nanoTime() - start);
+			} catch (InvalidNotificationException e) {
+				log.error("Skipping invalid notification " + notification.getNotificationId() + ": " + e.getMessage());
+				if (skipped == null) {
+					skipped = e;
+				}
+				transmitted++;
+				continue;
+			}
+
+			if (chunkStart == null) {
+				chunkStart = notification.getNotificationId();
+			}
+			chunkLength++;
+			window.add(notification);
+			transmitted++;
+			
+			if (output.position() >= batchSize) {
+				write(output, chunkStart, chunkLength);
+				if (broken) {
+					return transmitted;
+				}
+				output = NotificationService.BUFFERS.acquire();
+				chunkStart = null;
+				chunkLength = 0;
+			}
+		}
+		write(output, chunkStart, chunkLength);
+		return transmitted;
+	}
+
+	/**
+	 * Hands a buffer of encoded frames to the link, which releases it when done.
+	 * @param chunkStart Identifier of the first notification in the buffer
+	 * @param chunkLength Number of notifications in the buffer
+	 */
+	private void write(ByteBuffer output, Integer chunkStart, int chunkLength) {
+		output.flip();
+		if (chunkStart == null || broken) {
+			NotificationService.BUFFERS.release(output);
+			return;
+		}
+
+		try {
+			int length = output.remaining();
+			long start = System.nanoTime();
+			link.write(output, chunkStart);
+			long nanos = System.nanoTime() - start;
+			metrics.written(chunkLength, length, nanos);
+			if (pacer != null) {
+				pacer.written(length, nanos);
+			}
+			lastWrite = System.currentTimeMillis();
+		} catch (IOException e) {
+			// The APN service closes the connection after an error-response.  The link reports the error-response, or
+			// the end of the connection, and what was lost is resent.
+			log.info("IOException while sending notifications, waiting for the link to report the error-response");
+			broken = true;
+		}
+	}
+
+	/**
+	 * Makes sure there is a connection to write to, retiring the one there is if it is too old or was idle too long.
+	 * Must hold the lock.
+	 */
+	private void connect() {
+		long now = System.currentTimeMillis();
+		if (retiring != null && now - retired >= DRAIN_TIMEOUT) {
+			closeRetiring();
+		}
+		if (link != null) {
+			String reason = health.expired(opened, lastWrite, now);
+			if (reason != null) {
+				log.info("Retiring connection, it " + reason);
+				retire(now);
+			}
+		}
+
+		if (link == null) {
+			if (standby != null) {
+				String reason = health.expired(standbyOpened, standbyOpened, now);
+				if (reason == null) {
+					log.debug("Using standby connection");
+					link = standby;
+					opened = standbyOpened;
+				} else {
+					log.info("Not using standby connection, it " + reason);
+					standby.close();
+				}
+				standby = null;
+			}
+			if (link == null) {
+				link = factory.open(this);
+				opened = System.currentTimeMillis();
+			}
+		}
+		warm();
+	}
+
+	/**
+	 * Stops writing to the connection.  It is closed at once if an error-response can no longer arrive, otherwise it
+	 * keeps the window of the notifications written to it until it is closed by connect() or close().
+	 */
+	private void retire(long now) {
+		if (now - lastWrite >= DRAIN_TIMEOUT) {
+			disconnect();
+			window.clear();
+			return;
+		}
+
+		link.flush();
+		closeRetiring();
+		retiring = link;
+		retired = System.currentTimeMillis();
+		link = null;
+		InFlightWindow fresh = retiringWindow != null ? retiringWindow : new InFlightWindow(WINDOW_SIZE);
+		retiringWindow = window;
+		window = fresh;
+	}
+
+	private void closeRetiring() {
+		if (retiring != null) {
+			retiring.close();
+			retiring = null;
+			retiringWindow.clear();
+		}
+	}
+
+	/**
+	 * Opens a standby connection on a thread of its own, unless there is one, it is being opened or none is kept.
+	 * Must hold the lock.
+	 */
+	private void warm() {
+		if (!health.isStandby() || standby != null || warming || System.currentTimeMillis() - warmFailed < STANDBY_RETRY) {
+			return;
+		}
+		warming = true;
+		final int current = generation;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				StandbyListener standbyListener = new StandbyListener();
+				GatewayLink opened = null;
+				try {
+					opened = factory.open(standbyListener);
+				} catch (RuntimeException e) {
+					log.warn("Could not open standby connection: " + e.getMessage());
+				}
+				synchronized (lock) {
+					warming = false;
+					if (opened == null) {
+						warmFailed = System.currentTimeMillis();
+					} else if (current != generation || standby != null || standbyListener.ended) {
+						opened.close();
+					} else {
+						standby = opened;
+						standbyOpened = System.currentTimeMillis();
+					}
+				}
+			}
+		}, "japns-standby");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Listens to a standby connection, which may end before it is handed over to the connection
+	 */
+	private class StandbyListener implements GatewayLink.Listener {
+		// Guarded by the lock
+		private boolean ended = false;
+
+		public void closed(GatewayLink source, ErrorResponse error) {
+			synchronized (lock) {
+				ended = true;
+				PipelinedConnection.this.closed(source, error);
+			}
+		}
+	}
+
+	private void disconnect() {
+		if (link != null) {
+			link.close();
+			link = null;
+		}
+	}
+
+	/**
+	 * Called by the link when its connection ends, either with an error-response or without one.
+	 */
+	public void closed(GatewayLink source, ErrorResponse error) {
+		synchronized (lock) {
+			if (source == standby) {
+				log.debug("Standby connection closed by APN service");
+				standby = null;
+				return;
+			}
+
+			List<Notification> resend;
+			if (source == retiring) {
+				Integer undelivered = retiring.getUndelivered();
+				retiring.close();
+				retiring = null;
+				resend = lost(retiringWindow, error, undelivered);
+				// The new connection has written newer identifiers, so these are sent again as new notifications
+				for (Notification notification : resend) {
+					notification.setNotificationId(notificationCounter++);
+				}
+				if (broken) {
+					// Sent once the new connection has recovered, after what it lost
+					List<Notification> rest = new ArrayList<Notification>(backlog);
+					rest.addAll(resend);
+					backlog = rest;
+					resend = Collections.emptyList();
+				}
+			} else if (source == link) {
+				Integer undelivered = link.getUndelivered();
+				disconnect();
+				resend = lost(window, error, undelivered);
+				resend.addAll(backlog);
+				backlog = Collections.emptyList();
+				broken = false;
+			} else {
+				return; // Connection was already replaced or closed
+			}
+			if (pacer != null) {
+				if (error != null && error.getStatus() != ErrorResponse.NO_ERROR) {
+					pacer.rejected(error.getStatus());
+				} else {
+					pacer.disconnected();
+				}
+			}
+
+			if (resend.size() > 0) {
+				log.info("Resending " + resend.size() + " notifications starting from: " + resend.get(0).getNotificationId());
+				try {
+					int transmitted = transmit(resend, false, false, resend.size());
+					if (transmitted < resend.size()) {
+						backlog = new ArrayList<Notification>(resend.subList(transmitted, resend.size()));
+					}
+				} catch (RuntimeException e) {
+					log.error("Could not reconnect to APN service, " + resend.size() + " notifications were not resent", e);
+				}
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Finds the notifications a connection that ended did not deliver, and empties its window
+	 * @param undelivered Oldest notification the link knows it did not deliver, or null
+	 */
+	private List<Notification> lost(InFlightWindow window, ErrorResponse error, Integer undelivered) {
+		if (error != null && error.getStatus() != ErrorResponse.NO_ERROR) {
+			log.info("Received error response: " + error);
+			return takeAfter(window, error);
+		} else if (undelivered != null) {
+			log.info("Connection lost, resending from notification: " + undelivered);
+			return window.takeFrom(undelivered);
+		} else {
+			log.debug("Connection closed by APN service");
+			window.clear();
+			return new ArrayList<Notification>();
+		}
+	}
+
+	/**
+	 * Reports the rejected notification, empties the window and returns the notifications sent after it.
+	 */
+	private List<Notification> takeAfter(InFlightWindow window, ErrorResponse error) {
+		Notification rejected = window.get(error.getIdentifier());
+		if (rejected == null) {
+			// Rejected notification is older than the window, everything in it was sent after it
+			log.warn("Rejected notification " + error.getIdentifier() + " is no longer in the in-flight window");
+		}
+		listener.notificationFailed(rejected, error);
+		return window.takeAfter(error.getIdentifier());
+	}
+}
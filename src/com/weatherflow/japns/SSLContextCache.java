@@ -0,0 +1,170 @@
+package com.weatherflow.japns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>SSLContexts built from PKCS12 key files, shared by every NotificationService and FeedbackService in the process that
+ * uses the same key file and password.  Loading the key file and building the KeyManagerFactory is done once instead
+ * of by every Connector, and connections opened from one SSLContext share its session cache, so a reconnect to the
+ * same host resumes the TLS session with an abbreviated handshake.  A key file that changed on disk is loaded
+ * again.</p>
+ * <br>
+ * <p>Also chooses the cipher suites connections enable.  AES-GCM suites, which CPUs with AES instructions run in
+ * hardware, come first, followed by the other suites the JRE enables by default.</p>
+ */
+final class SSLContextCache {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.SSLContextCache");
+
+	// Sessions kept for resumption by each SSLContext, and how long they are kept
+	private static final int SESSION_CACHE_SIZE = 256;
+	private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+	/**
+	 * AES-GCM suites, TLS 1.3 first and those with forward secrecy before the rest
+	 */
+	static final String[] DEFAULT_CIPHER_SUITES = {
+		"TLS_AES_128_GCM_SHA256",
+		"TLS_AES_256_GCM_SHA384",
+		"TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+		"TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+		"TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+		"TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+		"TLS_RSA_WITH_AES_128_GCM_SHA256",
+		"TLS_RSA_WITH_AES_256_GCM_SHA384"
+	};
+
+	/**
+	 * A loaded key file
+	 */
+	private static class Entry {
+		final long lastModified;
+		final long length;
+		final char[] keyPasswd;
+		final SSLContext sslContext;
+
+		Entry(long lastModified, long length, char[] keyPasswd, SSLContext sslContext) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.keyPasswd = keyPasswd;
+			this.sslContext = sslContext;
+		}
+	}
+
+	private static final Map<String, Entry> contexts = new HashMap<String, Entry>();
+	private static volatile String[] cipherSuites = DEFAULT_CIPHER_SUITES;
+
+	private SSLContextCache() {
+	}
+
+	/**
+	 * Gets the SSLContext for a key file, loading it if it was not loaded with the same password or changed since
+	 * @param keyFilename Name of p12 file
+	 * @param keyPasswd Password of p12 file
+	 * @return SSLContext initialized with the key/cert
+	 * @throws FileNotFoundException If keyFilename cannot be found
+	 */
+	static synchronized SSLContext get(String keyFilename, String keyPasswd) throws FileNotFoundException {
+		File file = new File(keyFilename);
+		if (!file.isFile()) {
+			throw new FileNotFoundException(keyFilename);
+		}
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		char[] password = keyPasswd.toCharArray();
+		Entry entry = contexts.get(key);
+		if (entry != null && entry.lastModified == file.lastModified() && entry.length == file.length()
+				&& Arrays.equals(entry.keyPasswd, password)) {
+			log.debug("Using cached SSLContext for " + key);
+			return entry.sslContext;
+		}
+
+		long lastModified = file.lastModified();
+		long length = file.length();
+		SSLContext sslContext = load(file, password);
+		contexts.put(key, new Entry(lastModified, length, password, sslContext));
+		return sslContext;
+	}
+
+	private static SSLContext load(File file, char[] password) throws FileNotFoundException {
+		FileInputStream keyFile = new FileInputStream(file);
+		try {
+			log.debug("Getting keystore instance PKCS12");
+			KeyStore ks = KeyStore.getInstance("PKCS12");
+			log.debug("Loading keyfile");
+			ks.load(keyFile, password);
+
+			log.debug("Getting instance of KeyManagerFactory SunX509");
+			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+			keyManagerFactory.init(ks, password);
+
+			// Create the ssl connection using the provided key/cert
+			log.debug("Loading SSLContext");
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			log.debug("Initalizing SSLContext");
+			sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+			SSLSessionContext sessions = sslContext.getClientSessionContext();
+			sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(SESSION_TIMEOUT);
+			return sslContext;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			try {
+				keyFile.close();
+			} catch (IOException e) {
+				log.warn("IOException while closing key file", e);
+			}
+		}
+	}
+
+	/**
+	 * Sets the cipher suites enabled ahead of the JRE's defaults
+	 * @param suites Suites in order of preference, or null for DEFAULT_CIPHER_SUITES
+	 */
+	static void setCipherSuites(String[] suites) {
+		cipherSuites = suites != null ? suites.clone() : DEFAULT_CIPHER_SUITES;
+	}
+
+	/**
+	 * Chooses the cipher suites a connection enables
+	 * @param supported Suites the SSLSocket or SSLEngine supports
+	 * @param enabled Suites it enables by default
+	 * @return The preferred suites that are supported, followed by the other suites enabled by default
+	 */
+	static String[] cipherSuites(String[] supported, String[] enabled) {
+		Set<String> available = new HashSet<String>(Arrays.asList(supported));
+		Set<String> suites = new LinkedHashSet<String>();
+		for (String suite : cipherSuites) {
+			if (available.contains(suite)) {
+				suites.add(suite);
+			}
+		}
+		suites.addAll(Arrays.asList(enabled));
+		return suites.toArray(new String[suites.size()]);
+	}
+}
@@ -0,0 +1,130 @@
+package com.weatherflow.japns;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A GatewayLink over a blocking SSLSocket.  Frames are written on the caller's thread and a reader thread waits for
+ * the error-response the APN service sends before closing the connection.</p>
+ */
+class SocketLink implements GatewayLink {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.SocketLink");
+
+	// How often the reader wakes up to check on a connection whose writes have failed
+	private static final int READ_TIMEOUT = 1000;
+
+	private final Connector connector;
+	private final Listener listener;
+	private final OutputStream outputStream;
+	private final InputStream inputStream;
+
+	private volatile Integer undelivered = null;
+	private volatile boolean closed = false;
+
+	private SocketLink(Connector connector, Listener listener) {
+		this.connector = connector;
+		this.listener = listener;
+
+		SSLSocket socket = connector.connect();
+		try {
+			socket.setSoTimeout(READ_TIMEOUT);
+			outputStream = socket.getOutputStream();
+			inputStream = socket.getInputStream();
+		} catch (IOException e) {
+			connector.close();
+			throw new RuntimeException(e);
+		}
+
+		Thread thread = new Thread(new ErrorReader(), "japns-error-reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Creates a factory that opens SocketLinks, each with its own socket
+	 * @param connector Connector whose SSLContext and host are used
+	 * @return The factory
+	 */
+	static Factory factory(final Connector connector) {
+		return new Factory() {
+			public GatewayLink open(Listener listener) {
+				return new SocketLink(new Connector(connector.getSSLContext(), connector.getHost(), connector.getMetrics()), listener);
+			}
+		};
+	}
+
+	public void write(ByteBuffer frames, int firstId) throws IOException {
+		try {
+			if (undelivered != null) {
+				throw new IOException("Connection has failed");
+			}
+			outputStream.write(frames.array(), frames.arrayOffset() + frames.position(), frames.remaining());
+			outputStream.flush();
+		} catch (IOException e) {
+			if (undelivered == null) {
+				undelivered = firstId;
+			}
+			throw e;
+		} finally {
+			NotificationService.BUFFERS.release(frames);
+		}
+	}
+
+	public void flush() {
+		// Writes are not buffered
+	}
+
+	public Integer getUndelivered() {
+		return undelivered;
+	}
+
+	public void close() {
+		closed = true;
+		try {
+			connector.close();
+		} catch (RuntimeException e) {
+			log.warn("Exception while closing connection", e);
+		}
+	}
+
+	/**
+	 * Reads the error-response packet the APN service sends before closing the connection.
+	 */
+	private class ErrorReader implements Runnable {
+		public void run() {
+			byte[] packet = new byte[ErrorResponse.LENGTH];
+			int read = 0;
+
+			try {
+				while (read < packet.length && !closed) {
+					try {
+						int size = inputStream.read(packet, read, packet.length - read);
+						if (size < 0) {
+							break;
+						}
+						read += size;
+					} catch (SocketTimeoutException e) {
+						// A failed write with nothing to read means the connection died without an error-response
+						if (read == 0 && undelivered != null) {
+							break;
+						}
+					}
+				}
+			} catch (IOException e) {
+				log.debug("IOException while reading error-response: " + e.getMessage());
+			}
+
+			if (!closed) {
+				close();
+				listener.closed(SocketLink.this, read == packet.length ? ErrorResponse.parse(packet) : null);
+			}
+		}
+	}
+}
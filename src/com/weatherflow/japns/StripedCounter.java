@@ -0,0 +1,60 @@
+package com.weatherflow.japns;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A counter that many threads can add to without contending on one memory location.  Each thread adds to one of
+ * several cells, chosen by its thread id, and the cells are summed when the counter is read.  Cells are spaced a cache
+ * line apart so threads on different cells do not invalidate each other's caches.</p>
+ */
+final class StripedCounter {
+	// Longs per cache line, so neighbouring cells never share a line
+	static final int PADDING = 8;
+	static final int STRIPES = stripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	void increment() {
+		add(1);
+	}
+
+	void add(long value) {
+		cells.getAndAdd(stripe() * PADDING, value);
+	}
+
+	/**
+	 * @return Sum of every cell.  Not a snapshot, values added while it is summed may or may not be counted.
+	 */
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+
+	/**
+	 * @return Cell used by the current thread
+	 */
+	static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+	}
+
+	/**
+	 * @return Power of two at least twice the number of processors, so running threads rarely share a cell
+	 */
+	private static int stripes() {
+		int stripes = 1;
+		while (stripes < 2 * Runtime.getRuntime().availableProcessors() && stripes < 64) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+}
@@ -0,0 +1,100 @@
+package com.weatherflow.japns.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Reads lines on a thread of its own into a bounded queue, so input is read while notifications are sent.  The
+ * reading thread blocks when the queue is full, so a sender that falls behind slows the reader down instead of the
+ * whole input piling up on the heap.</p>
+ */
+class LineReader implements Runnable {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.LineReader");
+
+	// Queued after the last line, compared by identity
+	private static final String END = new String("");
+
+	private final BufferedReader reader;
+	private final BlockingQueue<String> lines;
+	private volatile IOException failure = null;
+	private boolean finished = false;
+
+	/**
+	 * Constructs a LineReader and starts its thread
+	 * @param reader Input to read
+	 * @param capacity Number of lines read ahead
+	 */
+	LineReader(BufferedReader reader, int capacity) {
+		this.reader = reader;
+		this.lines = new ArrayBlockingQueue<String>(capacity);
+
+		Thread thread = new Thread(this, "japns-line-reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.put(line);
+			}
+		} catch (IOException e) {
+			log.error("IOException while reading notifications");
+			failure = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		try {
+			lines.put(END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for the next line
+	 * @return The line, or null at the end of the input
+	 * @throws IOException If the input could not be read
+	 */
+	String take() throws IOException {
+		if (finished) {
+			return null;
+		}
+		try {
+			return next(lines.take());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted reading notifications");
+		}
+	}
+
+	/**
+	 * Gets the next line if it has been read already
+	 * @return The line, or null if no line is ready or at the end of the input
+	 * @throws IOException If the input could not be read
+	 */
+	String poll() throws IOException {
+		if (finished) {
+			return null;
+		}
+		return next(lines.poll());
+	}
+
+	private String next(String line) throws IOException {
+		if (line == END) {
+			finished = true;
+			if (failure != null) {
+				throw failure;
+			}
+			return null;
+		}
+		return line;
+	}
+}
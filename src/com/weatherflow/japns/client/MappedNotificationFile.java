@@ -0,0 +1,112 @@
+package com.weatherflow.japns.client;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Memory-maps a notification file and cuts it into chunks that end on a line boundary, so the lines can be scanned
+ * as bytes without being decoded to Strings.  The file is mapped one region at a time, so files larger than 2GB can
+ * be read.</p>
+ */
+class MappedNotificationFile {
+	private static final int REGION_SIZE = 64 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private MappedByteBuffer region = null;
+	private long regionStart = 0;
+	private int position = 0;
+
+	/**
+	 * Opens the file
+	 * @param filename Name of the notification file
+	 * @throws IOException If the file cannot be opened
+	 */
+	MappedNotificationFile(String filename) throws IOException {
+		this.file = new RandomAccessFile(filename, "r");
+		this.channel = file.getChannel();
+		this.size = channel.size();
+	}
+
+	/**
+	 * Gets the next whole lines of the file
+	 * @param chunkSize Number of bytes wanted, the chunk ends at the last line boundary before it or, if a line is
+	 * longer, at the end of that line
+	 * @return The lines, or null at the end of the file.  The buffer stays valid after the next call.
+	 * @throws IOException If the file cannot be mapped or a line is longer than the region size
+	 */
+	ByteBuffer next(int chunkSize) throws IOException {
+		while (true) {
+			if (region == null || position == region.limit()) {
+				long start = region == null ? 0 : regionStart + position;
+				if (start >= size) {
+					return null;
+				}
+				map(start);
+			}
+
+			int end = Math.min(position + chunkSize, region.limit());
+			int cut = lastLineEnd(position, end);
+			if (cut < 0) {
+				cut = firstLineEnd(end, region.limit());
+			}
+			if (cut < 0) {
+				if (regionStart + region.limit() == size) {
+					cut = region.limit(); // Last line of the file has no line end
+				} else if (position == 0) {
+					throw new IOException("Line at byte " + regionStart + " is longer than " + REGION_SIZE + " bytes");
+				} else {
+					map(regionStart + position); // Line continues in the next region
+					continue;
+				}
+			}
+
+			ByteBuffer chunk = region.duplicate();
+			chunk.position(position);
+			chunk.limit(cut);
+			position = cut;
+			return chunk.slice();
+		}
+	}
+
+	/**
+	 * Closes the file, chunks that were returned stay valid
+	 */
+	void close() throws IOException {
+		file.close();
+	}
+
+	private void map(long start) throws IOException {
+		region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+		regionStart = start;
+		position = 0;
+	}
+
+	/**
+	 * @return Index after the last line end in the range, or -1 if there is none
+	 */
+	private int lastLineEnd(int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (region.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Index after the first line end in the range, or -1 if there is none
+	 */
+	private int firstLineEnd(int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (region.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+}
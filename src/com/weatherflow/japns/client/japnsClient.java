@@ -6,9 +6,19 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.ConsoleAppender;
@@ -18,10 +28,15 @@ import org.apache.log4j.PropertyConfigurator;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
+import com.weatherflow.japns.Connector;
+import com.weatherflow.japns.DeviceToken;
 import com.weatherflow.japns.FailedDevice;
+import com.weatherflow.japns.FeedbackListener;
 import com.weatherflow.japns.FeedbackService;
 import com.weatherflow.japns.InvalidNotificationException;
+import com.weatherflow.japns.NioTransport;
 import com.weatherflow.japns.Notification;
+import com.weatherflow.japns.NotificationJournal;
 import com.weatherflow.japns.NotificationService;
 import com.weatherflow.japns.Payload;
 
@@ -29,7 +44,8 @@ import com.weatherflow.japns.Payload;
  * <p>japnsClient is a command-line application that simplifies sending alerts to Apple's push notification server.  
  * The application can process alerts from standard in or from a file specified on the command-line.  The alerts are 
  * in pipe-delimited format with the device token in the first field and the JSON-formatted payload as the second field
- * and a carriage return indicating the end of record.</p>  
+ * and a carriage return indicating the end of record.  Notifications are sent while the rest of the input is read, so 
+ * files of any size can be sent without holding them in memory.</p>  
  * Example:<br>
  * 00000000 11111111 22222222 33333333 44444444 55555555 66666666 77777777|{"aps":{"alert":"Test Alert"}}<br>
  * <br>
@@ -42,6 +58,19 @@ import com.weatherflow.japns.Payload;
  *  -sandbox			Tells the japnsClient to connect to the sandbox server.<br>
  *  -notificationFile	Location of file containing notifications.  STDIN is used when notification file is not specified.<br>
  *  -feedbackService	Connects to feedback service and prints out list of invalid device tokens.  <br>
+ *  -pipelined			Streams notifications without waiting for an error-response after each batch.  <br>
+ *  -connections		Number of pipelined connections notifications are spread over.  <br>
+ *  -nio				Drives the pipelined connections and the feedback service from one non-blocking selector thread.  <br>
+ *  -http2				Sends notifications over the HTTP/2 provider API, each notification gets its own response.  <br>
+ *  -topic				Topic (bundle ID) of the notifications sent over HTTP/2.  <br>
+ *  -maxPayloadSize		Largest payload sent in bytes, when Apple accepts larger payloads than the defaults.  <br>
+ *  -host				Host:port of the binary interface gateway instead of Apple's, for example a GatewaySimulator.  <br>
+ *  -feedbackHost		Host:port of the feedback service instead of Apple's, for example a FeedbackSimulator.  <br>
+ *  -threads			Number of threads parsing notifications, the number of processors by default.  <br>
+ *  -raw				Memory-maps the notification file and sends each payload byte for byte as it is, after checking that it is 
+ *  					well-formed JSON, instead of parsing it into a Payload.  Everything after the first pipe is the payload.  <br>
+ *  -journal			Journal file the notifications are written to before they are sent.  Notifications that were not delivered 
+ *  					when the last run stopped are sent again first.  <br>
  *  -verbose			Enables INFO level logging.  <br>
  *  -debug				Enables DEBUG level logging.  <br>
  * <br>
@@ -62,17 +91,34 @@ import com.weatherflow.japns.Payload;
  */
 public class japnsClient {
 	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient");
+	
+	// Lines read ahead of the notifications being sent
+	private static final int QUEUE_CAPACITY = 8192;
+	// Lines parsed together and the notifications handed to the service at once
+	private static final int CHUNK_SIZE = 1000;
+	// Bytes of a memory-mapped file scanned together, about a thousand notifications
+	private static final int CHUNK_BYTES = 128 * 1024;
 
 	/**
 	 * @param args
 	 */
-	@SuppressWarnings("unchecked")
 	public static void main(String[] args) {
 		String notificationFile = null;
 		String keyFile = null;
 		String password = null;
 		boolean sandbox = false;
 		boolean feedbackService = false;
+		boolean pipelined = false;
+		int connections = 0;
+		boolean nio = false;
+		boolean http2 = false;
+		String topic = null;
+		int maxPayloadSize = 0;
+		String host = null;
+		String feedbackHost = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean raw = false;
+		String journalFile = null;
 		
 		PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("main/resources/log4j.properties"));
 		
@@ -96,6 +142,50 @@ public class japnsClient {
 				feedbackService = true;
 				log.debug("Using feedback service");
 			}
+			if (args[i].equalsIgnoreCase("-pipelined")) {
+				pipelined = true;
+				log.debug("Pipelined sending enabled");
+			}
+			if (args[i].equalsIgnoreCase("-connections")) {
+				connections = Integer.parseInt(args[++i]);
+				log.debug("Connections: " + connections);
+			}
+			if (args[i].equalsIgnoreCase("-nio")) {
+				nio = true;
+				log.debug("Non-blocking transport enabled");
+			}
+			if (args[i].equalsIgnoreCase("-http2")) {
+				http2 = true;
+				log.debug("HTTP/2 provider API enabled");
+			}
+			if (args[i].equalsIgnoreCase("-topic")) {
+				topic = args[++i];
+				log.debug("Topic: " + topic);
+			}
+			if (args[i].equalsIgnoreCase("-maxPayloadSize")) {
+				maxPayloadSize = Integer.parseInt(args[++i]);
+				log.debug("Maximum payload size: " + maxPayloadSize);
+			}
+			if (args[i].equalsIgnoreCase("-host")) {
+				host = args[++i];
+				log.debug("Gateway: " + host);
+			}
+			if (args[i].equalsIgnoreCase("-feedbackHost")) {
+				feedbackHost = args[++i];
+				log.debug("Feedback service: " + feedbackHost);
+			}
+			if (args[i].equalsIgnoreCase("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+				log.debug("Parser threads: " + threads);
+			}
+			if (args[i].equalsIgnoreCase("-raw")) {
+				raw = true;
+				log.debug("Raw passthrough enabled");
+			}
+			if (args[i].equalsIgnoreCase("-journal")) {
+				journalFile = args[++i];
+				log.debug("Journal: " + journalFile);
+			}
 			if (args[i].equalsIgnoreCase("-verbose")) {
 				Logger.getRootLogger().setLevel(Level.INFO);
 			}
@@ -106,7 +196,7 @@ public class japnsClient {
 		}
 		
 		if (keyFile == null) {
-			System.out.println("Usage: japnsClient -keyFile KEYFILE -password KEYFILE_PASSWORD [-sandbox] [-notificationFile DATA_FILE] [-feedbackService] [-verbose|-debug]");
+			System.out.println("Usage: japnsClient -keyFile KEYFILE -password KEYFILE_PASSWORD [-sandbox] [-notificationFile DATA_FILE] [-feedbackService] [-pipelined] [-connections COUNT] [-nio] [-http2 [-topic TOPIC]] [-maxPayloadSize BYTES] [-host HOST:PORT] [-feedbackHost HOST:PORT] [-threads COUNT] [-raw] [-journal JOURNAL_FILE] [-verbose|-debug]");
 			System.out.println("");
 			System.out.println("DATA_FILE is a pipe delimited file containing the device token and json payload");
 			System.out.println("Example:");
@@ -118,12 +208,24 @@ public class japnsClient {
 		}
 		
 		if (feedbackService) {
-			japnsClient.printFailedDevices(keyFile, password, sandbox);
+			if (feedbackHost != null) {
+				japnsClient.printFailedDevices(keyFile, password, feedbackHost, nio);
+			} else {
+				japnsClient.printFailedDevices(keyFile, password, sandbox, nio);
+			}
 		} else {
-			BufferedReader stdin;
+			BufferedReader stdin = null;
+			MappedNotificationFile mapped = null;
 			
 			try {
-				if (notificationFile != null) {
+				if (raw) {
+					if (notificationFile == null) {
+						log.error("-raw needs a notification file, it cannot read STDIN");
+						return;
+					}
+					mapped = new MappedNotificationFile(notificationFile);
+					log.debug("Mapping alerts from notificationFile: " + notificationFile);
+				} else if (notificationFile != null) {
 					stdin = new BufferedReader(new InputStreamReader(new FileInputStream(notificationFile), "UTF-8"));
 					log.debug("Reading alerts from notificationFile: " + notificationFile);
 				} else {
@@ -136,34 +238,48 @@ public class japnsClient {
 			} catch (UnsupportedEncodingException e) {
 				log.error("Unsupported encoding in notification file.  Make sure file is in UTF-8.");
 				throw new RuntimeException(e);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
 			}
 			
 			try {
-				NotificationService ns = new NotificationService(keyFile, password, sandbox);
-				List<Notification> notifications = new ArrayList<Notification>();
-	
-				while (stdin.ready()) {
-					String message = stdin.readLine();
-					log.debug("Message read: " + message);
-	
-					String[] parts = message.split("\\|");
-					
-					String token = parts[0];
-					String payload = parts[1];
-					
-					log.debug("Token: " + token);
-					log.debug("Payload: " + payload);
-					
-					log.debug("Parsing payload");
-					JSONObject json = (JSONObject)JSONValue.parse(payload);
-					
-					Payload p = new Payload();
-					p.putAll((Map<String, Object>)json);
-					notifications.add(new Notification(token, p));
+				NotificationService ns;
+				if (host != null) {
+					ns = new NotificationService(keyFile, password, host);
+				} else {
+					ns = new NotificationService(keyFile, password, sandbox);
+				}
+				NioTransport transport = null;
+				if (nio) {
+					transport = new NioTransport();
+					ns.setTransport(transport);
+				}
+				ns.setPipelined(pipelined || nio);
+				if (connections > 0) {
+					ns.setPoolSize(connections);
+				}
+				ns.setTopic(topic);
+				ns.setHttp2(http2);
+				ns.setMaxPayloadSize(maxPayloadSize);
+				NotificationJournal journal = null;
+				if (journalFile != null) {
+					journal = new NotificationJournal(journalFile);
+					ns.setJournal(journal);
+					int resumed = ns.resume();
+					log.info("Resumed " + resumed + " notifications from the journal");
+				}
+				if (mapped != null) {
+					sendRawNotifications(ns, mapped, threads);
+				} else {
+					sendNotifications(ns, stdin, threads);
+				}
+				ns.close();
+				if (journal != null) {
+					journal.close();
+				}
+				if (transport != null) {
+					transport.close();
 				}
-
-				log.debug("Sending notifications");
-				ns.sendNotifications(notifications);
 			} catch (InvalidNotificationException e) {
 				log.error("Invalid notification");
 				throw new RuntimeException(e);
@@ -173,6 +289,247 @@ public class japnsClient {
 		}
 	}
 
+	/**
+	 * Streams notifications from the reader to the service.  Lines are read ahead on another thread into a bounded 
+	 * queue and cut into chunks of at most CHUNK_SIZE lines.  The chunks are parsed and their payloads serialized on 
+	 * the parser threads, and sent in the order they were read, so notifications for the same device keep their order.  
+	 * At most two chunks per parser thread are in progress and a smaller chunk is cut whenever no more lines are ready, 
+	 * so the first notifications are sent while the rest are read and memory does not grow with the size of the input.
+	 * @param ns Service the notifications are sent with
+	 * @param stdin Pipe delimited notifications, one per line
+	 * @param threads Number of parser threads
+	 * @throws InvalidNotificationException If a notification was invalid, thrown after the rest have been sent
+	 * @throws IOException If the input could not be read
+	 */
+	static void sendNotifications(NotificationService ns, BufferedReader stdin, int threads) throws InvalidNotificationException, IOException {
+		LineReader lines = new LineReader(stdin, QUEUE_CAPACITY);
+		ExecutorService parsers = newParsers(threads);
+		Queue<Future<List<Notification>>> parsed = new LinkedList<Future<List<Notification>>>();
+		InvalidNotificationException invalid = null;
+		List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+		
+		try {
+			while (true) {
+				String message = chunk.isEmpty() && parsed.isEmpty() ? lines.take() : lines.poll();
+				if (message != null) {
+					chunk.add(message);
+					if (chunk.size() < CHUNK_SIZE) {
+						continue;
+					}
+				}
+				if (!chunk.isEmpty()) {
+					parsed.add(parsers.submit(new Parser(chunk)));
+					chunk = new ArrayList<String>(CHUNK_SIZE);
+				} else if (parsed.isEmpty()) {
+					break;
+				}
+				
+				// Send the oldest chunk once enough are in progress, or when the input has paused
+				if (message == null || parsed.size() >= 2 * threads) {
+					invalid = sendOldest(ns, parsed, invalid);
+				}
+			}
+		} finally {
+			parsers.shutdownNow();
+		}
+		
+		if (invalid != null) {
+			throw invalid;
+		}
+	}
+	
+	/**
+	 * Streams notifications from a memory-mapped file to the service.  The file is cut into chunks of about CHUNK_BYTES 
+	 * that end on a line boundary.  The chunks are scanned on the parser threads and sent in the order they appear in the 
+	 * file, with at most two chunks per parser thread in progress.  Payloads are checked to be well-formed JSON and are 
+	 * sent byte for byte as they are in the file.
+	 * @param ns Service the notifications are sent with
+	 * @param file Pipe delimited notifications, one per line
+	 * @param threads Number of parser threads
+	 * @throws InvalidNotificationException If a notification was invalid, thrown after the rest have been sent
+	 * @throws IOException If the file could not be read
+	 */
+	static void sendRawNotifications(NotificationService ns, MappedNotificationFile file, int threads) throws InvalidNotificationException, IOException {
+		ExecutorService parsers = newParsers(threads);
+		Queue<Future<List<Notification>>> parsed = new LinkedList<Future<List<Notification>>>();
+		InvalidNotificationException invalid = null;
+		
+		try {
+			ByteBuffer chunk;
+			while ((chunk = file.next(CHUNK_BYTES)) != null) {
+				parsed.add(parsers.submit(new RawParser(chunk)));
+				if (parsed.size() >= 2 * threads) {
+					invalid = sendOldest(ns, parsed, invalid);
+				}
+			}
+			while (!parsed.isEmpty()) {
+				invalid = sendOldest(ns, parsed, invalid);
+			}
+		} finally {
+			parsers.shutdownNow();
+			file.close();
+		}
+		
+		if (invalid != null) {
+			throw invalid;
+		}
+	}
+	
+	private static ExecutorService newParsers(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "japns-parser-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Waits for the oldest chunk to be parsed and sends it
+	 * @param invalid First invalid notification so far, or null
+	 * @return First invalid notification so far, or null
+	 */
+	private static InvalidNotificationException sendOldest(NotificationService ns, Queue<Future<List<Notification>>> parsed, 
+			InvalidNotificationException invalid) throws IOException {
+		log.debug("Sending notifications");
+		try {
+			ns.sendNotifications(parsed.remove().get());
+		} catch (InvalidNotificationException e) {
+			if (invalid == null) {
+				return e;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted sending notifications");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return invalid;
+	}
+	
+	/**
+	 * <p>Scans a chunk of a memory-mapped file into notifications, decoding the token from the hex bytes and copying 
+	 * the payload bytes without decoding them.  Lines with an invalid token or payload are logged and skipped.</p>
+	 */
+	private static class RawParser implements Callable<List<Notification>> {
+		private final ByteBuffer chunk;
+		
+		RawParser(ByteBuffer chunk) {
+			this.chunk = chunk;
+		}
+		
+		public List<Notification> call() {
+			List<Notification> notifications = new ArrayList<Notification>();
+			int end = chunk.limit();
+			int start = 0;
+			while (start < end) {
+				int lineEnd = start;
+				int separator = -1;
+				while (lineEnd < end && chunk.get(lineEnd) != '\n') {
+					if (separator < 0 && chunk.get(lineEnd) == '|') {
+						separator = lineEnd;
+					}
+					lineEnd++;
+				}
+				int next = lineEnd + 1;
+				if (lineEnd > start && chunk.get(lineEnd - 1) == '\r') {
+					lineEnd--;
+				}
+				
+				if (separator >= 0) {
+					Notification notification = parse(start, separator, lineEnd);
+					if (notification != null) {
+						notifications.add(notification);
+					}
+				} else if (lineEnd > start) {
+					log.error("Skipping notification without a payload at byte " + start + " of a chunk");
+				}
+				start = next;
+			}
+			return notifications;
+		}
+		
+		private Notification parse(int start, int separator, int end) {
+			ByteBuffer field = chunk.duplicate();
+			field.position(start);
+			field.limit(separator);
+			DeviceToken token;
+			try {
+				token = DeviceToken.parse(field);
+			} catch (IllegalArgumentException e) {
+				log.error("Skipping notification with invalid token: " + e.getMessage());
+				return null;
+			}
+			
+			byte[] payload = new byte[end - separator - 1];
+			field.limit(end);
+			field.position(separator + 1);
+			field.get(payload);
+			try {
+				return Notification.fromJson(token, payload);
+			} catch (IllegalArgumentException e) {
+				log.error("Skipping notification for " + token + ": " + e.getMessage());
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Parses a chunk of lines into notifications with serialized payloads.</p>
+	 */
+	private static class Parser implements Callable<List<Notification>> {
+		private final List<String> lines;
+		
+		Parser(List<String> lines) {
+			this.lines = lines;
+		}
+		
+		public List<Notification> call() {
+			List<Notification> notifications = new ArrayList<Notification>(lines.size());
+			for (String message : lines) {
+				Notification notification = parse(message);
+				if (notification != null) {
+					notification.serializePayload();
+					notifications.add(notification);
+				}
+			}
+			return notifications;
+		}
+	}
+	
+	/**
+	 * Parses a pipe delimited line into a Notification
+	 * @return The notification, or null if the token is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	private static Notification parse(String message) {
+		log.debug("Message read: " + message);
+
+		String[] parts = message.split("\\|");
+		
+		DeviceToken token;
+		try {
+			token = DeviceToken.parse(parts[0]);
+		} catch (IllegalArgumentException e) {
+			log.error("Skipping notification with invalid token: " + parts[0]);
+			return null;
+		}
+		String payload = parts[1];
+		
+		log.debug("Token: " + token);
+		log.debug("Payload: " + payload);
+		
+		log.debug("Parsing payload");
+		JSONObject json = (JSONObject)JSONValue.parse(payload);
+		
+		Payload p = new Payload();
+		p.putAll((Map<String, Object>)json);
+		return new Notification(token, p);
+	}
+
 	/**
 	 * Connectes to Apple's feedback service and prints out a list if failed devices.
 	 * @param keyFile Path to keyfile
@@ -180,16 +537,49 @@ public class japnsClient {
 	 * @param sandbox sandbox flag
 	 */
 	public static void printFailedDevices(String keyFile, String password, boolean sandbox) {
+		printFailedDevices(keyFile, password, sandbox, false);
+	}
+
+	/**
+	 * Connectes to Apple's feedback service and prints out a list if failed devices.
+	 * @param keyFile Path to keyfile
+	 * @param password Password of keyfile
+	 * @param sandbox sandbox flag
+	 * @param nio Reads the feedback service through a non-blocking transport
+	 */
+	public static void printFailedDevices(String keyFile, String password, boolean sandbox, boolean nio) {
+		printFailedDevices(keyFile, password, sandbox ? Connector.DEV_FEEDBACK_HOST : Connector.FEEDBACK_HOST, nio);
+	}
+
+	/**
+	 * Connectes to a feedback service and prints out a list if failed devices.
+	 * @param keyFile Path to keyfile
+	 * @param password Password of keyfile
+	 * @param host Host:port of the feedback service
+	 * @param nio Reads the feedback service through a non-blocking transport
+	 */
+	public static void printFailedDevices(String keyFile, String password, String host, boolean nio) {
+		NioTransport transport = null;
 		try {
-			FeedbackService fs = new FeedbackService(keyFile, password, sandbox);
-			FailedDevice[] fds = fs.getFailedDevices();
-			
-			for(int i = 0; i < fds.length; i++) {
-				System.out.println(fds[i].getFailedTimestamp().toString() + "|" + fds[i].getDeviceToken());
+			FeedbackService fs = new FeedbackService(keyFile, password, host);
+			if (nio) {
+				transport = new NioTransport(1);
+				fs.setTransport(transport);
 			}
+			fs.readFailedDevices(new FeedbackListener() {
+				public void deviceFailed(FailedDevice failedDevice) {
+					System.out.println(failedDevice.getFailedTimestamp().toString() + "|" + failedDevice.getDeviceToken());
+				}
+			});
 			
 		} catch (FileNotFoundException e) {
 			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (transport != null) {
+				transport.close();
+			}
 		}
 	}
 }
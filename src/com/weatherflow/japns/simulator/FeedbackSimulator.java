@@ -0,0 +1,101 @@
+package com.weatherflow.japns.simulator;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.net.ssl.SSLContext;
+
+import com.weatherflow.japns.DeviceToken;
+import com.weatherflow.japns.FailedDevice;
+
+/**
+ * <p>An in-process stand-in for Apple's feedback service.  Every connection is sent the failed devices added with
+ * addFailedDevice followed by the configured number of generated records, then closed.  Generated tokens come from a
+ * fixed seed so every run sees the same records.</p>
+ * <br>
+ * <p>Point a FeedbackService at {@link #getHost()}, the client must trust the certificate the simulator presents.</p>
+ */
+public class FeedbackSimulator extends SimulatorServer {
+	public static final int RECORD_LENGTH = 4 + 2 + DeviceToken.LENGTH;
+
+	private static final int BUFFER_SIZE = 65536;
+	private static final long SEED = 2196;
+
+	private final List<FailedDevice> failedDevices = new ArrayList<FailedDevice>();
+	private volatile int records = 0;
+
+	/**
+	 * Constructs a FeedbackSimulator, call start to accept connections
+	 * @param sslContext SSLContext initialized with the key/cert the simulator presents
+	 * @param port Port to listen on, 0 for any free port
+	 * @throws IOException If the port cannot be bound
+	 */
+	public FeedbackSimulator(SSLContext sslContext, int port) throws IOException {
+		super(sslContext, port, "japns-feedback-simulator");
+	}
+
+	/**
+	 * Adds a record sent on every connection
+	 * @param failedDevice Token and time the device failed
+	 */
+	public void addFailedDevice(FailedDevice failedDevice) {
+		synchronized (failedDevices) {
+			failedDevices.add(failedDevice);
+		}
+	}
+
+	/**
+	 * @param records Number of generated records sent on every connection
+	 */
+	public void setRecords(int records) {
+		if (records < 0) {
+			throw new IllegalArgumentException("Records must not be negative: " + records);
+		}
+		this.records = records;
+	}
+
+	public int getRecords() {
+		return records;
+	}
+
+	void serve(Socket socket, Throttle throttle) throws IOException {
+		OutputStream output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+
+		List<FailedDevice> added;
+		synchronized (failedDevices) {
+			added = new ArrayList<FailedDevice>(failedDevices);
+		}
+		for (FailedDevice failedDevice : added) {
+			record.clear();
+			record.putInt((int) (failedDevice.getFailedTimestamp().getTime() / 1000));
+			record.putShort((short) DeviceToken.LENGTH);
+			failedDevice.getDeviceToken().writeTo(record);
+			write(output, record, throttle);
+		}
+
+		Random random = new Random(SEED);
+		int now = (int) (System.currentTimeMillis() / 1000);
+		for (int i = records; i > 0; i--) {
+			record.clear();
+			record.putInt(now - random.nextInt(86400));
+			record.putShort((short) DeviceToken.LENGTH);
+			for (int j = 0; j < DeviceToken.LENGTH / 8; j++) {
+				record.putLong(random.nextLong());
+			}
+			write(output, record, throttle);
+		}
+		output.flush();
+	}
+
+	private void write(OutputStream output, ByteBuffer record, Throttle throttle) throws IOException {
+		output.write(record.array(), 0, record.position());
+		throttle.consume(record.position());
+	}
+}
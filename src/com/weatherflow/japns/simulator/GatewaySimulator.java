@@ -0,0 +1,253 @@
+package com.weatherflow.japns.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import com.weatherflow.japns.DeviceToken;
+import com.weatherflow.japns.ErrorResponse;
+
+/**
+ * <p>An in-process stand-in for Apple's binary gateway, for load and fault testing without Apple.  It reads command 2
+ * frames and, like Apple, answers a rejected notification with an error-response and closes the connection.  Besides
+ * the errors Apple would report for a malformed frame it can inject any status at chosen identifiers, reject chosen
+ * tokens as invalid, drop connections after a number of notifications and simulate latency and bandwidth.</p>
+ * <br>
+ * <p>Point a NotificationService at {@link #getHost()}.  The client must trust the certificate the simulator presents,
+ * for example by running it with -Djavax.net.ssl.trustStore set to a keystore holding that certificate.</p>
+ */
+public class GatewaySimulator extends SimulatorServer {
+	public static final int COMMAND = 2;
+	public static final int MAX_FRAME_SIZE = 65535;
+	public static final int DEFAULT_MAX_PAYLOAD_SIZE = 2048;
+
+	private static final int ITEM_TOKEN = 1;
+	private static final int ITEM_PAYLOAD = 2;
+	private static final int ITEM_IDENTIFIER = 3;
+
+	/**
+	 * <p>Receives every notification the simulator accepts, on the thread of its connection.</p>
+	 */
+	public interface Listener {
+		/**
+		 * @param identifier Identifier of the notification
+		 * @param token Device token of the notification
+		 * @param payload JSON payload of the notification
+		 */
+		void received(int identifier, DeviceToken token, byte[] payload);
+	}
+
+	private final Map<Integer, Integer> errors = new ConcurrentHashMap<Integer, Integer>();
+	private final Set<DeviceToken> invalidTokens = Collections.synchronizedSet(new HashSet<DeviceToken>());
+	private final AtomicLong notifications = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong errorResponses = new AtomicLong();
+	private final AtomicLong drops = new AtomicLong();
+	private volatile int maxPayloadSize = DEFAULT_MAX_PAYLOAD_SIZE;
+	private volatile int dropAfter = 0;
+	private volatile Listener listener = null;
+
+	/**
+	 * Constructs a GatewaySimulator, call start to accept connections
+	 * @param sslContext SSLContext initialized with the key/cert the simulator presents
+	 * @param port Port to listen on, 0 for any free port
+	 * @throws IOException If the port cannot be bound
+	 */
+	public GatewaySimulator(SSLContext sslContext, int port) throws IOException {
+		super(sslContext, port, "japns-gateway-simulator");
+	}
+
+	/**
+	 * Rejects the notification with the given identifier the next time it is received.  The error-response carries
+	 * the identifier as given, so for SHUTDOWN (10) pass the identifier of the last notification to report as sent.
+	 * @param identifier Identifier of the notification to reject
+	 * @param status Status code of the error-response, 1 to 10 or 255
+	 */
+	public void injectError(int identifier, int status) {
+		if (status < 1 || status > 255) {
+			throw new IllegalArgumentException("Status must be between 1 and 255: " + status);
+		}
+		errors.put(identifier, status);
+	}
+
+	/**
+	 * Rejects every notification sent to the token with INVALID_TOKEN (8), as Apple does for uninstalled apps
+	 * @param token The token to reject
+	 */
+	public void addInvalidToken(DeviceToken token) {
+		invalidTokens.add(token);
+	}
+
+	/**
+	 * Rejects payloads larger than the given size with INVALID_PAYLOAD_SIZE (7)
+	 * @param maxPayloadSize Largest payload accepted in bytes
+	 */
+	public void setMaxPayloadSize(int maxPayloadSize) {
+		this.maxPayloadSize = maxPayloadSize;
+	}
+
+	/**
+	 * Closes each connection without an error-response once it has accepted the given number of notifications, as a
+	 * network failure would
+	 * @param notifications Notifications accepted per connection before it is dropped, 0 to never drop
+	 */
+	public void setDropAfter(int notifications) {
+		if (notifications < 0) {
+			throw new IllegalArgumentException("Notifications must not be negative: " + notifications);
+		}
+		this.dropAfter = notifications;
+	}
+
+	/**
+	 * @param listener Receives every accepted notification, or null
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return Notifications accepted
+	 */
+	public long getNotifications() {
+		return notifications.get();
+	}
+
+	/**
+	 * @return Bytes of frames read, including rejected ones
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return Error-responses sent
+	 */
+	public long getErrorResponses() {
+		return errorResponses.get();
+	}
+
+	/**
+	 * @return Connections dropped without an error-response
+	 */
+	public long getDrops() {
+		return drops.get();
+	}
+
+	void serve(Socket socket, Throttle throttle) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_FRAME_SIZE));
+		OutputStream output = socket.getOutputStream();
+		byte[] frame = new byte[MAX_FRAME_SIZE];
+		int accepted = 0;
+
+		while (true) {
+			int command = input.read();
+			if (command < 0) {
+				return;
+			}
+			if (command != COMMAND) {
+				respond(output, ErrorResponse.PROCESSING_ERROR, 0);
+				return;
+			}
+			int length = input.readInt();
+			if (length < 0 || length > MAX_FRAME_SIZE) {
+				respond(output, ErrorResponse.PROCESSING_ERROR, 0);
+				return;
+			}
+			input.readFully(frame, 0, length);
+			throttle.consume(5 + length);
+			bytes.addAndGet(5 + length);
+
+			if (!accept(output, ByteBuffer.wrap(frame, 0, length))) {
+				return;
+			}
+			accepted++;
+			if (dropAfter > 0 && accepted >= dropAfter) {
+				drops.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Checks a frame like Apple would and sends the error-response if it is rejected
+	 * @return False if the notification was rejected and the connection must be closed
+	 */
+	private boolean accept(OutputStream output, ByteBuffer frame) throws IOException {
+		int identifier = 0;
+		DeviceToken token = null;
+		byte[] payload = null;
+		int status = ErrorResponse.NO_ERROR;
+
+		while (frame.remaining() >= 3) {
+			int item = frame.get() & 0xff;
+			int length = frame.getShort() & 0xffff;
+			if (length > frame.remaining()) {
+				status = ErrorResponse.PROCESSING_ERROR;
+				break;
+			}
+			int end = frame.position() + length;
+			if (item == ITEM_TOKEN) {
+				if (length == DeviceToken.LENGTH) {
+					token = DeviceToken.read(frame);
+				} else if (status == ErrorResponse.NO_ERROR) {
+					status = ErrorResponse.INVALID_TOKEN_SIZE;
+				}
+			} else if (item == ITEM_PAYLOAD) {
+				payload = new byte[length];
+				frame.get(payload);
+			} else if (item == ITEM_IDENTIFIER && length == 4) {
+				identifier = frame.getInt();
+			}
+			frame.position(end);
+		}
+
+		if (status != ErrorResponse.NO_ERROR) {
+			// Already rejected
+		} else if (frame.hasRemaining()) {
+			status = ErrorResponse.PROCESSING_ERROR;
+		} else if (token == null) {
+			status = ErrorResponse.MISSING_DEVICE_TOKEN;
+		} else if (payload == null || payload.length == 0) {
+			status = ErrorResponse.MISSING_PAYLOAD;
+		} else if (payload.length > maxPayloadSize) {
+			status = ErrorResponse.INVALID_PAYLOAD_SIZE;
+		} else if (invalidTokens.contains(token)) {
+			status = ErrorResponse.INVALID_TOKEN;
+		}
+		Integer injected = errors.remove(identifier);
+		if (injected != null) {
+			status = injected;
+		}
+
+		if (status != ErrorResponse.NO_ERROR) {
+			respond(output, status, identifier);
+			return false;
+		}
+		notifications.incrementAndGet();
+		Listener listener = this.listener;
+		if (listener != null) {
+			listener.received(identifier, token, payload);
+		}
+		return true;
+	}
+
+	private void respond(OutputStream output, int status, int identifier) throws IOException {
+		pause();
+		byte[] packet = new byte[ErrorResponse.LENGTH];
+		ByteBuffer.wrap(packet).put(ErrorResponse.COMMAND).put((byte) status).putInt(identifier);
+		output.write(packet);
+		output.flush();
+		errorResponses.incrementAndGet();
+	}
+}
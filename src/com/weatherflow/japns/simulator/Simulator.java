@@ -0,0 +1,153 @@
+package com.weatherflow.japns.simulator;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+/**
+ * <p>Simulator is a command-line application that runs a GatewaySimulator and a FeedbackSimulator until it is killed,
+ * so japnsClient or another process can be load-tested against them on one machine.  Every second the notifications
+ * accepted so far are printed.</p>
+ * <br>
+ * Parameters:<br>
+ * 	-keyFile			p12 Keyfile holding the key/cert the simulators present.<br>
+ *  -password			p12 keyfile password.<br>
+ *  -port				Port of the gateway simulator, 2195 by default.<br>
+ *  -feedbackPort		Port of the feedback simulator, 2196 by default.<br>
+ *  -latency			Milliseconds added to every handshake and error-response.<br>
+ *  -bandwidth			Bytes per second each connection is limited to.<br>
+ *  -error				IDENTIFIER:STATUS, rejects the notification with the identifier with the status.  May be repeated.<br>
+ *  -dropAfter			Closes each connection after it has accepted this many notifications.<br>
+ *  -maxPayloadSize		Largest payload accepted in bytes.<br>
+ *  -feedbackRecords	Number of records the feedback simulator sends on every connection.<br>
+ * <br>
+ * Usage:<br>
+ * 	java -cp japnsClient.jar com.weatherflow.japns.simulator.Simulator -keyFile /path/to/server.p12 -password keyfilePassword -port 12195 -error 1000:8<br>
+ * 	java -Djavax.net.ssl.trustStore=/path/to/server.p12 -Djavax.net.ssl.trustStorePassword=keyfilePassword -jar japnsClient.jar -keyFile /path/to/kefile.p12 -password keyfilePassword -host localhost:12195<br>
+ */
+public class Simulator {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.simulator");
+
+	/**
+	 * Creates the SSLContext a simulator presents to its clients
+	 * @param keyFilename Name of p12 file holding the key/cert
+	 * @param keyPasswd Password of p12 file
+	 * @return The initialized SSLContext
+	 * @throws IOException If the p12 file cannot be read
+	 */
+	public static SSLContext createContext(String keyFilename, String keyPasswd) throws IOException {
+		InputStream keyFile = new FileInputStream(keyFilename);
+		try {
+			KeyStore ks = KeyStore.getInstance("PKCS12");
+			ks.load(keyFile, keyPasswd.toCharArray());
+
+			KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+			keyManagerFactory.init(ks, keyPasswd.toCharArray());
+
+			SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+			return sslContext;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		} finally {
+			keyFile.close();
+		}
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String keyFile = null;
+		String password = null;
+		int port = 2195;
+		int feedbackPort = 2196;
+		long latency = 0;
+		long bandwidth = 0;
+		int dropAfter = 0;
+		int maxPayloadSize = GatewaySimulator.DEFAULT_MAX_PAYLOAD_SIZE;
+		int feedbackRecords = 0;
+		StringBuilder errors = new StringBuilder();
+
+		PropertyConfigurator.configure(log.getClass().getClassLoader().getResource("main/resources/log4j.properties"));
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-keyFile")) {
+				keyFile = args[++i];
+			}
+			if (args[i].equalsIgnoreCase("-password")) {
+				password = args[++i];
+			}
+			if (args[i].equalsIgnoreCase("-port")) {
+				port = Integer.parseInt(args[++i]);
+			}
+			if (args[i].equalsIgnoreCase("-feedbackPort")) {
+				feedbackPort = Integer.parseInt(args[++i]);
+			}
+			if (args[i].equalsIgnoreCase("-latency")) {
+				latency = Long.parseLong(args[++i]);
+			}
+			if (args[i].equalsIgnoreCase("-bandwidth")) {
+				bandwidth = Long.parseLong(args[++i]);
+			}
+			if (args[i].equalsIgnoreCase("-error")) {
+				errors.append(args[++i]).append(',');
+			}
+			if (args[i].equalsIgnoreCase("-dropAfter")) {
+				dropAfter = Integer.parseInt(args[++i]);
+			}
+			if (args[i].equalsIgnoreCase("-maxPayloadSize")) {
+				maxPayloadSize = Integer.parseInt(args[++i]);
+			}
+			if (args[i].equalsIgnoreCase("-feedbackRecords")) {
+				feedbackRecords = Integer.parseInt(args[++i]);
+			}
+		}
+
+		if (keyFile == null || password == null) {
+			System.out.println("Usage: Simulator -keyFile KEYFILE -password KEYFILE_PASSWORD [-port PORT] [-feedbackPort PORT] [-latency MILLIS] [-bandwidth BYTES_PER_SECOND] [-error IDENTIFIER:STATUS]... [-dropAfter COUNT] [-maxPayloadSize BYTES] [-feedbackRecords COUNT]");
+			return;
+		}
+
+		SSLContext sslContext = createContext(keyFile, password);
+		GatewaySimulator gateway = new GatewaySimulator(sslContext, port);
+		FeedbackSimulator feedback = new FeedbackSimulator(sslContext, feedbackPort);
+		for (SimulatorServer server : new SimulatorServer[] { gateway, feedback }) {
+			server.setLatency(latency);
+			server.setBandwidth(bandwidth);
+		}
+		for (String error : errors.toString().split(",")) {
+			if (error.length() > 0) {
+				String[] parts = error.split(":");
+				gateway.injectError(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+			}
+		}
+		gateway.setDropAfter(dropAfter);
+		gateway.setMaxPayloadSize(maxPayloadSize);
+		feedback.setRecords(feedbackRecords);
+
+		gateway.start();
+		feedback.start();
+		System.out.println("Gateway simulator listening on " + gateway.getHost() + ", feedback simulator on " + feedback.getHost());
+
+		long last = 0;
+		while (true) {
+			Thread.sleep(1000);
+			long notifications = gateway.getNotifications();
+			if (notifications != last) {
+				System.out.println(notifications + " notifications, " + (notifications - last) + "/s, "
+						+ gateway.getErrorResponses() + " error-responses, " + gateway.getDrops() + " drops, "
+						+ gateway.getConnections() + " connections");
+				last = notifications;
+			}
+		}
+	}
+}
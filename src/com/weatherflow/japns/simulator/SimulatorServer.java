@@ -0,0 +1,231 @@
+package com.weatherflow.japns.simulator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A TLS server that serves each accepted connection on its own thread, the base of the gateway and feedback
+ * simulators.  Latency and bandwidth are applied to every connection accepted after they are set.</p>
+ */
+public abstract class SimulatorServer implements Runnable {
+	private static final Logger log = Logger.getLogger("com.weatherflow.japnsClient.simulator");
+
+	private final SSLServerSocket server;
+	private final String name;
+	private final Set<Socket> open = new HashSet<Socket>();
+	private final AtomicLong connections = new AtomicLong();
+	private volatile long latency = 0;
+	private volatile long bandwidth = 0;
+	private volatile boolean closed = false;
+	private Thread acceptor = null;
+
+	/**
+	 * @param sslContext SSLContext initialized with the key/cert the server presents
+	 * @param port Port to listen on, 0 for any free port
+	 * @param name Name of the threads of the server
+	 * @throws IOException If the port cannot be bound
+	 */
+	SimulatorServer(SSLContext sslContext, int port, String name) throws IOException {
+		this.server = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port);
+		this.name = name;
+	}
+
+	/**
+	 * Serves one connection, the connection is closed when this returns
+	 * @param socket The accepted connection
+	 * @param throttle Limits the bandwidth of the connection
+	 * @throws IOException If the connection fails
+	 */
+	abstract void serve(Socket socket, Throttle throttle) throws IOException;
+
+	/**
+	 * Starts accepting connections
+	 */
+	public synchronized void start() {
+		if (acceptor == null) {
+			acceptor = new Thread(this, name + "-" + getPort());
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+	}
+
+	public void run() {
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				if (!closed) {
+					log.error("Simulator stopped accepting connections", e);
+				}
+				return;
+			}
+			connections.incrementAndGet();
+			synchronized (open) {
+				open.add(socket);
+			}
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					handle(socket);
+				}
+			}, name + "-connection-" + connections.get());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			pause();
+			serve(socket, new Throttle(bandwidth));
+		} catch (IOException e) {
+			if (!closed) {
+				log.debug("Simulator connection failed: " + e);
+			}
+		} finally {
+			synchronized (open) {
+				open.remove(socket);
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.debug("Exception closing simulator connection: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the configured latency, as a reply from Apple would take one round trip
+	 * @throws InterruptedIOException If the thread is interrupted while waiting
+	 */
+	void pause() throws InterruptedIOException {
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while simulating latency");
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections and closes every open connection
+	 */
+	public void close() {
+		closed = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			log.debug("Exception closing simulator: " + e);
+		}
+		List<Socket> sockets;
+		synchronized (open) {
+			sockets = new ArrayList<Socket>(open);
+		}
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.debug("Exception closing simulator connection: " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return Port the server listens on
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return Host:port clients connect to, for the NotificationService and FeedbackService constructors
+	 */
+	public String getHost() {
+		return "localhost:" + getPort();
+	}
+
+	/**
+	 * Delays the handshake of every connection and every reply by a simulated round trip
+	 * @param millis Latency in milliseconds, 0 for none
+	 */
+	public void setLatency(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Latency must not be negative: " + millis);
+		}
+		this.latency = millis;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Limits how fast each connection reads or writes
+	 * @param bytesPerSecond Bandwidth of each connection, 0 for unlimited
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("Bandwidth must not be negative: " + bytesPerSecond);
+		}
+		this.bandwidth = bytesPerSecond;
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * @return Connections accepted
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * <p>Limits the bandwidth of one connection by sleeping whenever it gets ahead of its rate.</p>
+	 */
+	static final class Throttle {
+		private final long bytesPerSecond;
+		private final long start = System.nanoTime();
+		private long bytes = 0;
+
+		Throttle(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		/**
+		 * Accounts for bytes read or written, waiting until the rate allows them
+		 * @param length Number of bytes
+		 * @throws InterruptedIOException If the thread is interrupted while waiting
+		 */
+		void consume(int length) throws InterruptedIOException {
+			if (bytesPerSecond <= 0) {
+				return;
+			}
+			bytes += length;
+			long due = bytes / bytesPerSecond * 1000000000L + bytes % bytesPerSecond * 1000000000L / bytesPerSecond;
+			long ahead = due - (System.nanoTime() - start);
+			if (ahead >= 1000000L) {
+				try {
+					Thread.sleep(ahead / 1000000L);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while simulating bandwidth");
+				}
+			}
+		}
+	}
+}